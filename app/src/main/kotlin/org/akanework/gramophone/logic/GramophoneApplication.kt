@@ -43,6 +43,8 @@ import coil3.size.pxOrElse
 import coil3.util.Logger
 import org.akanework.gramophone.BuildConfig
 import org.akanework.gramophone.logic.ui.BugHandlerActivity
+import org.akanework.gramophone.logic.utils.LibraryObserver
+import org.akanework.gramophone.logic.utils.LibraryRepository
 import java.io.File
 import java.io.IOException
 import kotlin.system.exitProcess
@@ -63,6 +65,9 @@ class GramophoneApplication : Application(), SingletonImageLoader.Factory,
         Thread.setDefaultUncaughtExceptionHandler(this)
     }
 
+    val libraryObserver by lazy { LibraryObserver(this) }
+    val libraryRepository by lazy { LibraryRepository(this, libraryObserver) }
+
     @OptIn(UnstableApi::class)
     override fun onCreate() {
         super.onCreate()
@@ -86,10 +86,12 @@ import org.akanework.gramophone.logic.utils.LrcUtils.extractAndParseLyricsLegacy
 import org.akanework.gramophone.logic.utils.LrcUtils.loadAndParseLyricsFile
 import org.akanework.gramophone.logic.utils.LrcUtils.loadAndParseLyricsFileLegacy
 import org.akanework.gramophone.logic.utils.MediaStoreUtils
+import org.akanework.gramophone.logic.utils.SaveScheduler
 import org.akanework.gramophone.logic.utils.SemanticLyrics
 import org.akanework.gramophone.logic.utils.exoplayer.EndedWorkaroundPlayer
 import org.akanework.gramophone.logic.utils.exoplayer.GramophoneMediaSourceFactory
 import org.akanework.gramophone.logic.utils.exoplayer.GramophoneRenderFactory
+import org.akanework.gramophone.logic.utils.withExtras
 import org.akanework.gramophone.ui.MainActivity
 import kotlin.random.Random
 
@@ -119,6 +121,9 @@ class GramophonePlaybackService : MediaLibraryService(), MediaSessionService.Lis
         const val SERVICE_GET_LYRICS_LEGACY = "get_lyrics_legacy"
         const val SERVICE_GET_SESSION = "get_session"
         const val SERVICE_TIMER_CHANGED = "changed_timer"
+        // Skipping through songs saves once per window instead of once per song.
+        private const val SAVE_DELAY_MS = 2000L
+        private const val CHECKPOINT_INTERVAL_MS = 5000L
     }
 
     private var lastSessionId = 0
@@ -132,6 +137,13 @@ class GramophonePlaybackService : MediaLibraryService(), MediaSessionService.Lis
     private lateinit var handler: Handler
     private lateinit var nm: NotificationManagerCompat
     private lateinit var lastPlayedManager: LastPlayedManager
+    private lateinit var saveScheduler: SaveScheduler
+    private val checkpointRunnable = object : Runnable {
+        override fun run() {
+            lastPlayedManager.checkpoint()
+            handler.postDelayed(this, CHECKPOINT_INTERVAL_MS)
+        }
+    }
     private val lyricsLock = Semaphore(1)
     private lateinit var prefs: SharedPreferences
 
@@ -181,6 +193,9 @@ class GramophonePlaybackService : MediaLibraryService(), MediaSessionService.Lis
         super.onCreate()
         nm = NotificationManagerCompat.from(this)
         prefs = PreferenceManager.getDefaultSharedPreferences(this)
+        // Keep listening to MediaStore while playing in background, so that the library is
+        // current once the UI comes back.
+        (application as GramophoneApplication).libraryObserver.acquire()
         setListener(this)
         setMediaNotificationProvider(
             DefaultMediaNotificationProvider.Builder(this).build().apply {
@@ -279,6 +294,7 @@ class GramophonePlaybackService : MediaLibraryService(), MediaSessionService.Lis
         broadcastAudioSession()
         lastPlayedManager = LastPlayedManager(this, player)
         lastPlayedManager.allowSavingState = false
+        saveScheduler = SaveScheduler(handler, SAVE_DELAY_MS) { lastPlayedManager.save() }
 
         mediaSession =
             MediaLibrarySession
@@ -347,7 +363,7 @@ class GramophonePlaybackService : MediaLibraryService(), MediaSessionService.Lis
         controller = MediaController.Builder(this, mediaSession!!.token).buildAsync().get()
         handler.post {
             if (mediaSession == null) return@post
-            lastPlayedManager.restore { items, factory ->
+            lastPlayedManager.restore({ items, factory ->
                 if (mediaSession == null) return@restore
                 applyShuffleSeed(true, factory.toFactory(controller!!))
                 if (items != null) {
@@ -364,6 +380,9 @@ class GramophonePlaybackService : MediaLibraryService(), MediaSessionService.Lis
                         controller?.prepare()
                     }
                 }
+            }) { current, before, after ->
+                if (mediaSession == null) return@restore
+                addRestoredItems(current, before, after)
                 lastPlayedManager.allowSavingState = true
             }
         }
@@ -379,7 +398,8 @@ class GramophonePlaybackService : MediaLibraryService(), MediaSessionService.Lis
     // alongside with the mediaSession.
     override fun onDestroy() {
         // Important: this must happen before sending stop() as that changes state ENDED -> IDLE
-        lastPlayedManager.save()
+        saveScheduler.saveNow()
+        handler.removeCallbacks(checkpointRunnable)
         mediaSession!!.player.stop()
         broadcastAudioSessionClose()
         controller!!.release()
@@ -389,6 +409,7 @@ class GramophonePlaybackService : MediaLibraryService(), MediaSessionService.Lis
         mediaSession = null
         lyrics = null
         unregisterReceiver(headSetReceiver)
+        (application as GramophoneApplication).libraryObserver.release()
         super.onDestroy()
     }
 
@@ -417,6 +438,9 @@ class GramophonePlaybackService : MediaLibraryService(), MediaSessionService.Lis
         availableSessionCommands.add(SessionCommand(SERVICE_QUERY_TIMER, Bundle.EMPTY))
         availableSessionCommands.add(SessionCommand(SERVICE_GET_LYRICS, Bundle.EMPTY))
         availableSessionCommands.add(SessionCommand(SERVICE_GET_LYRICS_LEGACY, Bundle.EMPTY))
+        // Controllers without our UI (resumption, Auto, widgets) will want library items
+        // soon, load them now unless MainActivity already did.
+        (application as GramophoneApplication).libraryRepository.warmUp()
         handler.post {
             session.sendCustomCommand(
                 controller,
@@ -529,12 +553,22 @@ class GramophonePlaybackService : MediaLibraryService(), MediaSessionService.Lis
         })
     }
 
+    override fun onAddMediaItems(
+        mediaSession: MediaSession,
+        controller: MediaSession.ControllerInfo,
+        mediaItems: MutableList<MediaItem>
+    ): ListenableFuture<MutableList<MediaItem>> {
+        // Library items keep their extras in SongTable, the player needs them on the item.
+        return super.onAddMediaItems(mediaSession, controller,
+            mediaItems.mapTo(ArrayList(mediaItems.size)) { it.withExtras() })
+    }
+
     override fun onPlaybackResumption(
         mediaSession: MediaSession,
         controller: MediaSession.ControllerInfo
     ): ListenableFuture<MediaItemsWithStartPosition> {
         val settable = SettableFuture.create<MediaItemsWithStartPosition>()
-        lastPlayedManager.restore { items, factory ->
+        lastPlayedManager.restore({ items, factory ->
             applyShuffleSeed(true, factory.toFactory(this.controller!!))
             if (items == null) {
                 settable.setException(NullPointerException(
@@ -545,7 +579,7 @@ class GramophonePlaybackService : MediaLibraryService(), MediaSessionService.Lis
                 settable.setException(IndexOutOfBoundsException(
                     "LastPlayedManager restored empty MediaItemsWithStartPosition"))
             }
-        }
+        }) { current, before, after -> addRestoredItems(current, before, after) }
         return settable
     }
 
@@ -611,11 +645,22 @@ class GramophonePlaybackService : MediaLibraryService(), MediaSessionService.Lis
 
     override fun onMediaItemTransition(mediaItem: MediaItem?, reason: Int) {
         lyrics = null
-        lastPlayedManager.save()
+        saveScheduler.markDirty()
     }
 
     override fun onIsPlayingChanged(isPlaying: Boolean) {
-        lastPlayedManager.save()
+        handler.removeCallbacks(checkpointRunnable)
+        if (isPlaying) handler.postDelayed(checkpointRunnable, CHECKPOINT_INTERVAL_MS)
+        // Pausing is often followed by the app being swiped away, don't wait for that. Not
+        // playing while buffering after a skip is no reason to hurry though.
+        if (mediaSession?.player?.playWhenReady == false) saveScheduler.saveNow()
+        else saveScheduler.markDirty()
+    }
+
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        // We may be killed soon, and position changes never mark the state dirty.
+        saveScheduler.saveNow()
     }
 
     override fun onEvents(player: Player, events: Player.Events) {
@@ -635,7 +680,8 @@ class GramophonePlaybackService : MediaLibraryService(), MediaSessionService.Lis
         super.onShuffleModeEnabledChanged(shuffleModeEnabled)
         mediaSession!!.setCustomLayout(ImmutableList.of(getRepeatCommand(), getShufflingCommand()))
         if (needsMissingOnDestroyCallWorkarounds()) {
-            handler.post { lastPlayedManager.save() }
+            // onDestroy() may never run, a swipe away right after this must not lose it.
+            handler.post { saveScheduler.saveNow() }
         }
     }
 
@@ -653,7 +699,7 @@ class GramophonePlaybackService : MediaLibraryService(), MediaSessionService.Lis
         super.onRepeatModeChanged(repeatMode)
         mediaSession!!.setCustomLayout(ImmutableList.of(getRepeatCommand(), getShufflingCommand()))
         if (needsMissingOnDestroyCallWorkarounds()) {
-            handler.post { lastPlayedManager.save() }
+            handler.post { saveScheduler.saveNow() }
         }
     }
 
@@ -689,6 +735,39 @@ class GramophonePlaybackService : MediaLibraryService(), MediaSessionService.Lis
         }
     }
 
+    /**
+     * Playback may have started with only the [current] item, the others follow here, around
+     * wherever [current] is by then. For playback resumption media3 only sets [current] once
+     * it gets to the future, which may well be after this, so wait for it to show up.
+     */
+    private fun addRestoredItems(current: MediaItem?, before: List<MediaItem>,
+                                 after: List<MediaItem>) {
+        if (current == null || (before.isEmpty() && after.isEmpty())) return
+        val player = mediaSession?.player ?: return
+        if (insertAround(player, current.mediaId, before, after)) return
+        player.addListener(object : Player.Listener {
+            override fun onTimelineChanged(timeline: Timeline, reason: Int) {
+                if (insertAround(player, current.mediaId, before, after)) {
+                    player.removeListener(this)
+                } else if (!timeline.isEmpty) {
+                    Log.w(TAG, "queue replaced while restoring, dropping " +
+                            "${before.size + after.size} items")
+                    player.removeListener(this)
+                }
+            }
+        })
+    }
+
+    private fun insertAround(player: Player, mediaId: String, before: List<MediaItem>,
+                             after: List<MediaItem>): Boolean {
+        val index = (0 until player.mediaItemCount).firstOrNull {
+            player.getMediaItemAt(it).mediaId == mediaId
+        } ?: return false
+        player.addMediaItems(index + 1, after)
+        player.addMediaItems(index, before)
+        return true
+    }
+
     private fun applyShuffleSeed(lazy: Boolean, factory:
         (Int) -> ((CircularShuffleOrder) -> Unit) -> CircularShuffleOrder) {
         if (lazy) {
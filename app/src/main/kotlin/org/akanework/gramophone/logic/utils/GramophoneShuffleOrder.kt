@@ -146,6 +146,14 @@ class CircularShuffleOrder private constructor(
 			return if (data != null) "$seed;${data.joinToString(",")}" else seed.toString()
 		}
 
+		/**
+		 * Whether this holds an order which only fits a queue of exactly its size.
+		 */
+		val hasOrder: Boolean
+			get() = data != null
+
+		fun withoutOrder() = Persistent(seed, null)
+
 		fun toFactory(controller: MediaController): (Int) -> ((CircularShuffleOrder) -> Unit) -> CircularShuffleOrder {
 			if (data == null) {
 				return { c -> { CircularShuffleOrder(it, c, controller.mediaItemCount, seed) } }
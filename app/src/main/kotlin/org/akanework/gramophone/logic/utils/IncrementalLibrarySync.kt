@@ -0,0 +1,226 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+import android.annotation.SuppressLint
+import android.content.Context
+import android.provider.MediaStore
+import android.util.Log
+import androidx.media3.common.MediaItem
+import org.akanework.gramophone.BuildConfig
+import org.akanework.gramophone.logic.hasScopedStorageV2
+
+/**
+ * [IncrementalLibrarySync] remembers which MediaStore state the library was last built
+ * from (MediaStore generation on R+, newest DATE_MODIFIED before that, and the set of
+ * known song ids) so that a refresh only has to read rows that were inserted, updated or
+ * deleted since then.
+ *
+ * Not thread safe, callers synchronize on the instance. Only [hasBaseline] may be read
+ * without holding the lock.
+ */
+class IncrementalLibrarySync {
+
+    companion object {
+        private const val TAG = "IncrementalLibSync"
+        // SQLite has a limit of 999 bound arguments per statement on old versions, the
+        // filter's selection takes up to ~50 of them
+        private const val MAX_ARGS = 900
+        // If more than 1/4th of the library changed, a full rescan is cheaper than patching
+        private const val MAX_DELTA_DIVISOR = 4
+        private const val KEY_MIN_LENGTH = "sync.minLength"
+        private const val KEY_BLACKLIST = "sync.blacklist"
+        private const val KEY_VERSION = "sync.version."
+        private const val KEY_GENERATION = "sync.generation."
+        private const val BLACKLIST_SEPARATOR = "\u0000"
+    }
+
+    class Delta(val changed: List<MediaItem>, val deleted: Set<Long>)
+
+    @Volatile
+    private var knownIds: HashSet<Long>? = null
+    private var filter: MediaStoreUtils.LibraryFilter? = null
+    private var maxModified = 0L
+    private var versions: Map<String, String>? = null
+    private var generations: Map<String, Long>? = null
+
+    val hasBaseline: Boolean
+        get() = knownIds != null
+
+    fun reset() {
+        knownIds = null
+        filter = null
+        maxModified = 0L
+        versions = null
+        generations = null
+    }
+
+    /**
+     * Record [songList] as the state the library is now in. Must be called after every
+     * full load and every applied [Delta].
+     */
+    fun remember(context: Context, songList: List<MediaItem>,
+                 filter: MediaStoreUtils.LibraryFilter) {
+        val ids = HashSet<Long>(songList.size)
+        var newest = 0L
+        songList.forEach {
+            ids.add(it.mediaId.toLong())
+            newest = maxOf(newest, it.modifiedDate ?: 0L)
+        }
+        knownIds = ids
+        this.filter = filter
+        maxModified = newest
+        if (hasScopedStorageV2()) {
+            val volumes = MediaStore.getExternalVolumeNames(context)
+            versions = volumes.associateWith { MediaStore.getVersion(context, it) }
+            generations = volumes.associateWith { MediaStore.getGeneration(context, it) }
+        }
+    }
+
+    /**
+     * Export the state recorded by [remember] as string pairs, so that it can be stored
+     * next to the library in a [LibrarySnapshot].
+     */
+    fun saveState(): Map<String, String> {
+        val out = HashMap<String, String>()
+        filter?.let {
+            out[KEY_MIN_LENGTH] = it.minSongLengthSeconds.toString()
+            out[KEY_BLACKLIST] = it.blackListSet.joinToString(BLACKLIST_SEPARATOR)
+        }
+        versions?.forEach { (volume, version) -> out[KEY_VERSION + volume] = version }
+        generations?.forEach { (volume, generation) ->
+            out[KEY_GENERATION + volume] = generation.toString()
+        }
+        return out
+    }
+
+    /**
+     * Counterpart of [saveState]. [songList] is the library the state was saved with.
+     *
+     * @return false if the state can't be used with the current [filter]
+     */
+    fun restoreState(state: Map<String, String>, songList: List<MediaItem>,
+                     filter: MediaStoreUtils.LibraryFilter): Boolean {
+        val savedFilter = MediaStoreUtils.LibraryFilter(
+            state[KEY_MIN_LENGTH]?.toLongOrNull() ?: return false,
+            state[KEY_BLACKLIST]?.split(BLACKLIST_SEPARATOR)?.filterTo(HashSet()) {
+                it.isNotEmpty()
+            } ?: return false
+        )
+        if (savedFilter != filter) return false
+        knownIds = songList.mapTo(HashSet(songList.size)) { it.mediaId.toLong() }
+        this.filter = filter
+        maxModified = songList.maxOfOrNull {
+            it.modifiedDate ?: 0L
+        } ?: 0L
+        versions = state.filterKeys { it.startsWith(KEY_VERSION) }
+            .mapKeys { it.key.removePrefix(KEY_VERSION) }
+        generations = state.filterKeys { it.startsWith(KEY_GENERATION) }
+            .mapKeys { it.key.removePrefix(KEY_GENERATION) }
+            .mapValues { it.value.toLongOrNull() ?: 0L }
+        if (versions.isNullOrEmpty()) {
+            versions = null
+            generations = null
+        }
+        return true
+    }
+
+    /**
+     * Find out what changed since [remember] was called last.
+     *
+     * @param table the [SongTable] changed songs are appended to
+     * @param hint ids which are known to have changed, ie. from a [LibraryObserver]
+     * @return the delta, or null if a full rescan is required
+     */
+    fun queryDelta(context: Context, filter: MediaStoreUtils.LibraryFilter, table: SongTable,
+                   hint: Set<Long> = emptySet()): Delta? {
+        val known = knownIds ?: return null
+        if (filter != this.filter) return null
+        // First pass: only read ids, which is cheap, to find inserted and deleted rows.
+        // Rows rejected by the filter are treated like deleted ones.
+        val (selection, selectionArgs) = filter.selection()
+        val present = HashSet<Long>(known.size)
+        val candidates = HashSet<Long>()
+        context.contentResolver.query(
+            MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+            arrayOf(MediaStore.Audio.Media._ID, MediaStore.Audio.Media.DATE_MODIFIED),
+            selection, selectionArgs, null
+        )?.use {
+            val idColumn = it.getColumnIndexOrThrow(MediaStore.Audio.Media._ID)
+            val modifiedColumn = it.getColumnIndexOrThrow(MediaStore.Audio.Media.DATE_MODIFIED)
+            while (it.moveToNext()) {
+                val id = it.getLong(idColumn)
+                present.add(id)
+                // Before R, DATE_MODIFIED is all we have to detect updated rows.
+                if (id !in known || id in hint ||
+                    (!hasScopedStorageV2() && it.getLong(modifiedColumn) >= maxModified))
+                    candidates.add(id)
+            }
+        } ?: return null
+        val deleted = known.filterTo(HashSet()) { it !in present }
+        if (hasScopedStorageV2()) {
+            candidates.addAll(
+                queryChangedSinceGeneration(context, selection, selectionArgs) ?: return null)
+        }
+        if ((candidates.size + deleted.size) * MAX_DELTA_DIVISOR > known.size.coerceAtLeast(1)) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "delta too large (${candidates.size} changed, ${deleted.size} deleted)")
+            }
+            return null
+        }
+        val changed = mutableListOf<MediaItem>()
+        candidates.chunked(MAX_ARGS).forEach { chunk ->
+            val (items, rejected) = MediaStoreUtils.readSongs(
+                context, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                "$selection AND ${MediaStore.Audio.Media._ID} IN (" +
+                        chunk.joinToString(",") { "?" } + ")",
+                selectionArgs + chunk.map { it.toString() }, filter, table
+            )
+            changed.addAll(items)
+            // Song which was part of the library but doesn't pass the filter anymore.
+            rejected.forEach { if (it in known) deleted.add(it) }
+        }
+        return Delta(changed, deleted)
+    }
+
+    @SuppressLint("NewApi") // only called on R+
+    private fun queryChangedSinceGeneration(
+        context: Context, selection: String, selectionArgs: Array<String>
+    ): Set<Long>? {
+        val oldVersions = versions ?: return null
+        val oldGenerations = generations ?: return null
+        val changed = HashSet<Long>()
+        for (volume in MediaStore.getExternalVolumeNames(context)) {
+            // A different version means the database was wiped, generations are meaningless.
+            if (oldVersions[volume] != MediaStore.getVersion(context, volume)) return null
+            val generation = oldGenerations[volume] ?: 0L
+            context.contentResolver.query(
+                MediaStore.Audio.Media.getContentUri(volume),
+                arrayOf(MediaStore.Audio.Media._ID),
+                "$selection AND ${MediaStore.Audio.Media.GENERATION_MODIFIED} > ?",
+                selectionArgs + generation.toString(), null
+            )?.use {
+                val idColumn = it.getColumnIndexOrThrow(MediaStore.Audio.Media._ID)
+                while (it.moveToNext()) {
+                    changed.add(it.getLong(idColumn))
+                }
+            } ?: return null
+        }
+        return changed
+    }
+}
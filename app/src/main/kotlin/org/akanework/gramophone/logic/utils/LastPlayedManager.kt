@@ -20,6 +20,7 @@ package org.akanework.gramophone.logic.utils
 import android.content.Context
 import android.net.Uri
 import android.os.Bundle
+import android.provider.MediaStore
 import android.util.Base64
 import android.util.Log
 import androidx.annotation.OptIn
@@ -34,29 +35,42 @@ import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import org.akanework.gramophone.BuildConfig
+import org.akanework.gramophone.logic.GramophoneApplication
+import org.akanework.gramophone.logic.hasAudioPermission
 import org.akanework.gramophone.logic.use
 import org.akanework.gramophone.logic.utils.exoplayer.EndedWorkaroundPlayer
+import java.io.File
 import java.nio.charset.StandardCharsets
 
 @OptIn(UnstableApi::class)
-class LastPlayedManager(context: Context,
+class LastPlayedManager(private val context: Context,
                         private val controller: EndedWorkaroundPlayer) {
 
     companion object {
         private const val TAG = "LastPlayedManager"
+        // Ids per MediaStore query, keeps the SQL well below SQLite's length limit.
+        private const val MAX_IDS_PER_QUERY = 5000
     }
 
     var allowSavingState = true
     private val prefs by lazy { context.getSharedPreferences("LastPlayedManager", 0) }
+    private val journal = QueueJournal(File(context.filesDir, "queue.journal"), QueueLibrary())
 
-    private fun dumpPlaylist(): MediaItemsWithStartPosition {
-        val items = mutableListOf<MediaItem>()
-        for (i in 0 until controller.mediaItemCount) {
-            items.add(controller.getMediaItemAt(i))
-        }
-        return MediaItemsWithStartPosition(
-            items, controller.currentMediaItemIndex, controller.currentPosition
-        )
+    private val positionCheckpoint =
+        PositionCheckpoint(File(context.filesDir, "position.checkpoint"))
+
+    init {
+        controller.queueListener = journal
+        journal.generation = prefs.getLong("queue_generation", 0)
+    }
+
+    /**
+     * Remember the current position, cheap enough to be called every few seconds.
+     */
+    fun checkpoint() {
+        if (!allowSavingState) return
+        positionCheckpoint.write(journal.generation, controller.currentMediaItemIndex,
+            controller.currentPosition)
     }
 
     fun eraseShuffleOrder() {
@@ -72,75 +86,61 @@ class LastPlayedManager(context: Context,
             Log.i(TAG, "skipped save")
             return
         }
-        if (BuildConfig.DEBUG) {
-            Log.d(TAG, "dumping playlist...")
-        }
-        val data = dumpPlaylist()
+        val startIndex = controller.currentMediaItemIndex
+        val startPositionMs = controller.currentPosition
         val repeatMode = controller.repeatMode
         val shuffleModeEnabled = controller.shuffleModeEnabled
         val playbackParameters = controller.playbackParameters
         val persistent = controller.shufflePersistent
         val ended = controller.playbackState == Player.STATE_ENDED
+        val generation = journal.generation
+        val time = System.currentTimeMillis()
+        // The queue itself only writes what changed since the last save.
+        journal.flush()
         CoroutineScope(Dispatchers.Default).launch {
             if (BuildConfig.DEBUG) {
-                Log.d(TAG, "saving playlist (${data.mediaItems.size} items, repeat $repeatMode, " +
+                Log.d(TAG, "saving playlist (index $startIndex, repeat $repeatMode, " +
                         "shuffle $shuffleModeEnabled, ended $ended)...")
             }
-            val lastPlayed = PrefsListUtils.dump(
-                data.mediaItems.map {
-                    val b = SafeDelimitedStringConcat(":")
-                    // add new entries at the bottom and remember they are null for upgrade path
-                    b.writeStringUnsafe(it.mediaId)
-                    b.writeUri(it.localConfiguration?.uri)
-                    b.writeStringSafe(it.localConfiguration?.mimeType)
-                    b.writeStringSafe(it.mediaMetadata.title)
-                    b.writeStringSafe(it.mediaMetadata.artist)
-                    b.writeStringSafe(it.mediaMetadata.albumTitle)
-                    b.writeStringSafe(it.mediaMetadata.albumArtist)
-                    b.writeUri(it.mediaMetadata.artworkUri)
-                    b.writeInt(it.mediaMetadata.trackNumber)
-                    b.writeInt(it.mediaMetadata.discNumber)
-                    b.writeInt(it.mediaMetadata.recordingYear)
-                    b.writeInt(it.mediaMetadata.releaseYear)
-                    b.writeBool(it.mediaMetadata.isBrowsable)
-                    b.writeBool(it.mediaMetadata.isPlayable)
-                    b.writeLong(it.mediaMetadata.extras?.getLong("AddDate"))
-                    b.writeStringSafe(it.mediaMetadata.writer)
-                    b.writeStringSafe(it.mediaMetadata.compilation)
-                    b.writeStringSafe(it.mediaMetadata.composer)
-                    b.writeStringSafe(it.mediaMetadata.genre)
-                    b.writeInt(it.mediaMetadata.recordingDay)
-                    b.writeInt(it.mediaMetadata.recordingMonth)
-                    b.writeLong(it.mediaMetadata.extras?.getLong("ArtistId"))
-                    b.writeLong(it.mediaMetadata.extras?.getLong("AlbumId"))
-                    b.writeLong(it.mediaMetadata.extras?.getLong("GenreId"))
-                    b.writeStringSafe(it.mediaMetadata.extras?.getString("Author"))
-                    b.writeInt(it.mediaMetadata.extras?.getInt("CdTrackNumber"))
-                    b.writeLong(it.mediaMetadata.durationMs)
-                    b.writeStringUnsafe(it.mediaMetadata.extras?.getString("Path"))
-                    b.writeLong(it.mediaMetadata.extras?.getLong("ModifiedDate"))
-                    b.toString()
-                })
             prefs.edit {
-                putStringSet("last_played_lst", lastPlayed.first)
-                putString("last_played_grp", lastPlayed.second)
-                putInt("last_played_idx", data.startIndex)
-                putLong("last_played_pos", data.startPositionMs)
+                // Queue of the old format, replaced by the journal.
+                remove("last_played_lst")
+                remove("last_played_grp")
+                putInt("last_played_idx", startIndex)
+                putLong("last_played_pos", startPositionMs)
                 putInt("repeat_mode", repeatMode)
                 putBoolean("shuffle", shuffleModeEnabled)
                 putString("shuffle_persist", persistent?.toString())
                 putBoolean("ended", ended)
                 putFloat("speed", playbackParameters.speed)
                 putFloat("pitch", playbackParameters.pitch)
+                putLong("queue_generation", generation)
+                putLong("last_played_time", time)
                 apply()
             }
         }
     }
 
-    fun restore(callback: (MediaItemsWithStartPosition?, CircularShuffleOrder.Persistent) -> Unit) {
+    /**
+     * Restore the queue which was saved last. If [rest] is given, [callback] may only get the
+     * item which was playing, so that playback can start before the rest of the queue is
+     * decoded and looked up. [rest] then gets that item and the items before and after it.
+     * It is always called once after [callback], with null and empty lists if [callback] got
+     * the whole queue. It may run before the player holds the item, ie. if [callback]
+     * completes a future which the player only gets to later.
+     */
+    fun restore(
+        callback: (MediaItemsWithStartPosition?, CircularShuffleOrder.Persistent) -> Unit,
+        rest: ((MediaItem?, List<MediaItem>, List<MediaItem>) -> Unit)? = null
+    ) {
         if (BuildConfig.DEBUG) {
             Log.d(TAG, "decoding playlist...")
         }
+        val finish = { current: MediaItem?, before: List<MediaItem>, after: List<MediaItem> ->
+            rest?.let { r ->
+                CoroutineScope(Dispatchers.Main).launch { r(current, before, after) }
+            }
+        }
         CoroutineScope(Dispatchers.Default).launch {
             val seed = try {
                 CircularShuffleOrder.Persistent.deserialize(prefs.getString("shuffle_persist", null))
@@ -149,13 +149,18 @@ class LastPlayedManager(context: Context,
                 throw e
             }
             try {
-                val lastPlayedLst = prefs.getStringSet("last_played_lst", null)
-                val lastPlayedGrp = prefs.getString("last_played_grp", null)
-                val lastPlayedIdx = prefs.getInt("last_played_idx", 0)
-                val lastPlayedPos = prefs.getLong("last_played_pos", 0)
-                if (lastPlayedGrp == null || lastPlayedLst == null) {
-                    runCallback(callback, seed) { null }
-                    return@launch
+                var lastPlayedIdx = prefs.getInt("last_played_idx", 0)
+                var lastPlayedPos = prefs.getLong("last_played_pos", 0)
+                // Playback went on after the last save, if the queue is still the same.
+                positionCheckpoint.read()?.let {
+                    if (it.generation == prefs.getLong("queue_generation", -1) &&
+                        it.timeMs > prefs.getLong("last_played_time", Long.MAX_VALUE)) {
+                        if (BuildConfig.DEBUG) {
+                            Log.d(TAG, "using checkpoint (index ${it.index}, ${it.positionMs}ms)")
+                        }
+                        lastPlayedIdx = it.index
+                        lastPlayedPos = it.positionMs
+                    }
                 }
                 val repeatMode = prefs.getInt("repeat_mode", Player.REPEAT_MODE_OFF)
                 val shuffleModeEnabled = prefs.getBoolean("shuffle", false)
@@ -164,94 +169,7 @@ class LastPlayedManager(context: Context,
                     prefs.getFloat("speed", 1f),
                     prefs.getFloat("pitch", 1f)
                 )
-                val data = MediaItemsWithStartPosition(
-                    PrefsListUtils.parse(lastPlayedLst, lastPlayedGrp)
-                    .map {
-                        val b = SafeDelimitedStringDecat(":", it)
-                        val mediaId = b.readStringUnsafe()
-                        val uri = b.readUri()
-                        val mimeType = b.readStringSafe()
-                        val title = b.readStringSafe()
-                        val artist = b.readStringSafe()
-                        val album = b.readStringSafe()
-                        val albumArtist = b.readStringSafe()
-                        val imgUri = b.readUri()
-                        val trackNumber = b.readInt()
-                        val discNumber = b.readInt()
-                        val recordingYear = b.readInt()
-                        val releaseYear = b.readInt()
-                        val isBrowsable = b.readBool()
-                        val isPlayable = b.readBool()
-                        val addDate = b.readLong()
-                        val writer = b.readStringSafe()
-                        val compilation = b.readStringSafe()
-                        val composer = b.readStringSafe()
-                        val genre = b.readStringSafe()
-                        val recordingDay = b.readInt()
-                        val recordingMonth = b.readInt()
-                        val artistId = b.readLong()
-                        val albumId = b.readLong()
-                        val genreId = b.readLong()
-                        val author = b.readStringSafe()
-                        val cdTrackNumber = b.readInt()
-                        val duration = b.readLong()
-                        val path = b.readStringUnsafe()
-                        val modifiedDate = b.readLong()
-                        MediaItem.Builder()
-                            .setUri(uri)
-                            .setMediaId(mediaId!!)
-                            .setMimeType(mimeType)
-                            .setMediaMetadata(
-                                MediaMetadata
-                                    .Builder()
-                                    .setTitle(title)
-                                    .setArtist(artist)
-                                    .setWriter(writer)
-                                    .setComposer(composer)
-                                    .setGenre(genre)
-                                    .setCompilation(compilation)
-                                    .setRecordingDay(recordingDay)
-                                    .setRecordingMonth(recordingMonth)
-                                    .setAlbumTitle(album)
-                                    .setAlbumArtist(albumArtist)
-                                    .setArtworkUri(imgUri)
-                                    .setTrackNumber(trackNumber)
-                                    .setDiscNumber(discNumber)
-                                    .setRecordingYear(recordingYear)
-                                    .setReleaseYear(releaseYear)
-                                    .setDurationMs(duration)
-                                    .setIsBrowsable(isBrowsable)
-                                    .setIsPlayable(isPlayable)
-                                    .setExtras(Bundle().apply {
-                                        if (addDate != null) {
-                                            putLong("AddDate", addDate)
-                                        }
-                                        if (artistId != null) {
-                                            putLong("ArtistId", artistId)
-                                        }
-                                        if (albumId != null) {
-                                            putLong("AlbumId", albumId)
-                                        }
-                                        if (genreId != null) {
-                                            putLong("GenreId", genreId)
-                                        }
-                                        if (cdTrackNumber != null) {
-                                            putInt("CdTrackNumber", cdTrackNumber)
-                                        }
-                                        putString("Author", author)
-                                        putString("Path", path)
-                                        if (modifiedDate != null) {
-                                            putLong("ModifiedDate", modifiedDate)
-                                        }
-                                    })
-                                    .build()
-                            )
-                            .build()
-                    },
-                    lastPlayedIdx,
-                    lastPlayedPos
-                )
-                runCallback(callback, seed) {
+                val restoreState = { data: MediaItemsWithStartPosition ->
                     if (BuildConfig.DEBUG) {
                         Log.d(TAG, "restoring playlist (${data.mediaItems.size} items, repeat $repeatMode, " +
                                 "shuffle $shuffleModeEnabled, ended $ended)...")
@@ -262,6 +180,47 @@ class LastPlayedManager(context: Context,
                     controller.playbackParameters = playbackParameters
                     data
                 }
+                val snapshot = journal.open()
+                // A persisted shuffle order only fits the whole queue, which has to be set at once.
+                val current = if (snapshot != null && rest != null && !seed.hasOrder &&
+                    snapshot.size > 1 && lastPlayedIdx in 0 until snapshot.size)
+                    snapshot.decode(lastPlayedIdx, lastPlayedIdx + 1)[0] else null
+                if (snapshot != null && rest != null && current != null) {
+                    runCallback(callback, seed) {
+                        restoreState(MediaItemsWithStartPosition(listOf(current), 0, lastPlayedPos))
+                    }
+                    // callback was called already, failing now must not call it again.
+                    val (before, after) = try {
+                        Pair(snapshot.decode(0, lastPlayedIdx).filterNotNull(),
+                            snapshot.decode(lastPlayedIdx + 1).filterNotNull())
+                    } catch (e: Exception) {
+                        Log.e(TAG, Log.getStackTraceString(e))
+                        Pair(emptyList(), emptyList())
+                    }
+                    finish(current, before, after)
+                    return@launch
+                }
+                val restored = snapshot?.decode() ?: readLegacyQueue()
+                if (restored == null) {
+                    runCallback(callback, seed) { null }
+                    finish(null, emptyList(), emptyList())
+                    return@launch
+                }
+                // Drop songs which are gone, the position only applies if ours is still there.
+                val items = restored.filterNotNull()
+                val startIndex = restored.subList(0, lastPlayedIdx.coerceIn(0, restored.size))
+                    .count { it != null }
+                val startPosition = if (restored.getOrNull(lastPlayedIdx) != null)
+                    lastPlayedPos else 0L
+                val data = MediaItemsWithStartPosition(
+                    items,
+                    startIndex.coerceAtMost(maxOf(items.size - 1, 0)),
+                    startPosition
+                )
+                // The persisted shuffle order doesn't fit anymore if songs were dropped.
+                runCallback(callback, if (items.size == restored.size) seed
+                    else seed.withoutOrder()) { restoreState(data) }
+                finish(null, emptyList(), emptyList())
                 return@launch
             } catch (e: Exception) {
                 try {
@@ -269,10 +228,91 @@ class LastPlayedManager(context: Context,
                 } catch (_: Exception) {}
                 Log.e(TAG, Log.getStackTraceString(e))
                 runCallback(callback, seed) { null }
+                finish(null, emptyList(), emptyList())
                 return@launch
             }
         }
     }
+
+    /**
+     * Finds songs of the queue in the library if it is loaded already, or else asks
+     * MediaStore for all of them at once. Items handed to the player carry their extras,
+     * so this is where they get them.
+     */
+    private inner class QueueLibrary : QueueJournal.Library {
+        override fun contains(mediaId: String) =
+            mediaId.toLongOrNull()?.let { SongTable.library?.find(it) } != null
+
+        override fun resolve(refs: List<QueueJournal.Ref>): List<MediaItem?> {
+            val found = HashMap<Long, MediaItem>(refs.size * 2)
+            val content = (context.applicationContext as GramophoneApplication)
+                .libraryRepository.latestContent
+            if (content != null) {
+                val wanted = refs.mapTo(HashSet(refs.size * 2)) { it.mediaId }
+                content.songList.forEach { song ->
+                    val id = song.mediaId.toLongOrNull()
+                    if (id != null && id in wanted) found[id] = song
+                }
+            } else if (context.hasAudioPermission()) {
+                // Only ids are part of the selection, so there is nothing to bind.
+                val table = SongTable()
+                refs.map { it.mediaId }.distinct().chunked(MAX_IDS_PER_QUERY).forEach { ids ->
+                    MediaStoreUtils.readSongs(context,
+                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                        "${MediaStore.Audio.Media._ID} IN (${ids.joinToString(",")})", null,
+                        MediaStoreUtils.LibraryFilter(0, emptySet()), table
+                    ).first.forEach { found[it.mediaId.toLong()] = it }
+                }
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "resolved ${found.size} of ${refs.size} queue items " +
+                        if (content != null) "from library" else "from MediaStore")
+            }
+            return refs.map { found[it.mediaId]?.withExtras() }
+        }
+    }
+
+    // Format used before QueueJournal, only read to upgrade.
+    private fun readLegacyQueue(): List<MediaItem>? {
+        val lastPlayedLst = prefs.getStringSet("last_played_lst", null)
+        val lastPlayedGrp = prefs.getString("last_played_grp", null)
+        if (lastPlayedGrp == null || lastPlayedLst == null) return null
+        return PrefsListUtils.parse(lastPlayedLst, lastPlayedGrp)
+            .map {
+                val b = SafeDelimitedStringDecat(":", it)
+                persistedMediaItem(
+                    mediaId = b.readStringUnsafe()!!,
+                    uri = b.readUri(),
+                    mimeType = b.readStringSafe(),
+                    title = b.readStringSafe(),
+                    artist = b.readStringSafe(),
+                    album = b.readStringSafe(),
+                    albumArtist = b.readStringSafe(),
+                    imgUri = b.readUri(),
+                    trackNumber = b.readInt(),
+                    discNumber = b.readInt(),
+                    recordingYear = b.readInt(),
+                    releaseYear = b.readInt(),
+                    isBrowsable = b.readBool(),
+                    isPlayable = b.readBool(),
+                    addDate = b.readLong(),
+                    writer = b.readStringSafe(),
+                    compilation = b.readStringSafe(),
+                    composer = b.readStringSafe(),
+                    genre = b.readStringSafe(),
+                    recordingDay = b.readInt(),
+                    recordingMonth = b.readInt(),
+                    artistId = b.readLong(),
+                    albumId = b.readLong(),
+                    genreId = b.readLong(),
+                    author = b.readStringSafe(),
+                    cdTrackNumber = b.readInt(),
+                    duration = b.readLong(),
+                    path = b.readStringUnsafe(),
+                    modifiedDate = b.readLong()
+                )
+            }
+    }
 }
 
 @OptIn(UnstableApi::class)
@@ -283,36 +323,66 @@ private inline fun runCallback(crossinline callback: (MediaItemsWithStartPositio
     CoroutineScope(Dispatchers.Main).launch { callback(parameter(), seed) }
 }
 
-private class SafeDelimitedStringConcat(private val delimiter: String) {
-    private val b = StringBuilder()
-    private var hadFirst = false
-
-    private fun append(s: String?) {
-        if (s?.contains(delimiter, false) == true) {
-            throw IllegalArgumentException("argument must not contain delimiter")
-        }
-        if (hadFirst) {
-            b.append(delimiter)
-        } else {
-            hadFirst = true
-        }
-        s?.let { b.append(it) }
-    }
-
-    override fun toString(): String {
-        return b.toString()
-    }
-
-    fun writeStringUnsafe(s: CharSequence?) = append(s?.toString())
-    fun writeBase64(b: ByteArray?) = append(b?.let { Base64.encodeToString(it, Base64.DEFAULT) })
-    fun writeStringSafe(s: CharSequence?) =
-        writeBase64(s?.toString()?.toByteArray(StandardCharsets.UTF_8))
-
-    fun writeInt(i: Int?) = append(i?.toString())
-    fun writeLong(i: Long?) = append(i?.toString())
-    fun writeBool(b: Boolean?) = append(b?.toString())
-    fun writeUri(u: Uri?) = writeStringSafe(u?.toString())
-}
+/**
+ * Builds a queue item from the fields [LastPlayedManager] persists for it.
+ */
+internal fun persistedMediaItem(
+    mediaId: String, uri: Uri?, mimeType: String?, title: String?, artist: String?,
+    album: String?, albumArtist: String?, imgUri: Uri?, trackNumber: Int?, discNumber: Int?,
+    recordingYear: Int?, releaseYear: Int?, isBrowsable: Boolean?, isPlayable: Boolean?,
+    addDate: Long?, writer: String?, compilation: String?, composer: String?, genre: String?,
+    recordingDay: Int?, recordingMonth: Int?, artistId: Long?, albumId: Long?, genreId: Long?,
+    author: String?, cdTrackNumber: Int?, duration: Long?, path: String?, modifiedDate: Long?
+): MediaItem = MediaItem.Builder()
+    .setUri(uri)
+    .setMediaId(mediaId)
+    .setMimeType(StringPool.intern(mimeType))
+    .setMediaMetadata(
+        MediaMetadata
+            .Builder()
+            .setTitle(title)
+            .setArtist(StringPool.intern(artist))
+            .setWriter(StringPool.intern(writer))
+            .setComposer(StringPool.intern(composer))
+            .setGenre(StringPool.intern(genre))
+            .setCompilation(StringPool.intern(compilation))
+            .setRecordingDay(recordingDay)
+            .setRecordingMonth(recordingMonth)
+            .setAlbumTitle(StringPool.intern(album))
+            .setAlbumArtist(StringPool.intern(albumArtist))
+            .setArtworkUri(imgUri)
+            .setTrackNumber(trackNumber)
+            .setDiscNumber(discNumber)
+            .setRecordingYear(recordingYear)
+            .setReleaseYear(releaseYear)
+            .setDurationMs(duration)
+            .setIsBrowsable(isBrowsable)
+            .setIsPlayable(isPlayable)
+            .setExtras(Bundle().apply {
+                if (addDate != null) {
+                    putLong("AddDate", addDate)
+                }
+                if (artistId != null) {
+                    putLong("ArtistId", artistId)
+                }
+                if (albumId != null) {
+                    putLong("AlbumId", albumId)
+                }
+                if (genreId != null) {
+                    putLong("GenreId", genreId)
+                }
+                if (cdTrackNumber != null) {
+                    putInt("CdTrackNumber", cdTrackNumber)
+                }
+                putString("Author", StringPool.intern(author))
+                putString("Path", path)
+                if (modifiedDate != null) {
+                    putLong("ModifiedDate", modifiedDate)
+                }
+            })
+            .build()
+    )
+    .build()
 
 private class SafeDelimitedStringDecat(delimiter: String, str: String) {
     private val items = str.split(delimiter)
@@ -334,13 +404,7 @@ private class SafeDelimitedStringDecat(delimiter: String, str: String) {
 
 private object PrefsListUtils {
     fun parse(stringSet: Set<String>, groupStr: String): List<String> {
-        val groups = groupStr.split(",")
-        return groups.map { hashCode ->
-            stringSet.first { it.hashCode().toString() == hashCode }
-        }
+        val byHash = stringSet.associateBy { it.hashCode().toString() }
+        return groupStr.split(",").map { byHash.getValue(it) }
     }
-
-    fun dump(list: List<String>): Pair<Set<String>, String> {
-        return Pair(list.toSet(), list.joinToString(",") { it.hashCode().toString() })
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,282 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+import uk.akane.libphonograph.items.Date
+import uk.akane.libphonograph.items.FileNode
+import uk.akane.libphonograph.items.Genre
+
+/**
+ * [LibraryBudget] is the memory saving mode for very large libraries. Genres, dates and
+ * folders are replaced by groups which only know where in the song list their first song
+ * is, and find the rest by scanning the song list when their song list is asked for. Built
+ * lists are kept in an LRU cache which is trimmed to [budgetBytes], so a group which was
+ * evicted builds its list again next time.
+ *
+ * The result has the same groups in the same order as [LibraryGrouper.group] would build.
+ */
+class LibraryBudget<T>(
+    private val fields: LibraryGrouper.Fields<T>,
+    val budgetBytes: Long
+) {
+
+    companion object {
+        // ArrayList plus its array header, references are 4 bytes on ART.
+        private const val LIST_OVERHEAD = 40L
+        private const val REF_SIZE = 4L
+
+        /**
+         * Estimated heap used by a list of [size] songs, not counting the songs.
+         */
+        fun listBytes(size: Int) = LIST_OVERHEAD + REF_SIZE * size
+    }
+
+    private val cache = LinkedHashMap<Members, List<T>>(16, 0.75f, true)
+
+    /**
+     * Estimated heap currently held by cached song lists.
+     */
+    @Volatile
+    var retainedBytes = 0L
+        private set
+
+    /**
+     * Highest [retainedBytes] seen since the last [apply].
+     */
+    @Volatile
+    var peakRetainedBytes = 0L
+        private set
+
+    /**
+     * Estimated heap used by the group indexes of the last [apply].
+     */
+    @Volatile
+    var indexBytes = 0L
+        private set
+
+    /**
+     * @return [content] with genres, dates and folders replaced by lazy groups
+     */
+    fun apply(content: LibraryContent<T>): LibraryContent<T> {
+        synchronized(cache) {
+            // Lists of the previous content are of no use for the new one.
+            cache.clear()
+            retainedBytes = 0L
+            peakRetainedBytes = 0L
+        }
+        val songs = content.songList.let { if (it is RandomAccess) it else ArrayList(it) }
+        val genres = Grouping(songs, fields::genreId)
+        val dates = Grouping(songs, fields::year)
+        val dirs = Grouping(songs, { LibraryGrouper.parentOf(fields.path(it)) },
+            fields::albumId) { song, dir ->
+            // Same as comparing parentOf(), without a substring per song.
+            val path = fields.path(song)
+            if (dir == null) LibraryGrouper.parentOf(path) == null
+            else path != null && path.lastIndexOf('/') == dir.length && path.startsWith(dir)
+        }
+        indexBytes = genres.bytes + dates.bytes + dirs.bytes
+        val dirMembers = Array(dirs.keys.size) { Members(dirs, intArrayOf(it)) }
+        val (folderStructure, shallowFolder) = folders(dirs, dirMembers)
+        return content.copy(
+            genreList = genres.keys.indices.map {
+                LazyGenre(genres.keys[it], Members(genres, intArrayOf(it)))
+            },
+            dateList = dates.keys.indices.map {
+                LazyDate(dates.keys[it], Members(dates, intArrayOf(it)))
+            },
+            folderStructure = folderStructure,
+            shallowFolder = shallowFolder,
+            folders = shallowFolder.folderList.keys
+        )
+    }
+
+    private fun songs(members: Members): List<T> {
+        synchronized(cache) {
+            cache[members]?.let { return it }
+        }
+        val list = members.materialize()
+        val bytes = listBytes(list.size)
+        if (bytes > budgetBytes) return list
+        synchronized(cache) {
+            // Someone else may have built it in the meantime, keep only one copy.
+            cache[members]?.let { return it }
+            cache[members] = list
+            retainedBytes += bytes
+            val iterator = cache.entries.iterator()
+            while (retainedBytes > budgetBytes) {
+                retainedBytes -= listBytes(iterator.next().value.size)
+                iterator.remove()
+            }
+            peakRetainedBytes = maxOf(peakRetainedBytes, retainedBytes)
+        }
+        return list
+    }
+
+    private fun folders(
+        dirs: Grouping<T, String?>, dirMembers: Array<Members>
+    ): Pair<FileNode<T>, FileNode<T>> {
+        val root = FolderBuilder("")
+        val shallow = LinkedHashMap<String, FileNode<T>>()
+        dirs.keys.forEachIndexed { group, dir ->
+            // Songs without a parent directory are in no folder.
+            if (dir == null) return@forEachIndexed
+            shallow[dir] = LazyFileNode(dir, emptyMap(), dirMembers[group])
+            var node = root
+            dir.split('/').forEach { segment ->
+                if (segment.isNotEmpty()) {
+                    node = node.children.getOrPut(segment) { FolderBuilder(segment) }
+                }
+            }
+            node.groups.add(group)
+        }
+        return Pair(root.build(dirs, dirMembers),
+            LibraryGrouper.GroupedFileNode("", shallow, emptyList(), null))
+    }
+
+    /**
+     * Groups of [songList] by [key], in order of first occurrence. Per group, only the key,
+     * the position of its first song and its size are kept, its songs are found again by
+     * scanning the song list from there with [isKey]. If [albumId] is given, the album id
+     * shared by all songs of each group is recorded as well, see [albumIdOf].
+     */
+    private class Grouping<S, K>(
+        val songList: List<S>, key: (S) -> K, albumId: ((S) -> Long?)? = null,
+        private val isKey: (S, K) -> Boolean = { song, k -> key(song) == k }
+    ) {
+        val keys: List<K>
+        val first: IntArray
+        val count: IntArray
+        private val albumIds: LongArray?
+
+        init {
+            val groupOf = IntArray(songList.size)
+            val indexOf = HashMap<K, Int>()
+            val keys = ArrayList<K>()
+            songList.forEachIndexed { i, song ->
+                val k = key(song)
+                groupOf[i] = indexOf.getOrPut(k) { keys.add(k); keys.size - 1 }
+            }
+            this.keys = keys
+            first = IntArray(keys.size)
+            count = IntArray(keys.size)
+            albumIds = albumId?.let { LongArray(keys.size) }
+            groupOf.forEachIndexed { i, group ->
+                val id = albumId?.invoke(songList[i]) ?: NO_ALBUM
+                if (count[group]++ == 0) {
+                    first[group] = i
+                    albumIds?.set(group, id)
+                } else if (albumIds != null && albumIds[group] != id) {
+                    albumIds[group] = NO_ALBUM
+                }
+            }
+        }
+
+        fun isInGroup(song: S, group: Int) = isKey(song, keys[group])
+
+        /**
+         * Album id of all songs in [group], or null if they are on different albums or the
+         * first one has none. Same as LibraryGrouper's albumIdOf().
+         */
+        fun albumIdOf(group: Int): Long? =
+            albumIds!![group].takeIf { it != NO_ALBUM }
+
+        val bytes: Long
+            get() = (if (albumIds != null) 20L else 12L) * keys.size
+
+        private companion object {
+            const val NO_ALBUM = Long.MIN_VALUE
+        }
+    }
+
+    /**
+     * The songs of one or more groups of a [Grouping]. Used as cache key by identity.
+     */
+    private inner class Members(
+        private val grouping: Grouping<T, *>, private val groups: IntArray
+    ) {
+        val size = groups.sumOf { grouping.count[it] }
+
+        fun first(): T? = groups.firstOrNull()?.let { grouping.songList[grouping.first[it]] }
+
+        // Calls action for each song in order, until it returns false.
+        private inline fun scan(action: (T) -> Boolean) {
+            for (group in groups) {
+                var left = grouping.count[group]
+                var i = grouping.first[group]
+                while (left > 0) {
+                    val song = grouping.songList[i++]
+                    if (!grouping.isInGroup(song, group)) continue
+                    left--
+                    if (!action(song)) return
+                }
+            }
+        }
+
+        fun materialize(): List<T> {
+            val out = ArrayList<T>(size)
+            scan { out.add(it) }
+            return out
+        }
+
+        // Same as LibraryGrouper's albumIdOf(), from what the grouping recorded.
+        fun albumId(): Long? {
+            if (groups.isEmpty()) return null
+            val albumId = grouping.albumIdOf(groups[0]) ?: return null
+            return if (groups.all { grouping.albumIdOf(it) == albumId }) albumId else null
+        }
+    }
+
+    private inner class LazyGenre(
+        override val id: Long?, private val members: Members
+    ) : Genre<T> {
+        override val title: String?
+            get() = members.first()?.let { fields.genre(it) }
+        override val songList: List<T>
+            get() = songs(members)
+    }
+
+    private inner class LazyDate(private val year: Int?, private val members: Members) : Date<T> {
+        override val id: Long
+            get() = year?.toLong() ?: 0L
+        override val title: String?
+            get() = year?.toString()
+        override val songList: List<T>
+            get() = songs(members)
+    }
+
+    private inner class LazyFileNode(
+        override val folderName: String,
+        override val folderList: Map<String, FileNode<T>>,
+        private val members: Members
+    ) : FileNode<T> {
+        override val albumId = members.albumId()
+        override val songList: List<T>
+            get() = songs(members)
+    }
+
+    private inner class FolderBuilder(val name: String) {
+        val children = LinkedHashMap<String, FolderBuilder>()
+        val groups = ArrayList<Int>(1)
+
+        fun build(dirs: Grouping<T, String?>, dirMembers: Array<Members>): FileNode<T> =
+            LazyFileNode(name, children.mapValuesTo(LinkedHashMap()) {
+                it.value.build(dirs, dirMembers)
+            }, if (groups.size == 1) dirMembers[groups[0]]
+                else Members(dirs, groups.toIntArray()))
+    }
+}
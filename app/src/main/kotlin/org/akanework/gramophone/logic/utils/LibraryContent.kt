@@ -0,0 +1,43 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+import uk.akane.libphonograph.items.Album
+import uk.akane.libphonograph.items.Artist
+import uk.akane.libphonograph.items.Date
+import uk.akane.libphonograph.items.FileNode
+import uk.akane.libphonograph.items.Genre
+import uk.akane.libphonograph.items.Playlist
+
+/**
+ * [LibraryContent] is one complete, immutable state of the library, ie. everything
+ * that ends up in [org.akanework.gramophone.ui.LibraryViewModel]. Unlike libphonograph's
+ * ReaderResult nothing in here is optional.
+ */
+data class LibraryContent<T>(
+    val songList: List<T>,
+    val albumList: List<Album<T>>,
+    val albumArtistList: List<Artist<T>>,
+    val artistList: List<Artist<T>>,
+    val genreList: List<Genre<T>>,
+    val dateList: List<Date<T>>,
+    val playlistList: List<Playlist<T>>,
+    val folderStructure: FileNode<T>,
+    val shallowFolder: FileNode<T>,
+    val folders: Set<String>
+)
@@ -0,0 +1,103 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+import androidx.media3.common.MediaItem
+import uk.akane.libphonograph.items.Item
+
+/**
+ * [LibraryDiff] is the difference between two [LibraryContent]s, computed once per load
+ * instead of once per adapter. Each list is compared by stable keys (media id for songs,
+ * id for everything else), the same keys adapters use to tell items apart.
+ */
+class LibraryDiff private constructor(private val changes: List<ChangeSet<*>>) {
+
+    companion object {
+        fun compute(old: LibraryContent<MediaItem>, new: LibraryContent<MediaItem>) =
+            LibraryDiff(listOfNotNull(
+                diff(old.songList, new.songList, MediaItem::mediaId, ::sameSong),
+                diffItems(old.albumList, new.albumList),
+                diffItems(old.artistList, new.artistList),
+                diffItems(old.albumArtistList, new.albumArtistList),
+                diffItems(old.genreList, new.genreList),
+                diffItems(old.dateList, new.dateList),
+                diffItems(old.playlistList, new.playlistList)
+            ))
+
+        // The SongTable row is part of MediaItem.equals(), but not of what is shown.
+        private fun sameSong(a: MediaItem, b: MediaItem) = a === b ||
+                (a.mediaMetadata == b.mediaMetadata &&
+                        a.localConfiguration?.uri == b.localConfiguration?.uri)
+
+        private fun <T : Item<MediaItem>> diffItems(old: List<T>, new: List<T>) =
+            diff(old, new, { it.id.toString() }) { a, b ->
+                a === b || (a.title == b.title && a.songList.size == b.songList.size &&
+                        a.songList.indices.all { sameSong(a.songList[it], b.songList[it]) })
+            }
+
+        private fun <T> diff(
+            old: List<T>, new: List<T>, key: (T) -> String, same: (T, T) -> Boolean
+        ): ChangeSet<T>? {
+            if (old === new) return null
+            val oldByKey = HashMap<String, T>(old.size * 2)
+            for (item in old) {
+                // Duplicate keys can't be told apart, leave those lists to the adapters.
+                if (oldByKey.put(key(item), item) != null) return null
+            }
+            val seen = HashSet<String>(new.size * 2)
+            val changed = HashMap<String, T>()
+            val added = ArrayList<T>()
+            for (item in new) {
+                val k = key(item)
+                if (!seen.add(k)) return null
+                val previous = oldByKey[k]
+                if (previous == null) {
+                    added.add(item)
+                } else if (!same(previous, item)) {
+                    changed[k] = item
+                }
+            }
+            val removed = oldByKey.keys.filterTo(HashSet()) { it !in seen }
+            return ChangeSet(old, new, removed, changed, added)
+        }
+    }
+
+    /**
+     * Turns [old] into [new]: items with a key in [removed] are gone, items in [changed]
+     * replace the item with the same key and [added] are new. Everything else is unchanged,
+     * but may be a different instance.
+     */
+    class ChangeSet<T>(
+        val old: List<T>,
+        val new: List<T>,
+        val removed: Set<String>,
+        val changed: Map<String, T>,
+        val added: List<T>
+    ) {
+        val size: Int
+            get() = removed.size + changed.size + added.size
+    }
+
+    /**
+     * @return the changes between [old] and [new] if both are one of the lists this diff
+     *  was computed for, null otherwise
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <T> changeSetFor(old: List<T>?, new: List<T>): ChangeSet<T>? =
+        changes.firstOrNull { it.old === old && it.new === new } as ChangeSet<T>?
+}
@@ -0,0 +1,499 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+import android.net.Uri
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import uk.akane.libphonograph.items.Album
+import uk.akane.libphonograph.items.Artist
+import uk.akane.libphonograph.items.Date
+import uk.akane.libphonograph.items.FileNode
+import uk.akane.libphonograph.items.Genre
+import uk.akane.libphonograph.items.Item
+import uk.akane.libphonograph.items.Playlist
+import uk.akane.libphonograph.reader.Reader
+
+/**
+ * [LibraryGrouper] derives albums, artists, genres, dates and folders from a plain song
+ * list, and can patch an existing [LibraryContent] with a small set of changed songs
+ * without touching groups that did not change. Untouched groups keep their instance,
+ * which keeps adapter diffs cheap.
+ *
+ * It is generic over the song type so it can be used with [androidx.media3.common.MediaItem]
+ * in the app and with plain objects in unit tests.
+ */
+class LibraryGrouper<T>(
+    private val fields: Fields<T>,
+    private val dispatcher: CoroutineDispatcher = Dispatchers.Default
+) {
+
+    interface Fields<T> {
+        fun id(item: T): Long
+        fun path(item: T): String?
+        fun albumId(item: T): Long?
+        fun albumTitle(item: T): String?
+        fun albumArtist(item: T): String?
+        fun artistId(item: T): Long?
+        fun artist(item: T): String?
+        fun genreId(item: T): Long?
+        fun genre(item: T): String?
+        fun year(item: T): Int?
+        fun cover(item: T): Uri?
+        fun addDate(item: T): Long?
+    }
+
+    class GroupedAlbum<T>(
+        override val id: Long?,
+        override val title: String?,
+        override val albumArtist: String?,
+        override val albumArtistId: Long?,
+        override val albumYear: Int?,
+        override val cover: Uri?,
+        override val songList: List<T>
+    ) : Album<T>
+
+    class GroupedArtist<T>(
+        override val id: Long?,
+        override val title: String?,
+        override val songList: List<T>,
+        override val albumList: List<Album<T>>
+    ) : Artist<T>
+
+    class GroupedGenre<T>(
+        override val id: Long?,
+        override val title: String?,
+        override val songList: List<T>
+    ) : Genre<T>
+
+    class GroupedDate<T>(
+        override val id: Long,
+        override val title: String?,
+        override val songList: List<T>
+    ) : Date<T>
+
+    class GroupedPlaylist<T>(
+        override val id: Long?,
+        override val title: String?,
+        override val songList: List<T>,
+        val recentlyAdded: Boolean
+    ) : Playlist<T>
+
+    class GroupedFileNode<T>(
+        override val folderName: String,
+        override val folderList: Map<String, FileNode<T>>,
+        override val songList: List<T>,
+        override val albumId: Long?
+    ) : FileNode<T>
+
+    fun group(songList: List<T>, playlistList: List<Playlist<T>>): LibraryContent<T> {
+        val albumList = groupBy(songList, fields::albumId) { key, songs -> album(key, songs) }
+        val albumMap = albumList.associateBy { it.id }
+        val (folderStructure, shallowFolder) = folders(
+            groupBy(songList, { parentOf(fields.path(it)) }) { dir, songs -> Pair(dir, songs) })
+        return LibraryContent(
+            songList = songList,
+            albumList = albumList,
+            albumArtistList = albumArtists(albumList),
+            artistList = groupBy(songList, fields::artistId) { key, songs ->
+                artist(key, songs, albumMap)
+            },
+            genreList = groupBy(songList, fields::genreId) { key, songs -> genre(key, songs) },
+            dateList = groupBy(songList, fields::year) { key, songs -> date(key, songs) },
+            playlistList = playlistList,
+            folderStructure = folderStructure,
+            shallowFolder = shallowFolder,
+            folders = shallowFolder.folderList.keys
+        )
+    }
+
+    /**
+     * Same result as [group], but all groupings are computed concurrently on [dispatcher].
+     * Each grouping is split into chunks of the song list which are bucketed in parallel and
+     * merged in chunk order, so the output order is exactly the one of [group].
+     */
+    suspend fun groupParallel(
+        songList: List<T>, playlistList: List<Playlist<T>>
+    ): LibraryContent<T> = coroutineScope {
+        // Chunks index into the list, so make sure that is cheap.
+        val songs = if (songList is RandomAccess) songList else ArrayList(songList)
+        val albums = async(dispatcher) {
+            groupByParallel(songs, fields::albumId) { key, list -> album(key, list) }
+        }
+        val genres = async(dispatcher) {
+            groupByParallel(songs, fields::genreId) { key, list -> genre(key, list) }
+        }
+        val dates = async(dispatcher) {
+            groupByParallel(songs, fields::year) { key, list -> date(key, list) }
+        }
+        val folders = async(dispatcher) {
+            folders(groupByParallel(songs, { parentOf(fields.path(it)) }) { dir, list ->
+                Pair(dir, list)
+            })
+        }
+        val albumList = albums.await()
+        val albumMap = albumList.associateBy { it.id }
+        val artists = async(dispatcher) {
+            groupByParallel(songs, fields::artistId) { key, list -> artist(key, list, albumMap) }
+        }
+        val albumArtists = async(dispatcher) { albumArtists(albumList) }
+        val (folderStructure, shallowFolder) = folders.await()
+        LibraryContent(
+            songList = songList,
+            albumList = albumList,
+            albumArtistList = albumArtists.await(),
+            artistList = artists.await(),
+            genreList = genres.await(),
+            dateList = dates.await(),
+            playlistList = playlistList,
+            folderStructure = folderStructure,
+            shallowFolder = shallowFolder,
+            folders = shallowFolder.folderList.keys
+        )
+    }
+
+    /**
+     * Apply a MediaStore delta to [old]. [changed] contains new instances of inserted and
+     * updated songs, [deleted] contains the ids of songs which are gone.
+     */
+    fun patch(old: LibraryContent<T>, changed: List<T>, deleted: Set<Long>): LibraryContent<T> {
+        if (changed.isEmpty() && deleted.isEmpty()) return old
+        val changedMap = HashMap<Long, T>(changed.size)
+        changed.forEach { changedMap[fields.id(it)] = it }
+        val touchedSongs = ArrayList<T>(changed.size + deleted.size)
+        val songList = ArrayList<T>(old.songList.size + changed.size)
+        val seen = HashSet<Long>(changed.size)
+        for (song in old.songList) {
+            val id = fields.id(song)
+            if (id in deleted) {
+                touchedSongs.add(song)
+                continue
+            }
+            val replacement = changedMap[id]
+            if (replacement != null) {
+                touchedSongs.add(song)
+                seen.add(id)
+                songList.add(replacement)
+            } else {
+                songList.add(song)
+            }
+        }
+        for (song in changed) {
+            if (seen.add(fields.id(song))) {
+                songList.add(song)
+            }
+        }
+        touchedSongs.addAll(changed)
+
+        val touchedAlbums = touchedSongs.mapTo(HashSet()) { fields.albumId(it) }
+        val albumList = patchGroups(old.albumList, songList, touchedAlbums,
+            { it.id }, fields::albumId) { key, songs -> album(key, songs) }
+        val albumMap = albumList.associateBy { it.id }
+
+        // An artist's album list holds album instances, so artists of replaced albums
+        // have to be rebuilt too, even if none of their own songs changed.
+        val touchedArtists = touchedSongs.mapTo(HashSet()) { fields.artistId(it) }
+        old.artistList.forEach { artist ->
+            if (artist.albumList.any { it.id in touchedAlbums }) touchedArtists.add(artist.id)
+        }
+        val artistList = patchGroups(old.artistList, songList, touchedArtists,
+            { it.id }, fields::artistId) { key, songs -> artist(key, songs, albumMap) }
+
+        val touchedAlbumArtists = HashSet<String?>()
+        old.albumList.forEach { if (it.id in touchedAlbums) touchedAlbumArtists.add(it.albumArtist) }
+        albumList.forEach { if (it.id in touchedAlbums) touchedAlbumArtists.add(it.albumArtist) }
+        val albumArtistList = patchAlbumArtists(old.albumArtistList, albumList, touchedAlbumArtists)
+
+        val genreList = patchGroups(old.genreList, songList,
+            touchedSongs.mapTo(HashSet()) { fields.genreId(it) },
+            { it.id }, fields::genreId) { key, songs -> genre(key, songs) }
+        val dateList = patchGroups(old.dateList, songList,
+            touchedSongs.mapTo(HashSet()) { fields.year(it) },
+            { it.id?.toInt()?.takeIf { year -> year != 0 } }, fields::year
+        ) { key, songs -> date(key, songs) }
+
+        val playlistList = old.playlistList.map { playlist ->
+            // Inserted songs may belong into Recently Added, it is derived from the library.
+            if (playlist.isRecentlyAdded()) recentlyAdded(songList, playlist)
+            else if (playlist.songList.none { fields.id(it) in deleted || fields.id(it) in changedMap })
+                playlist
+            else GroupedPlaylist(playlist.id, playlist.title, playlist.songList.mapNotNull {
+                val id = fields.id(it)
+                if (id in deleted) null else changedMap[id] ?: it
+            }, playlist.isRecentlyAdded())
+        }
+
+        val touchedDirs = touchedSongs.mapNotNullTo(HashSet()) { parentOf(fields.path(it)) }
+        val dirSongs = collectDirSongs(songList, touchedDirs)
+        val folderStructure = patchFolder(old.folderStructure, old.folderStructure.folderName,
+            "", touchedDirs, dirSongs)!!
+        val shallowFolder = patchShallowFolder(old.shallowFolder, touchedDirs, dirSongs)
+        return LibraryContent(
+            songList = songList,
+            albumList = albumList,
+            albumArtistList = albumArtistList,
+            artistList = artistList,
+            genreList = genreList,
+            dateList = dateList,
+            playlistList = playlistList,
+            folderStructure = folderStructure,
+            shallowFolder = shallowFolder,
+            folders = shallowFolder.folderList.keys
+        )
+    }
+
+    /**
+     * Recently Added as a full load would show it for [songList]: songs added in the last
+     * two weeks, newest first. [old] is kept if it already has exactly those songs.
+     */
+    fun recentlyAdded(songList: List<T>, old: Playlist<T>? = null): Playlist<T> {
+        val minAddDate = System.currentTimeMillis() / 1000 - RECENTLY_ADDED_SECONDS
+        val songs = songList.filter { (fields.addDate(it) ?: return@filter false) >= minAddDate }
+            .sortedByDescending { fields.addDate(it) }
+        if (old != null && old.songList.size == songs.size &&
+            songs.indices.all { old.songList[it] === songs[it] }) return old
+        return GroupedPlaylist(old?.id, old?.title, songs, true)
+    }
+
+    private fun album(key: Long?, songs: List<T>): Album<T> {
+        val first = songs.first()
+        return GroupedAlbum(
+            id = key,
+            title = fields.albumTitle(first),
+            albumArtist = songs.firstNotNullOfOrNull { fields.albumArtist(it) }
+                ?: fields.artist(first),
+            albumArtistId = null,
+            albumYear = songs.maxOfOrNull { fields.year(it) ?: 0 }?.takeIf { it != 0 },
+            cover = fields.cover(first),
+            songList = songs
+        )
+    }
+
+    private fun artist(key: Long?, songs: List<T>, albumMap: Map<Long?, Album<T>>): Artist<T> {
+        val albums = LinkedHashSet<Album<T>>()
+        songs.forEach { song -> albumMap[fields.albumId(song)]?.let { albums.add(it) } }
+        return GroupedArtist(key, fields.artist(songs.first()), songs, albums.toList())
+    }
+
+    private fun genre(key: Long?, songs: List<T>): Genre<T> =
+        GroupedGenre(key, fields.genre(songs.first()), songs)
+
+    private fun date(key: Int?, songs: List<T>): Date<T> =
+        GroupedDate(key?.toLong() ?: 0L, key?.toString(), songs)
+
+    private fun albumArtist(title: String?, albums: List<Album<T>>): Artist<T> =
+        GroupedArtist(title?.hashCode()?.toLong(), title, albums.flatMap { it.songList }, albums)
+
+    private fun albumArtists(albumList: List<Album<T>>): List<Artist<T>> {
+        val buckets = LinkedHashMap<String?, MutableList<Album<T>>>()
+        albumList.forEach { buckets.getOrPut(it.albumArtist) { ArrayList() }.add(it) }
+        return buckets.map { (title, albums) -> albumArtist(title, albums) }
+    }
+
+    private fun patchAlbumArtists(
+        old: List<Artist<T>>, albumList: List<Album<T>>, touched: Set<String?>
+    ): List<Artist<T>> {
+        if (touched.isEmpty()) return old
+        val buckets = LinkedHashMap<String?, MutableList<Album<T>>>()
+        albumList.forEach {
+            if (it.albumArtist in touched) buckets.getOrPut(it.albumArtist) { ArrayList() }.add(it)
+        }
+        val out = ArrayList<Artist<T>>(old.size + buckets.size)
+        for (artist in old) {
+            if (artist.title !in touched) {
+                out.add(artist)
+                continue
+            }
+            buckets.remove(artist.title)?.let { out.add(albumArtist(artist.title, it)) }
+        }
+        buckets.forEach { (title, albums) -> out.add(albumArtist(title, albums)) }
+        return out
+    }
+
+    /**
+     * @param dirs songs bucketed by their parent directory, songs without one have a null key
+     */
+    private fun folders(dirs: List<Pair<String?, List<T>>>): Pair<FileNode<T>, FileNode<T>> {
+        val root = FolderBuilder<T>("")
+        val shallow = LinkedHashMap<String, List<T>>()
+        dirs.forEach { (dir, songs) -> if (dir != null) shallow[dir] = songs }
+        shallow.forEach { (dir, songs) ->
+            var node = root
+            dir.split('/').forEach { segment ->
+                if (segment.isNotEmpty()) {
+                    node = node.children.getOrPut(segment) { FolderBuilder(segment) }
+                }
+            }
+            node.songs.addAll(songs)
+        }
+        return Pair(root.build(::albumIdOf), GroupedFileNode("", shallow.mapValuesTo(LinkedHashMap()) {
+            GroupedFileNode(it.key, emptyMap(), it.value, albumIdOf(it.value))
+        }, emptyList(), null))
+    }
+
+    private fun collectDirSongs(songList: List<T>, dirs: Set<String>): Map<String, List<T>> {
+        val out = HashMap<String, MutableList<T>>()
+        if (dirs.isEmpty()) return out
+        for (song in songList) {
+            val path = fields.path(song) ?: continue
+            val slash = path.lastIndexOf('/')
+            // Avoid allocating a substring for every song if only a few folders changed.
+            val dir = if (dirs.size > 16) path.substring(0, slash.coerceAtLeast(0)).takeIf {
+                it in dirs
+            } else dirs.firstOrNull { it.length == slash && path.startsWith(it) }
+            if (dir != null) out.getOrPut(dir) { ArrayList() }.add(song)
+        }
+        return out
+    }
+
+    private fun patchFolder(
+        node: FileNode<T>?, name: String, path: String,
+        touched: Set<String>, dirSongs: Map<String, List<T>>
+    ): FileNode<T>? {
+        val below = touched.filter { it == path || it.startsWith("$path/") }
+        if (node != null && below.isEmpty()) return node
+        val childNames = LinkedHashSet<String>()
+        node?.folderList?.keys?.let { childNames.addAll(it) }
+        below.forEach { dir ->
+            if (dir != path) {
+                childNames.add(dir.substring(path.length + 1).substringBefore('/'))
+            }
+        }
+        val children = LinkedHashMap<String, FileNode<T>>()
+        childNames.forEach { child ->
+            patchFolder(node?.folderList?.get(child), child, "$path/$child", touched, dirSongs)
+                ?.let { children[child] = it }
+        }
+        val songs = if (path in touched) dirSongs[path] ?: emptyList() else node?.songList ?: emptyList()
+        if (path.isNotEmpty() && songs.isEmpty() && children.isEmpty()) return null
+        return GroupedFileNode(name, children, songs, albumIdOf(songs))
+    }
+
+    private fun patchShallowFolder(
+        old: FileNode<T>, touched: Set<String>, dirSongs: Map<String, List<T>>
+    ): FileNode<T> {
+        if (touched.isEmpty()) return old
+        val folderList = LinkedHashMap(old.folderList)
+        touched.forEach { dir ->
+            val songs = dirSongs[dir]
+            if (songs.isNullOrEmpty()) {
+                folderList.remove(dir)
+            } else {
+                folderList[dir] = GroupedFileNode(dir, emptyMap(), songs, albumIdOf(songs))
+            }
+        }
+        return GroupedFileNode(old.folderName, folderList, old.songList, old.albumId)
+    }
+
+    private fun albumIdOf(songs: List<T>): Long? {
+        val albumId = songs.firstOrNull()?.let { fields.albumId(it) } ?: return null
+        return if (songs.all { fields.albumId(it) == albumId }) albumId else null
+    }
+
+    private inline fun <K, G> groupBy(
+        songList: List<T>, songKey: (T) -> K, build: (K, List<T>) -> G
+    ): List<G> {
+        val buckets = LinkedHashMap<K, MutableList<T>>()
+        songList.forEach { buckets.getOrPut(songKey(it)) { ArrayList() }.add(it) }
+        return buckets.map { (key, songs) -> build(key, songs) }
+    }
+
+    private suspend fun <K, G> groupByParallel(
+        songList: List<T>, songKey: (T) -> K, build: (K, List<T>) -> G
+    ): List<G> = coroutineScope {
+        val partial = chunks(songList.size).map { range ->
+            async(dispatcher) {
+                val buckets = LinkedHashMap<K, MutableList<T>>()
+                for (i in range) {
+                    val song = songList[i]
+                    buckets.getOrPut(songKey(song)) { ArrayList() }.add(song)
+                }
+                buckets
+            }
+        }.awaitAll()
+        // Merging in chunk order keeps keys in order of first occurrence, like groupBy.
+        val merged = partial.first()
+        for (i in 1 until partial.size) {
+            partial[i].forEach { (key, songs) ->
+                val bucket = merged[key]
+                if (bucket != null) bucket.addAll(songs) else merged[key] = songs
+            }
+        }
+        val entries = merged.entries.toList()
+        chunks(entries.size).map { range ->
+            async(dispatcher) { range.map { build(entries[it].key, entries[it].value) } }
+        }.awaitAll().flatten()
+    }
+
+    private fun chunks(size: Int): List<IntRange> {
+        val count = (size / MIN_CHUNK_SIZE)
+            .coerceIn(1, Runtime.getRuntime().availableProcessors())
+        val chunkSize = (size + count - 1) / count
+        return List(count) { i -> i * chunkSize until minOf(size, (i + 1) * chunkSize) }
+    }
+
+    private inline fun <K, G : Item<T>> patchGroups(
+        old: List<G>, songList: List<T>, touched: Set<K>,
+        groupKey: (G) -> K, songKey: (T) -> K, build: (K, List<T>) -> G
+    ): List<G> {
+        if (touched.isEmpty()) return old
+        val buckets = LinkedHashMap<K, MutableList<T>>()
+        for (song in songList) {
+            val key = songKey(song)
+            if (key in touched) buckets.getOrPut(key) { ArrayList() }.add(song)
+        }
+        val out = ArrayList<G>(old.size + buckets.size)
+        for (group in old) {
+            val key = groupKey(group)
+            if (key !in touched) {
+                out.add(group)
+                continue
+            }
+            // If the bucket is gone, all songs of this group were deleted or moved away.
+            buckets.remove(key)?.let { out.add(build(key, it)) }
+        }
+        buckets.forEach { (key, songs) -> out.add(build(key, songs)) }
+        return out
+    }
+
+    private class FolderBuilder<T>(val name: String) {
+        val children = LinkedHashMap<String, FolderBuilder<T>>()
+        val songs = ArrayList<T>()
+
+        fun build(albumIdOf: (List<T>) -> Long?): FileNode<T> = GroupedFileNode(name,
+            children.mapValuesTo(LinkedHashMap()) { it.value.build(albumIdOf) }, songs,
+            albumIdOf(songs))
+    }
+
+    companion object {
+        // Below this, splitting a grouping costs more than it saves
+        private const val MIN_CHUNK_SIZE = 4096
+        private const val RECENTLY_ADDED_SECONDS = 14 * 24 * 60 * 60L
+
+        fun parentOf(path: String?): String? {
+            val slash = path?.lastIndexOf('/') ?: return null
+            return if (slash > 0) path.substring(0, slash) else null
+        }
+    }
+}
+
+fun Playlist<*>.isRecentlyAdded(): Boolean =
+    this is Reader.RecentlyAdded<*> || (this as? LibraryGrouper.GroupedPlaylist<*>)?.recentlyAdded == true
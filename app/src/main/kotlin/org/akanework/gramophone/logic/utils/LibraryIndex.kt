@@ -0,0 +1,48 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+import androidx.media3.common.MediaItem
+
+/**
+ * [LibraryIndex] maps ids to positions in the lists of one [LibraryContent], so that
+ * navigating from a song to its album, artist or details doesn't have to scan the library.
+ * Positions are only valid for the lists of the content the index was built from. Albums
+ * and artists are found by id, which is what [LibraryGrouper] groups them by.
+ */
+class LibraryIndex(content: LibraryContent<MediaItem>) {
+
+    private val songPositions = HashMap<Long, Int>(content.songList.size * 2)
+    private val albumPositions = HashMap<Long, Int>(content.albumList.size * 2)
+    private val artistPositions = HashMap<Long, Int>(content.artistList.size * 2)
+
+    init {
+        content.songList.forEachIndexed { i, song ->
+            song.mediaId.toLongOrNull()?.let { songPositions[it] = i }
+        }
+        content.albumList.forEachIndexed { i, album -> album.id?.let { albumPositions[it] = i } }
+        content.artistList.forEachIndexed { i, artist -> artist.id?.let { artistPositions[it] = i } }
+    }
+
+    fun songPosition(mediaId: String?): Int? =
+        mediaId?.toLongOrNull()?.let { songPositions[it] }
+
+    fun albumPosition(albumId: Long?): Int? = albumId?.let { albumPositions[it] }
+
+    fun artistPosition(artistId: Long?): Int? = artistId?.let { artistPositions[it] }
+}
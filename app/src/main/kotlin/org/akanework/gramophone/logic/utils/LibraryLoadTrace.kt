@@ -0,0 +1,88 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+import android.util.Log
+import androidx.tracing.trace
+import org.akanework.gramophone.BuildConfig
+import java.text.DateFormat
+import java.util.Date
+
+/**
+ * [LibraryLoadTrace] records how long each phase of one library load took and how many
+ * rows it handled. Phases are emitted as trace sections as well, so they show up in
+ * system traces. The last [HISTORY_SIZE] finished loads are kept for the debug settings.
+ */
+class LibraryLoadTrace(val kind: String) {
+
+    companion object {
+        private const val TAG = "LibraryLoadTrace"
+        private const val HISTORY_SIZE = 10
+        private val history = ArrayDeque<LibraryLoadTrace>(HISTORY_SIZE)
+
+        /**
+         * Finished loads, oldest first.
+         */
+        fun history(): List<LibraryLoadTrace> = synchronized(history) { history.toList() }
+    }
+
+    class Phase(val name: String, val durationNs: Long, val rows: Int?)
+
+    private val startedAt = System.currentTimeMillis()
+    private val startNs = System.nanoTime()
+    private var totalNs = 0L
+    private val phases = ArrayList<Phase>()
+
+    /**
+     * Run [block] as phase [name], [rows] tells how many rows the result consists of.
+     */
+    inline fun <T> phase(
+        name: String, rows: (T) -> Int? = { null }, crossinline block: () -> T
+    ): T {
+        val start = System.nanoTime()
+        val result = trace("Gramophone:$name", block)
+        record(name, System.nanoTime() - start, rows(result))
+        return result
+    }
+
+    fun record(name: String, durationNs: Long, rows: Int? = null) {
+        synchronized(phases) { phases.add(Phase(name, durationNs, rows)) }
+    }
+
+    fun phases(): List<Phase> = synchronized(phases) { phases.toList() }
+
+    fun finish() {
+        totalNs = System.nanoTime() - startNs
+        synchronized(history) {
+            if (history.size == HISTORY_SIZE) history.removeFirst()
+            history.addLast(this)
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, toString())
+        }
+    }
+
+    override fun toString() = buildString {
+        append(DateFormat.getTimeInstance().format(Date(startedAt)))
+        append(" $kind: ${totalNs / 1000000}ms")
+        phases().forEach {
+            append("\n  ${it.name}: ${it.durationNs / 1000000}ms")
+            it.rows?.let { rows -> append(" ($rows rows)") }
+        }
+    }
+}
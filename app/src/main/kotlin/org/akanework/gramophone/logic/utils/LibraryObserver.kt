@@ -0,0 +1,142 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+import android.content.Context
+import android.database.ContentObserver
+import android.net.Uri
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.provider.MediaStore
+import android.util.Log
+import androidx.preference.PreferenceManager
+import org.akanework.gramophone.BuildConfig
+import org.akanework.gramophone.R
+
+/**
+ * [LibraryObserver] listens to MediaStore change notifications for songs and playlists and
+ * coalesces bursts of them (ie. copying a whole album) into one [Change], which is handed
+ * to the [Listener] once no new notification arrived for the configured delay.
+ *
+ * There is one instance per process. The observer stays registered as long as anyone holds
+ * a reference from [acquire], changes which arrive while no listener is set are kept until
+ * one is set. Must only be used from the main thread.
+ */
+class LibraryObserver(private val context: Context) {
+
+    companion object {
+        private const val TAG = "LibraryObserver"
+        // Keep flushing during an endless stream of notifications at least every few windows
+        private const val MAX_DELAY_FACTOR = 4
+    }
+
+    /**
+     * @param ids MediaStore ids of songs which were reported as changed, may be incomplete
+     * @param fullRescan true if something changed which can't be applied incrementally
+     */
+    class Change(val ids: Set<Long>, val fullRescan: Boolean)
+
+    fun interface Listener {
+        fun onLibraryChanged(change: Change)
+    }
+
+    private val handler = Handler(Looper.getMainLooper())
+    private val prefs = PreferenceManager.getDefaultSharedPreferences(context)
+    private var refCount = 0
+    private var listener: Listener? = null
+    private var pending = false
+    private var pendingFullRescan = false
+    private val pendingIds = HashSet<Long>()
+    private var firstChangeAt = 0L
+    private var scheduled = false
+    private val flushRunnable = Runnable {
+        scheduled = false
+        flush()
+    }
+
+    private val observer = object : ContentObserver(handler) {
+        override fun onChange(selfChange: Boolean, uri: Uri?) {
+            record(uri)
+        }
+    }
+
+    fun acquire() {
+        if (refCount++ == 0) {
+            context.contentResolver.registerContentObserver(
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, observer)
+            context.contentResolver.registerContentObserver(
+                MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI, true, observer)
+        }
+    }
+
+    fun release() {
+        if (refCount == 0) throw IllegalStateException("release() without acquire()")
+        if (--refCount == 0) {
+            context.contentResolver.unregisterContentObserver(observer)
+            handler.removeCallbacks(flushRunnable)
+            scheduled = false
+        }
+    }
+
+    fun setListener(listener: Listener) {
+        this.listener = listener
+        // Deliver what was buffered while nobody was listening.
+        if (pending && !scheduled) {
+            scheduled = true
+            handler.post(flushRunnable)
+        }
+    }
+
+    fun removeListener(listener: Listener) {
+        if (this.listener === listener) this.listener = null
+    }
+
+    private fun record(uri: Uri?) {
+        // Playlists are only read by full loads, any other uri is a hint for the
+        // incremental sync, which finds changes on its own if there is no id.
+        if (uri?.pathSegments?.contains("playlists") == true) {
+            pendingFullRescan = true
+        } else {
+            uri?.lastPathSegment?.toLongOrNull()?.let { pendingIds.add(it) }
+        }
+        val now = SystemClock.uptimeMillis()
+        if (!pending) {
+            pending = true
+            firstChangeAt = now
+        }
+        val delay = prefs.getInt("library_refresh_delay",
+            context.resources.getInteger(R.integer.refresh_delay_default_sec)) * 1000L
+        handler.removeCallbacks(flushRunnable)
+        scheduled = true
+        handler.postAtTime(flushRunnable, minOf(now + delay, firstChangeAt + delay * MAX_DELAY_FACTOR))
+    }
+
+    private fun flush() {
+        val listener = listener ?: return
+        if (!pending) return
+        val change = Change(HashSet(pendingIds), pendingFullRescan)
+        pending = false
+        pendingFullRescan = false
+        pendingIds.clear()
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "library changed: ${change.ids.size} ids, fullRescan=${change.fullRescan}")
+        }
+        listener.onLibraryChanged(change)
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+import android.content.Context
+import android.util.Log
+import androidx.lifecycle.MutableLiveData
+import androidx.media3.common.MediaItem
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import org.akanework.gramophone.BuildConfig
+import org.akanework.gramophone.logic.hasAudioPermission
+import org.akanework.gramophone.logic.utils.MediaStoreUtils.loadSnapshotWithInCoroutine
+import org.akanework.gramophone.logic.utils.MediaStoreUtils.updateLibraryIncrementallyWithInCoroutine
+import org.akanework.gramophone.logic.utils.MediaStoreUtils.updateLibraryWithInCoroutine
+import uk.akane.libphonograph.items.Album
+import uk.akane.libphonograph.items.Artist
+import uk.akane.libphonograph.items.Date
+import uk.akane.libphonograph.items.FileNode
+import uk.akane.libphonograph.items.Genre
+import uk.akane.libphonograph.items.Playlist
+import java.io.File
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * [LibraryRepository] holds the one copy of the library in this process. The activity (via
+ * [org.akanework.gramophone.ui.LibraryViewModel]) and the playback service share it, so
+ * whoever needs the library first pays for loading it and everyone else reuses it.
+ *
+ * Must be created on the main thread, loads happen one after another in the background.
+ */
+class LibraryRepository(context: Context, private val libraryObserver: LibraryObserver) {
+
+    companion object {
+        private const val TAG = "LibraryRepository"
+        // Share of the heap song lists of lazy groups may use in memory saving mode.
+        private const val BUDGET_HEAP_FRACTION = 256
+    }
+
+    private val context = context.applicationContext
+    val mediaItemList: MutableLiveData<List<MediaItem>> = MutableLiveData()
+    val albumItemList: MutableLiveData<List<Album<MediaItem>>> = MutableLiveData()
+    val albumArtistItemList: MutableLiveData<List<Artist<MediaItem>>> = MutableLiveData()
+    val artistItemList: MutableLiveData<List<Artist<MediaItem>>> = MutableLiveData()
+    val genreItemList: MutableLiveData<List<Genre<MediaItem>>> = MutableLiveData()
+    val dateItemList: MutableLiveData<List<Date<MediaItem>>> = MutableLiveData()
+    val playlistList: MutableLiveData<List<Playlist<MediaItem>>> = MutableLiveData()
+    val folderStructure: MutableLiveData<FileNode<MediaItem>> = MutableLiveData()
+    val shallowFolderStructure: MutableLiveData<FileNode<MediaItem>> = MutableLiveData()
+    val allFolderSet: MutableLiveData<Set<String>> = MutableLiveData()
+    // Only set while a first load publishes songs page by page, null otherwise.
+    val loadProgress: MutableLiveData<LoadProgress?> = MutableLiveData()
+    val incrementalSync = IncrementalLibrarySync()
+    val budget = LibraryBudget(MediaStoreUtils.MediaItemFields,
+        Runtime.getRuntime().maxMemory() / BUDGET_HEAP_FRACTION)
+
+    /**
+     * The content which was loaded last. Set under the [incrementalSync] lock before the
+     * LiveData values are posted, so it can be used from background threads right after
+     * a load finished.
+     */
+    @Volatile
+    var latestContent: LibraryContent<MediaItem>? = null
+
+    /**
+     * Index for the lists which are currently posted, replaced together with them on the
+     * main thread. Null while no library is loaded or the lists are being replaced.
+     */
+    var index: LibraryIndex? = null
+
+    /**
+     * Content whose lists are currently posted, and how they differ from the lists posted
+     * before them. Both are set on the main thread right before the lists are posted, the
+     * diff is dropped again once they are, so that it doesn't keep the old lists alive.
+     */
+    @Volatile
+    var publishedContent: LibraryContent<MediaItem>? = null
+        private set
+    var diff: LibraryDiff? = null
+
+    fun setPublished(content: LibraryContent<MediaItem>, diff: LibraryDiff?) {
+        publishedContent = content
+        this.diff = diff
+    }
+
+    private val searchLock = Any()
+    private var searchIndex: SearchIndex<MediaItem>? = null
+    private var librarySearch: LibrarySearch<MediaItem>? = null
+    private var lyricsIndex: LyricsIndex<MediaItem>? = null
+    // Reads lyrics in the background, one update after another.
+    private val lyricsUpdater = Executors.newSingleThreadExecutor().asCoroutineDispatcher()
+    // Songs the lyrics index should be updated for and the diff to them, only the latest
+    // load counts.
+    private val pendingLyricsSongs = AtomicReference<Pair<List<MediaItem>, LibraryDiff?>?>()
+
+    /**
+     * Index for searching the songs of [latestContent], null if there is none yet. Built on
+     * first use, which takes a while for large libraries, so don't call this on the main
+     * thread.
+     */
+    fun searchIndex(): SearchIndex<MediaItem>? = synchronized(searchLock) {
+        val songs = latestContent?.songList ?: return null
+        // Normally kept up to date by updateSearchIndex(), this is a no-op then.
+        searchIndex?.also { it.update(songs, null) }
+            ?: SearchIndex(MediaStoreUtils.SearchFields, songs).also { searchIndex = it }
+    }
+
+    /**
+     * Index for searching the albums, artists, genres, ... of [publishedContent], null if
+     * there is none yet. Built on first use after each load, don't call this on the main
+     * thread.
+     */
+    fun librarySearch(): LibrarySearch<MediaItem>? = synchronized(searchLock) {
+        val content = publishedContent ?: return null
+        librarySearch?.takeIf { it.content === content }
+            ?: LibrarySearch(content).also { librarySearch = it }
+    }
+
+    /**
+     * Index for searching the lyrics of [latestContent], null if there is none yet. The
+     * first call starts reading the lyrics of songs which are new or changed since the last
+     * time in the background, until that is done only some songs are found.
+     */
+    fun lyricsIndex(): LyricsIndex<MediaItem>? = synchronized(searchLock) {
+        lyricsIndex ?: run {
+            val songs = latestContent?.songList ?: return null
+            LyricsIndex(File(context.cacheDir, "lyrics.index"),
+                MediaStoreUtils.LyricsFields(context)).also {
+                lyricsIndex = it
+                updateLyricsIndex(it, songs, null)
+            }
+        }
+    }
+
+    private fun updateLyricsIndex(
+        index: LyricsIndex<MediaItem>, songs: List<MediaItem>, diff: LibraryDiff?
+    ) {
+        pendingLyricsSongs.set(Pair(songs, diff))
+        CoroutineScope(lyricsUpdater).launch {
+            // Another update which was scheduled later already took care of it. If loads were
+            // skipped, the diff doesn't start from what the index has and is ignored.
+            val (latest, latestDiff) = pendingLyricsSongs.getAndSet(null) ?: return@launch
+            index.update(latest, latestDiff)
+        }
+    }
+
+    /**
+     * Patch the search indices, if anyone searched so far, with the changes of a load.
+     */
+    fun updateSearchIndex(songs: List<MediaItem>, diff: LibraryDiff?) {
+        synchronized(searchLock) {
+            // Rebuilt for the new content on next use, don't keep the old one alive.
+            librarySearch = null
+            lyricsIndex?.let { updateLyricsIndex(it, songs, diff) }
+            val index = searchIndex ?: return
+            index.update(songs, diff?.changeSetFor(index.songs, songs))
+        }
+    }
+
+    data class LoadProgress(val loaded: Int, val total: Int) {
+        val percent: Int
+            get() = if (total == 0) 0 else (loaded * 100 / total).coerceAtMost(100)
+    }
+
+    private val loadMutex = Mutex()
+    private var requested = false
+    private val observerListener = LibraryObserver.Listener {
+        // Changes during the first load are picked up by the reconcile after it.
+        if (incrementalSync.hasBaseline) refresh(it)
+    }
+
+    init {
+        libraryObserver.setListener(observerListener)
+    }
+
+    /**
+     * Bring the library up to date. If it was loaded before, only changes since then are
+     * read. On cold start, the snapshot written by the last load is shown first and
+     * reconciled with MediaStore afterwards. Must be called on the main thread.
+     *
+     * @param change what [LibraryObserver] saw changing, if this update was triggered by it
+     * @param onShown called once there is something to show, which may be before [then]
+     * @param then called once the library is up to date
+     */
+    fun refresh(
+        change: LibraryObserver.Change? = null, onShown: (() -> Unit)? = null,
+        then: (() -> Unit)? = null
+    ) {
+        requested = true
+        CoroutineScope(Dispatchers.Default).launch {
+            // One load at a time, a second one then only has to catch up with the first.
+            loadMutex.withLock {
+                val onDone = {
+                    onShown?.let { it() }
+                    then?.let { it() }
+                }
+                val hasBaseline = incrementalSync.hasBaseline
+                if (change?.fullRescan == true) {
+                    updateLibraryWithInCoroutine(this@LibraryRepository, context, onDone)
+                } else if (!hasBaseline &&
+                    loadSnapshotWithInCoroutine(this@LibraryRepository, context, onShown)) {
+                    updateLibraryIncrementallyWithInCoroutine(this@LibraryRepository, context,
+                        emptySet(), then)
+                } else if (hasBaseline) {
+                    updateLibraryIncrementallyWithInCoroutine(this@LibraryRepository, context,
+                        change?.ids ?: emptySet(), onDone)
+                } else {
+                    // Nothing to show yet, so show songs as they are read. The load calls
+                    // onShown itself, with the first page.
+                    updateLibraryWithInCoroutine(this@LibraryRepository, context, then,
+                        onShown ?: {})
+                }
+            }
+        }
+    }
+
+    /**
+     * Start loading the library if nobody did so far, for users which don't need it right
+     * now but likely will soon (ie. the playback service being started without the UI).
+     * Must be called on the main thread.
+     */
+    fun warmUp() {
+        if (requested) return
+        if (!context.hasAudioPermission()) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "not warming up library, no permission")
+            }
+            return
+        }
+        refresh()
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package org.akanework.gramophone.logic.utils
+
+import uk.akane.libphonograph.items.Album
+import uk.akane.libphonograph.items.FileNode
+import uk.akane.libphonograph.items.Item
+
+/**
+ * [LibrarySearch] finds albums, artists, album artists, genres, dates, playlists and folders
+ * by name. All of them share one [SearchIndex], so a query costs one lookup however many
+ * kinds of items there are, and [sections] splits its results into capped sections in a
+ * single pass. Albums are found by their album artist too.
+ *
+ * Built for one [LibraryContent], build a new one once that is replaced. It is generic over
+ * the song type like [LibraryGrouper].
+ */
+class LibrarySearch<T>(val content: LibraryContent<T>) {
+
+    companion object {
+        const val MAX_PER_SECTION = 5
+
+        /**
+         * Splits [hits] into sections, in [Section] order, each keeping the order of [hits]
+         * and at most [max] of them. Sections without hits are left out.
+         */
+        fun <T> sections(hits: List<Hit<T>>, max: Int = MAX_PER_SECTION):
+                List<Pair<Section, List<Hit<T>>>> {
+            val sections = Array(Section.entries.size) { ArrayList<Hit<T>>(max) }
+            var full = 0
+            for (hit in hits) {
+                val section = sections[hit.section.ordinal]
+                if (section.size == max) continue
+                section.add(hit)
+                if (section.size == max && ++full == sections.size) break
+            }
+            return Section.entries.zip(sections).filter { it.second.isNotEmpty() }
+        }
+    }
+
+    enum class Section { ALBUMS, ARTISTS, ALBUM_ARTISTS, GENRES, DATES, PLAYLISTS, FOLDERS }
+
+    /**
+     * An [item] of [content] for all sections but [Section.FOLDERS], for which it is the
+     * [folder] at [path] (names from the root of the folder structure, separated by '/').
+     */
+    class Hit<T>(
+        val section: Section, val item: Item<T>?, val folder: FileNode<T>?, val path: String?,
+        internal val key: String
+    ) {
+        val title: String
+            get() = item?.title ?: folder!!.folderName
+    }
+
+    private class HitFields<T> : SearchIndex.Fields<Hit<T>> {
+        override fun key(item: Hit<T>) = item.key
+        override fun title(item: Hit<T>) = item.title
+        override fun album(item: Hit<T>): String? = null
+        override fun artist(item: Hit<T>) = (item.item as? Album<T>)?.albumArtist
+    }
+
+    val index = SearchIndex(HitFields(), hits())
+
+    private fun hits(): List<Hit<T>> {
+        val hits = ArrayList<Hit<T>>()
+        listOf(
+            Section.ALBUMS to content.albumList, Section.ARTISTS to content.artistList,
+            Section.ALBUM_ARTISTS to content.albumArtistList, Section.GENRES to content.genreList,
+            Section.DATES to content.dateList, Section.PLAYLISTS to content.playlistList
+        ).forEach { (section, items) ->
+            items.forEachIndexed { i, item ->
+                // Unknown albums, artists, ... have no name to find them by.
+                if (item.title != null) hits.add(Hit(section, item, null, null, "$section:$i"))
+            }
+        }
+        addFolders(content.folderStructure, null, hits)
+        return hits
+    }
+
+    private fun addFolders(node: FileNode<T>, path: String?, hits: MutableList<Hit<T>>) {
+        for (child in node.folderList.values) {
+            val childPath = if (path == null) child.folderName else "$path/${child.folderName}"
+            hits.add(Hit(Section.FOLDERS, null, child, childPath, "${Section.FOLDERS}:$childPath"))
+            addFolders(child, childPath, hits)
+        }
+    }
+}
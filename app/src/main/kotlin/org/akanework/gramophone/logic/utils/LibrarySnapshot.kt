@@ -0,0 +1,447 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+import android.net.Uri
+import uk.akane.libphonograph.items.Album
+import uk.akane.libphonograph.items.FileNode
+import uk.akane.libphonograph.items.Item
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.IdentityHashMap
+
+/**
+ * [LibrarySnapshot] stores a complete [LibraryContent] on disk so that the library can be
+ * shown right away on cold start, before MediaStore was queried.
+ *
+ * The file is columnar: all strings are deduplicated into one pool, song fields are stored
+ * as one array per field, and groups, playlists and folders only store song indices. It is
+ * read through a memory mapping, so decoding is mostly bulk copies out of the page cache.
+ *
+ * Layout (big endian):
+ *  header     magic, version, meta entry count + key/value pairs
+ *  strings    count + length-prefixed UTF-8 strings
+ *  songs      library song count, total song count, 7 long columns, 6 int columns,
+ *             13 string columns (pool indices)
+ *  groups     albums, album artists, artists, genres, dates, playlists
+ *  folders    tree in preorder, shallow tree in preorder, folder set
+ *
+ * Songs which are only referenced by a group (ie. a playlist entry which is not part of the
+ * library) are stored after the library songs.
+ */
+class LibrarySnapshot<T>(private val codec: Codec<T>) {
+
+    companion object {
+        private const val MAGIC = 0x47534e50 // "GSNP"
+        // 2: groups come from LibraryGrouper, version 1 ones may be the reader's
+        private const val VERSION = 2
+        private const val NULL_INT = Int.MIN_VALUE
+        private const val NULL_LONG = Long.MIN_VALUE
+        private const val NULL_STRING = -1
+        private const val LONG_COLUMNS = 7
+        private const val INT_COLUMNS = 6
+        private const val STRING_COLUMNS = 13
+    }
+
+    /**
+     * Converts songs from and to the plain fields stored in the snapshot. [decode] must
+     * produce a song equal to the one given to [encode].
+     */
+    interface Codec<T> {
+        fun encode(item: T, row: SongRow)
+        fun decode(row: SongRow): T
+        fun encodeUri(uri: Uri): String
+        fun decodeUri(uri: String): Uri
+    }
+
+    /**
+     * One song, with the same fields the library reader hands to its item builder.
+     * Instances are reused for every row, codecs must not keep references to them.
+     */
+    class SongRow {
+        var uri: String? = null
+        var mediaId: Long = 0L
+        var mimeType: String? = null
+        var title: String? = null
+        var writer: String? = null
+        var compilation: String? = null
+        var composer: String? = null
+        var artist: String? = null
+        var albumTitle: String? = null
+        var albumArtist: String? = null
+        var artworkUri: String? = null
+        var cdTrackNumber: String? = null
+        var trackNumber: Int? = null
+        var discNumber: Int? = null
+        var genre: String? = null
+        var recordingDay: Int? = null
+        var recordingMonth: Int? = null
+        var recordingYear: Int? = null
+        var releaseYear: Int? = null
+        var artistId: Long? = null
+        var albumId: Long? = null
+        var genreId: Long? = null
+        var author: String? = null
+        var addDate: Long? = null
+        var duration: Long? = null
+        var modifiedDate: Long? = null
+    }
+
+    class Snapshot<T>(val content: LibraryContent<T>, val meta: Map<String, String>)
+
+    class CorruptSnapshotException(message: String, cause: Throwable? = null) :
+        IOException(message, cause)
+
+    /**
+     * Write [content] and [meta] to [file]. The file is replaced atomically, a reader will
+     * either see the old or the new snapshot.
+     */
+    fun write(file: File, content: LibraryContent<T>, meta: Map<String, String>) {
+        val encoder = Encoder(content)
+        val tmp = File(file.parentFile, file.name + ".tmp")
+        DataOutputStream(BufferedOutputStream(FileOutputStream(tmp), 1 shl 16)).use {
+            it.writeInt(MAGIC)
+            it.writeInt(VERSION)
+            it.writeInt(meta.size)
+            meta.forEach { (key, value) ->
+                it.writeString(key)
+                it.writeString(value)
+            }
+            encoder.writeTo(it)
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete()
+            throw IOException("failed to rename $tmp to $file")
+        }
+    }
+
+    /**
+     * Read a snapshot written by [write].
+     *
+     * @return the snapshot, or null if [file] does not exist or was written by an
+     *  incompatible version
+     * @throws CorruptSnapshotException if the file is damaged
+     */
+    fun read(file: File): Snapshot<T>? {
+        if (!file.exists()) return null
+        val buffer = RandomAccessFile(file, "r").use { raf ->
+            raf.channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+        }
+        try {
+            if (buffer.remaining() < 8 || buffer.int != MAGIC || buffer.int != VERSION) return null
+            val meta = HashMap<String, String>()
+            repeat(buffer.int) { meta[buffer.readString()] = buffer.readString() }
+            return Snapshot(Decoder(buffer).read(), meta)
+        } catch (e: BufferUnderflowException) {
+            throw CorruptSnapshotException("truncated snapshot", e)
+        } catch (e: IndexOutOfBoundsException) {
+            throw CorruptSnapshotException("invalid index in snapshot", e)
+        } catch (e: IllegalArgumentException) {
+            throw CorruptSnapshotException("invalid value in snapshot", e)
+        } catch (e: NullPointerException) {
+            throw CorruptSnapshotException("missing value in snapshot", e)
+        }
+    }
+
+    private inner class Encoder(private val content: LibraryContent<T>) {
+        private val pool = HashMap<String, Int>()
+        private val poolList = ArrayList<String>()
+        private val songs = ArrayList<T>(content.songList)
+        private val songIndex = IdentityHashMap<T, Int>(content.songList.size)
+        private val albumIndex = IdentityHashMap<Album<T>, Int>(content.albumList.size)
+
+        init {
+            content.songList.forEachIndexed { i, song -> songIndex[song] = i }
+            content.albumList.forEachIndexed { i, album -> albumIndex[album] = i }
+        }
+
+        fun writeTo(out: DataOutputStream) {
+            // Groups first, so that all songs and strings they reference are known.
+            val groups = ByteArrayOutputStream()
+            DataOutputStream(groups).use { writeGroups(it) }
+            val row = SongRow()
+            val longs = Array(LONG_COLUMNS) { LongArray(songs.size) }
+            val ints = Array(INT_COLUMNS) { IntArray(songs.size) }
+            val strings = Array(STRING_COLUMNS) { IntArray(songs.size) }
+            songs.forEachIndexed { i, song ->
+                row.clear()
+                codec.encode(song, row)
+                longs[0][i] = row.mediaId
+                longs[1][i] = row.artistId ?: NULL_LONG
+                longs[2][i] = row.albumId ?: NULL_LONG
+                longs[3][i] = row.genreId ?: NULL_LONG
+                longs[4][i] = row.addDate ?: NULL_LONG
+                longs[5][i] = row.duration ?: NULL_LONG
+                longs[6][i] = row.modifiedDate ?: NULL_LONG
+                ints[0][i] = row.trackNumber ?: NULL_INT
+                ints[1][i] = row.discNumber ?: NULL_INT
+                ints[2][i] = row.recordingDay ?: NULL_INT
+                ints[3][i] = row.recordingMonth ?: NULL_INT
+                ints[4][i] = row.recordingYear ?: NULL_INT
+                ints[5][i] = row.releaseYear ?: NULL_INT
+                strings[0][i] = intern(row.uri)
+                strings[1][i] = intern(row.mimeType)
+                strings[2][i] = intern(row.title)
+                strings[3][i] = intern(row.writer)
+                strings[4][i] = intern(row.compilation)
+                strings[5][i] = intern(row.composer)
+                strings[6][i] = intern(row.artist)
+                strings[7][i] = intern(row.albumTitle)
+                strings[8][i] = intern(row.albumArtist)
+                strings[9][i] = intern(row.artworkUri)
+                strings[10][i] = intern(row.cdTrackNumber)
+                strings[11][i] = intern(row.genre)
+                strings[12][i] = intern(row.author)
+            }
+            out.writeInt(poolList.size)
+            poolList.forEach { out.writeString(it) }
+            out.writeInt(content.songList.size)
+            out.writeInt(songs.size)
+            longs.forEach { column -> column.forEach { out.writeLong(it) } }
+            ints.forEach { column -> column.forEach { out.writeInt(it) } }
+            strings.forEach { column -> column.forEach { out.writeInt(it) } }
+            groups.writeTo(out)
+        }
+
+        private fun writeGroups(out: DataOutputStream) {
+            out.writeInt(content.albumList.size)
+            content.albumList.forEach {
+                out.writeItem(it)
+                out.writeInt(intern(it.albumArtist))
+                out.writeLong(it.albumArtistId ?: NULL_LONG)
+                out.writeInt(it.albumYear ?: NULL_INT)
+                out.writeInt(intern(it.cover?.let { cover -> codec.encodeUri(cover) }))
+            }
+            listOf(content.albumArtistList, content.artistList).forEach { list ->
+                out.writeInt(list.size)
+                list.forEach {
+                    out.writeItem(it)
+                    // Albums are stored by reference, anything unknown can't be restored.
+                    val albums = it.albumList.mapNotNull { album -> albumIndex[album] }
+                    out.writeInt(albums.size)
+                    albums.forEach { album -> out.writeInt(album) }
+                }
+            }
+            out.writeInt(content.genreList.size)
+            content.genreList.forEach { out.writeItem(it) }
+            out.writeInt(content.dateList.size)
+            content.dateList.forEach { out.writeItem(it) }
+            out.writeInt(content.playlistList.size)
+            content.playlistList.forEach {
+                out.writeItem(it)
+                out.writeBoolean(it.isRecentlyAdded())
+            }
+            writeNode(out, content.folderStructure.folderName, content.folderStructure)
+            writeNode(out, content.shallowFolder.folderName, content.shallowFolder)
+            out.writeInt(content.folders.size)
+            content.folders.forEach { out.writeInt(intern(it)) }
+        }
+
+        private fun writeNode(out: DataOutputStream, key: String, node: FileNode<T>) {
+            out.writeInt(intern(key))
+            out.writeInt(intern(node.folderName))
+            out.writeLong(node.albumId ?: NULL_LONG)
+            out.writeSongs(node.songList)
+            out.writeInt(node.folderList.size)
+            node.folderList.forEach { (childKey, child) -> writeNode(out, childKey, child) }
+        }
+
+        private fun DataOutputStream.writeItem(item: Item<T>) {
+            writeLong(item.id ?: NULL_LONG)
+            writeInt(intern(item.title))
+            writeSongs(item.songList)
+        }
+
+        private fun DataOutputStream.writeSongs(list: List<T>) {
+            writeInt(list.size)
+            list.forEach { writeInt(indexOf(it)) }
+        }
+
+        private fun indexOf(song: T): Int = songIndex.getOrPut(song) {
+            songs.add(song)
+            songs.size - 1
+        }
+
+        private fun intern(string: String?): Int {
+            if (string == null) return NULL_STRING
+            return pool.getOrPut(string) {
+                poolList.add(string)
+                poolList.size - 1
+            }
+        }
+    }
+
+    private inner class Decoder(private val buffer: ByteBuffer) {
+        private lateinit var pool: Array<String>
+        private lateinit var songs: List<T>
+        private lateinit var albums: List<Album<T>>
+
+        fun read(): LibraryContent<T> {
+            pool = Array(buffer.int) { buffer.readString() }
+            val librarySize = buffer.int
+            val size = buffer.int
+            val longs = Array(LONG_COLUMNS) { buffer.readLongs(size) }
+            val ints = Array(INT_COLUMNS) { buffer.readInts(size) }
+            val strings = Array(STRING_COLUMNS) { buffer.readInts(size) }
+            val row = SongRow()
+            songs = List(size) { i ->
+                row.mediaId = longs[0][i]
+                row.artistId = longs[1][i].orNull()
+                row.albumId = longs[2][i].orNull()
+                row.genreId = longs[3][i].orNull()
+                row.addDate = longs[4][i].orNull()
+                row.duration = longs[5][i].orNull()
+                row.modifiedDate = longs[6][i].orNull()
+                row.trackNumber = ints[0][i].orNull()
+                row.discNumber = ints[1][i].orNull()
+                row.recordingDay = ints[2][i].orNull()
+                row.recordingMonth = ints[3][i].orNull()
+                row.recordingYear = ints[4][i].orNull()
+                row.releaseYear = ints[5][i].orNull()
+                row.uri = string(strings[0][i])
+                row.mimeType = string(strings[1][i])
+                row.title = string(strings[2][i])
+                row.writer = string(strings[3][i])
+                row.compilation = string(strings[4][i])
+                row.composer = string(strings[5][i])
+                row.artist = string(strings[6][i])
+                row.albumTitle = string(strings[7][i])
+                row.albumArtist = string(strings[8][i])
+                row.artworkUri = string(strings[9][i])
+                row.cdTrackNumber = string(strings[10][i])
+                row.genre = string(strings[11][i])
+                row.author = string(strings[12][i])
+                codec.decode(row)
+            }
+            albums = List(buffer.int) {
+                val id = buffer.long.orNull()
+                val title = string(buffer.int)
+                val songList = readSongs()
+                val albumArtist = string(buffer.int)
+                val albumArtistId = buffer.long.orNull()
+                val albumYear = buffer.int.orNull()
+                val cover = string(buffer.int)?.let { codec.decodeUri(it) }
+                LibraryGrouper.GroupedAlbum(id, title, albumArtist, albumArtistId, albumYear,
+                    cover, songList)
+            }
+            val albumArtistList = readArtists()
+            val artistList = readArtists()
+            val genreList = List(buffer.int) {
+                LibraryGrouper.GroupedGenre(buffer.long.orNull(), string(buffer.int), readSongs())
+            }
+            val dateList = List(buffer.int) {
+                LibraryGrouper.GroupedDate(buffer.long.orNull() ?: 0L, string(buffer.int), readSongs())
+            }
+            val playlistList = List(buffer.int) {
+                LibraryGrouper.GroupedPlaylist(buffer.long.orNull(), string(buffer.int), readSongs(),
+                    buffer.get() != 0.toByte())
+            }
+            val folderStructure = readNode().second
+            val shallowFolder = readNode().second
+            val folders = LinkedHashSet<String>()
+            repeat(buffer.int) { folders.add(string(buffer.int)!!) }
+            return LibraryContent(
+                songList = songs.subList(0, librarySize),
+                albumList = albums,
+                albumArtistList = albumArtistList,
+                artistList = artistList,
+                genreList = genreList,
+                dateList = dateList,
+                playlistList = playlistList,
+                folderStructure = folderStructure,
+                shallowFolder = shallowFolder,
+                folders = folders
+            )
+        }
+
+        private fun readArtists() = List(buffer.int) {
+            val id = buffer.long.orNull()
+            val title = string(buffer.int)
+            val songList = readSongs()
+            LibraryGrouper.GroupedArtist(id, title, songList, List(buffer.int) { albums[buffer.int] })
+        }
+
+        private fun readNode(): Pair<String, FileNode<T>> {
+            val key = string(buffer.int)!!
+            val name = string(buffer.int)!!
+            val albumId = buffer.long.orNull()
+            val songList = readSongs()
+            val children = LinkedHashMap<String, FileNode<T>>()
+            repeat(buffer.int) { readNode().let { children[it.first] = it.second } }
+            return Pair(key, LibraryGrouper.GroupedFileNode(name, children, songList, albumId))
+        }
+
+        private fun readSongs(): List<T> {
+            val indices = buffer.readInts(buffer.int)
+            return List(indices.size) { songs[indices[it]] }
+        }
+
+        private fun string(index: Int) = if (index == NULL_STRING) null else pool[index]
+    }
+
+    private fun SongRow.clear() {
+        uri = null; mediaId = 0L; mimeType = null; title = null; writer = null
+        compilation = null; composer = null; artist = null; albumTitle = null
+        albumArtist = null; artworkUri = null; cdTrackNumber = null; trackNumber = null
+        discNumber = null; genre = null; recordingDay = null; recordingMonth = null
+        recordingYear = null; releaseYear = null; artistId = null; albumId = null
+        genreId = null; author = null; addDate = null; duration = null; modifiedDate = null
+    }
+
+    private fun Long.orNull() = if (this == NULL_LONG) null else this
+
+    private fun Int.orNull() = if (this == NULL_INT) null else this
+
+    private fun DataOutputStream.writeString(string: String) {
+        val bytes = string.toByteArray(Charsets.UTF_8)
+        writeInt(bytes.size)
+        write(bytes)
+    }
+
+    private fun ByteBuffer.readString(): String {
+        val length = int
+        if (length < 0 || length > remaining()) throw CorruptSnapshotException("bad string length")
+        val bytes = ByteArray(length)
+        get(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    private fun ByteBuffer.readLongs(count: Int): LongArray {
+        if (count < 0 || count.toLong() * 8 > remaining()) throw CorruptSnapshotException("bad column size")
+        val out = LongArray(count)
+        asLongBuffer().get(out)
+        position(position() + count * 8)
+        return out
+    }
+
+    private fun ByteBuffer.readInts(count: Int): IntArray {
+        if (count < 0 || count.toLong() * 4 > remaining()) throw CorruptSnapshotException("bad column size")
+        val out = IntArray(count)
+        asIntBuffer().get(out)
+        position(position() + count * 4)
+        return out
+    }
+}
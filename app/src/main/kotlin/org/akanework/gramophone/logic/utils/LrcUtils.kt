@@ -1,20 +1,28 @@
 package org.akanework.gramophone.logic.utils
 
+import android.content.Context
+import android.net.Uri
 import android.util.Log
 import androidx.annotation.OptIn
 import androidx.annotation.VisibleForTesting
+import androidx.media3.common.MediaItem
 import androidx.media3.common.Metadata
 import androidx.media3.common.util.ParsableByteArray
 import androidx.media3.common.util.UnstableApi
+import androidx.media3.exoplayer.MetadataRetriever
 import androidx.media3.extractor.metadata.id3.BinaryFrame
 import androidx.media3.extractor.metadata.id3.TextInformationFrame
 import androidx.media3.extractor.metadata.vorbis.VorbisComment
 import java.io.File
 import java.nio.charset.Charset
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 
 object LrcUtils {
 
     private const val TAG = "LrcUtils"
+    private const val METADATA_TIMEOUT_SECONDS = 10L
 
     data class LrcParserOptions(val trim: Boolean, val multiLine: Boolean, val errorText: String)
 
@@ -66,6 +74,41 @@ object LrcUtils {
         return loadTextFile(lrcFile, parserOptions.errorText)?.let { parseLyrics(it, parserOptions) }
     }
 
+    /**
+     * Lines of the lyrics of [musicFile], from its .lrc sidecar or else its embedded tags,
+     * which are read from [uri] without playing it. Null if it has none. Blocks, don't call
+     * this on the main thread.
+     */
+    @OptIn(UnstableApi::class)
+    fun loadLyricsLines(
+        context: Context, musicFile: File, uri: Uri, parserOptions: LrcParserOptions
+    ): List<String>? {
+        loadAndParseLyricsFile(musicFile, parserOptions)?.let { return it.unsyncedText }
+        val future = MetadataRetriever.retrieveMetadata(context, MediaItem.fromUri(uri))
+        // Callers go through many files on one thread, a single bad file must not stall or
+        // kill it. Such a file is skipped.
+        try {
+            val trackGroups = future.get(METADATA_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            for (i in 0..<trackGroups.length) {
+                val group = trackGroups[i]
+                for (j in 0..<group.length) {
+                    // note: wav files can have null metadata
+                    val metadata = group.getFormat(j).metadata ?: continue
+                    extractAndParseLyrics(metadata, parserOptions)?.let { return it.unsyncedText }
+                }
+            }
+        } catch (e: ExecutionException) {
+            // Not a format we can read tags of, or the file is gone.
+            Log.w(TAG, "failed to read metadata of $uri", e)
+        } catch (e: TimeoutException) {
+            Log.w(TAG, "timed out reading metadata of $uri")
+            future.cancel(true)
+        } catch (e: RuntimeException) {
+            Log.w(TAG, "failed to read lyrics of $uri", e)
+        }
+        return null
+    }
+
     private fun loadTextFile(lrcFile: File?, errorText: String?): String? {
         return try {
             if (lrcFile?.exists() == true)
@@ -0,0 +1,358 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package org.akanework.gramophone.logic.utils
+
+import android.util.Log
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.BitSet
+import java.util.Collections
+
+/**
+ * [LyricsIndex] finds songs by a line of their lyrics. Lyrics are read once per song in the
+ * background, and only read again once the song (by MediaStore's modification date) or its
+ * .lrc sidecar (by file modification time) changed. What was read is kept in [file] as an inverted index: every word maps
+ * to the songs whose lyrics contain it.
+ *
+ * A query matches songs whose lyrics contain all of its words, the last one may be
+ * incomplete while it is typed. Han and kana characters are words of their own, as such
+ * text has no spaces.
+ *
+ * Layout of [file] (big endian): magic, version, song count + (id, song modification date,
+ * sidecar modification time) per song, word count + (UTF-8 length, UTF-8 bytes, song count,
+ * varint deltas of song indices) per word.
+ *
+ * Generic over the song type like [SearchIndex]. [update] is slow and must only run on one
+ * thread at a time, searches don't wait for it and see its progress.
+ */
+class LyricsIndex<T>(private val file: File, private val fields: Fields<T>) :
+    SearchPipeline.Searchable<T> {
+
+    companion object {
+        private const val TAG = "LyricsIndex"
+        private const val MAGIC = 0x474c5958 // "GLYX"
+        // 2: song stamps are MediaStore's modification date, not the file's
+        private const val VERSION = 2
+        // Songs read between making progress visible and saving it.
+        private const val BATCH_SIZE = 256
+
+        fun lrcFileOf(path: String) =
+            File(path).let { File(it.parentFile, it.nameWithoutExtension + ".lrc") }
+
+        /**
+         * Words of [text], which has to be [SearchNormalizer.normalize]d.
+         */
+        fun words(text: String): List<String> {
+            val words = ArrayList<String>()
+            var i = 0
+            while (i < text.length) {
+                val start = i
+                if (isIdeographic(text[i])) {
+                    // Keep marks like dakuten with the character they belong to.
+                    i++
+                    while (i < text.length && Character.getType(text[i]) ==
+                        Character.NON_SPACING_MARK.toInt()) i++
+                    words.add(text.substring(start, i))
+                    continue
+                }
+                while (i < text.length && text[i].isLetterOrDigit() && !isIdeographic(text[i])) {
+                    i++
+                }
+                if (i > start) words.add(text.substring(start, i)) else i++
+            }
+            return words
+        }
+
+        private fun isIdeographic(c: Char) =
+            c in '\u3040'..'\u30FF' || c in '\u3400'..'\u9FFF' || c in '\uF900'..'\uFAFF'
+    }
+
+    interface Fields<T> {
+        fun id(item: T): Long
+        fun path(item: T): String?
+
+        /**
+         * When [item] was last modified, in any unit as long as it doesn't change. Only
+         * compared for equality.
+         */
+        fun modified(item: T): Long?
+
+        /**
+         * Lines of the lyrics of [item], null if it has none. Called on the thread running
+         * [update].
+         */
+        fun lyrics(item: T): List<String>?
+    }
+
+    private class Doc(val id: Long, val stamp: Long, val lrcStamp: Long)
+
+    // Growable list of song indices in ascending order.
+    private class Postings {
+        var entries = IntArray(4)
+        var size = 0
+
+        fun add(entry: Int) {
+            if (size == entries.size) entries = entries.copyOf(size * 2)
+            entries[size++] = entry
+        }
+
+        fun toArray() = entries.copyOf(size)
+    }
+
+    // Replaced as a whole, so searches never see an update half done.
+    private inner class State(
+        songs: List<T>, val docs: List<Doc>, val words: Array<String>,
+        val postings: Array<IntArray>
+    ) {
+        // A new instance per state, tells SearchPipeline that earlier results are stale.
+        val songs: List<T> = Collections.unmodifiableList(songs)
+        // Position of each doc's song in songs, -1 if it is not there.
+        val positions = IntArray(docs.size) { -1 }
+
+        init {
+            val docOf = HashMap<Long, Int>(docs.size * 2)
+            docs.forEachIndexed { i, doc -> docOf[doc.id] = i }
+            songs.forEachIndexed { i, song -> docOf[fields.id(song)]?.let { positions[it] = i } }
+        }
+    }
+
+    @Volatile
+    private var state = State(emptyList(), emptyList(), emptyArray(), emptyArray())
+    private var loaded = false
+    // Songs of the last update, to tell whether a diff starts from them.
+    private var updatedSongs: List<T>? = null
+
+    override val songs: List<T>
+        get() = state.songs
+
+    /**
+     * Bring the index up to date with [songs]: forget songs which are gone, and read the
+     * lyrics of songs which are new or changed since they were read. Songs which are up to
+     * date can be found right away, the others as they are read.
+     *
+     * @param diff if it leads from the songs of the last update to [songs], only the
+     *  sidecars of new and changed songs are checked, otherwise all of them
+     */
+    fun update(songs: List<T>, diff: LibraryDiff? = null) {
+        if (!loaded) {
+            loaded = true
+            load()
+        }
+        val changes = diff?.changeSetFor(updatedSongs, songs)
+        val fresh = changes?.let { c ->
+            (c.changed.values + c.added).mapTo(HashSet()) { fields.id(it) }
+        }
+        updatedSongs = songs
+        val old = state
+        val oldDocOf = HashMap<Long, Int>(old.docs.size * 2)
+        old.docs.forEachIndexed { i, doc -> oldDocOf[doc.id] = i }
+        val kept = arrayOfNulls<Doc>(old.docs.size)
+        val stale = ArrayList<Pair<T, Doc>>()
+        for (song in songs) {
+            val path = fields.path(song) ?: continue
+            val id = fields.id(song)
+            val i = oldDocOf[id]
+            val lrcStamp = if (fresh != null && i != null && id !in fresh)
+                old.docs[i].lrcStamp else lrcFileOf(path).lastModified()
+            val doc = Doc(id, fields.modified(song) ?: 0L, lrcStamp)
+            if (i != null && kept[i] == null && old.docs[i].stamp == doc.stamp &&
+                old.docs[i].lrcStamp == doc.lrcStamp) {
+                kept[i] = doc
+            } else {
+                stale.add(song to doc)
+            }
+        }
+        // Kept songs keep their order, so postings stay sorted.
+        val docs = ArrayList<Doc>(kept.size + stale.size)
+        val remap = IntArray(kept.size) { -1 }
+        kept.forEachIndexed { i, doc ->
+            if (doc != null) {
+                remap[i] = docs.size
+                docs.add(doc)
+            }
+        }
+        val postings = HashMap<String, Postings>()
+        old.words.forEachIndexed { w, word ->
+            for (doc in old.postings[w]) {
+                val newDoc = remap[doc]
+                if (newDoc != -1) postings.getOrPut(word) { Postings() }.add(newDoc)
+            }
+        }
+        publish(songs, docs, postings)
+        if (docs.size < old.docs.size && stale.isEmpty()) save()
+        for (batch in stale.chunked(BATCH_SIZE)) {
+            for ((song, doc) in batch) {
+                val lines = fields.lyrics(song)
+                val index = docs.size
+                docs.add(doc)
+                lines?.flatMapTo(HashSet()) { words(SearchNormalizer.normalize(it)) }?.forEach {
+                    postings.getOrPut(it) { Postings() }.add(index)
+                }
+            }
+            publish(songs, docs, postings)
+            save()
+        }
+    }
+
+    private fun publish(songs: List<T>, docs: List<Doc>, postings: Map<String, Postings>) {
+        val words = postings.keys.toTypedArray()
+        words.sort()
+        state = State(songs, ArrayList(docs), words,
+            Array(words.size) { postings[words[it]]!!.toArray() })
+    }
+
+    override fun narrows(previous: String, query: String): Boolean {
+        // Only the last word is matched as a prefix, a query containing the previous one
+        // elsewhere may not match the songs it did.
+        return query.startsWith(previous)
+    }
+
+    /**
+     * @return songs whose lyrics contain every word of [query], the last one as a prefix
+     *  unless [query] ends in a space, in the order of [songs]
+     */
+    override fun search(query: String, within: List<T>?): List<T> {
+        val state = state
+        val normalized = SearchNormalizer.normalize(query)
+        val words = words(normalized)
+        if (words.isEmpty()) return emptyList()
+        val typing = !normalized.last().isWhitespace()
+        var found: BitSet? = null
+        words.forEachIndexed { i, word ->
+            val docs = BitSet(state.docs.size)
+            var w = state.words.binarySearch(word)
+            if (i == words.lastIndex && typing) {
+                if (w < 0) w = -w - 1
+                while (w < state.words.size && state.words[w].startsWith(word)) {
+                    state.postings[w++].forEach { docs.set(it) }
+                }
+            } else if (w >= 0) {
+                state.postings[w].forEach { docs.set(it) }
+            }
+            found = found?.apply { and(docs) } ?: docs
+        }
+        val allowed = within?.mapTo(HashSet()) { fields.id(it) }
+        val positions = ArrayList<Int>()
+        val result = found!!
+        var doc = result.nextSetBit(0)
+        while (doc >= 0) {
+            val position = state.positions[doc]
+            if (position != -1 && (allowed == null || state.docs[doc].id in allowed)) {
+                positions.add(position)
+            }
+            doc = result.nextSetBit(doc + 1)
+        }
+        positions.sort()
+        return positions.map { state.songs[it] }
+    }
+
+    private fun load() {
+        if (!file.exists()) return
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(file), 1 shl 16)).use { input ->
+                if (input.readInt() != MAGIC || input.readInt() != VERSION) return
+                val docs = List(input.readCount()) {
+                    Doc(input.readLong(), input.readLong(), input.readLong())
+                }
+                val postings = HashMap<String, Postings>()
+                repeat(input.readCount()) {
+                    val bytes = ByteArray(input.readCount())
+                    input.readFully(bytes)
+                    val list = Postings()
+                    var doc = -1
+                    repeat(input.readCount()) {
+                        doc += input.readVarInt()
+                        if (doc !in docs.indices) throw IOException("invalid song index $doc")
+                        list.add(doc)
+                    }
+                    postings[String(bytes, Charsets.UTF_8)] = list
+                }
+                publish(emptyList(), docs, postings)
+            }
+        } catch (e: IOException) {
+            // Everything is read again, that's all.
+            Log.e(TAG, "failed to load $file", e)
+            file.delete()
+        }
+    }
+
+    private fun save() {
+        val state = state
+        val tmp = File(file.parentFile, file.name + ".tmp")
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmp), 1 shl 16)).use { out ->
+                out.writeInt(MAGIC)
+                out.writeInt(VERSION)
+                out.writeInt(state.docs.size)
+                state.docs.forEach {
+                    out.writeLong(it.id)
+                    out.writeLong(it.stamp)
+                    out.writeLong(it.lrcStamp)
+                }
+                out.writeInt(state.words.size)
+                state.words.forEachIndexed { w, word ->
+                    val bytes = word.toByteArray(Charsets.UTF_8)
+                    out.writeInt(bytes.size)
+                    out.write(bytes)
+                    out.writeInt(state.postings[w].size)
+                    var previous = -1
+                    state.postings[w].forEach {
+                        out.writeVarInt(it - previous)
+                        previous = it
+                    }
+                }
+            }
+            if (!tmp.renameTo(file)) throw IOException("failed to rename $tmp to $file")
+        } catch (e: IOException) {
+            // Next update reads what is missing again.
+            Log.e(TAG, "failed to save $file", e)
+            tmp.delete()
+        }
+    }
+
+    private fun DataOutputStream.writeVarInt(value: Int) {
+        var v = value
+        while (v and 0x7f.inv() != 0) {
+            writeByte((v and 0x7f) or 0x80)
+            v = v ushr 7
+        }
+        writeByte(v)
+    }
+
+    private fun DataInputStream.readCount(): Int =
+        readInt().also { if (it < 0) throw IOException("invalid count $it") }
+
+    private fun DataInputStream.readVarInt(): Int {
+        var value = 0
+        var shift = 0
+        while (true) {
+            val b = readUnsignedByte()
+            value = value or ((b and 0x7f) shl shift)
+            if (b and 0x80 == 0) return value
+            shift += 7
+            if (shift > 28) throw IOException("invalid varint")
+        }
+    }
+}
@@ -17,10 +17,17 @@
 
 package org.akanework.gramophone.logic.utils
 
+import android.content.ContentUris
 import android.content.Context
-import android.os.Bundle
+import android.net.Uri
 import android.os.Parcelable
+import android.os.SystemClock
+import android.provider.MediaStore
+import android.util.Log
 import androidx.annotation.OptIn
+import androidx.annotation.VisibleForTesting
+import androidx.core.net.toUri
+import androidx.lifecycle.MutableLiveData
 import androidx.media3.common.MediaItem
 import androidx.media3.common.MediaMetadata
 import androidx.media3.common.util.UnstableApi
@@ -28,12 +35,17 @@ import androidx.preference.PreferenceManager
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.yield
 import kotlinx.parcelize.Parcelize
 import org.akanework.gramophone.BuildConfig
 import org.akanework.gramophone.R
-import org.akanework.gramophone.ui.LibraryViewModel
+import org.akanework.gramophone.logic.getFile
+import org.akanework.gramophone.logic.getUri
+import org.akanework.gramophone.logic.hasScopedStorageV2
 import uk.akane.libphonograph.reader.Reader
-import uk.akane.libphonograph.reader.ReaderResult
+import java.io.File
+import java.io.IOException
 
 /**
  * [MediaStoreUtils] contains all the methods for reading
@@ -41,6 +53,8 @@ import uk.akane.libphonograph.reader.ReaderResult
  */
 object MediaStoreUtils {
 
+    private const val TAG = "MediaStoreUtils"
+
     @Parcelize
     data class Lyric(
         val timeStamp: Long? = null,
@@ -49,96 +63,723 @@ object MediaStoreUtils {
     ) : Parcelable
 
     /**
-     * [getAllSongs] gets all of your songs from your local disk.
-     *
-     * @param context
-     * @return
+     * [LibraryFilter] holds the user's settings which decide whether a MediaStore row
+     * becomes part of the library.
      */
-    @OptIn(UnstableApi::class)
-    private fun getAllSongs(context: Context): ReaderResult<MediaItem> {
+    data class LibraryFilter(
+        val minSongLengthSeconds: Long,
+        val blackListSet: Set<String>
+    ) {
+        companion object {
+            // Each prefix is a bound argument, leave room for the ids of incremental reads.
+            private const val MAX_SQL_PREFIXES = 50
+        }
+
+        private val blackList by lazy { PathTrie(blackListSet) }
+
+        /**
+         * Whether [selection] rejects everything [accepts] rejects. If not, the blacklist
+         * was too long to be put in SQL and rows have to be checked with [accepts].
+         */
+        val isExactInSql: Boolean
+            get() = blackListSet.size <= MAX_SQL_PREFIXES
+
+        fun accepts(path: String?, durationMs: Long): Boolean =
+            durationMs >= minSongLengthSeconds * 1000 &&
+                    (path == null || !blackList.matchesPrefixOf(path))
+
+        /**
+         * SQL selection for songs which pass this filter, so that rejected rows don't even
+         * leave the provider. See [isExactInSql]. Used for counting and incremental reads,
+         * full loads go through libphonograph's reader which filters on its own.
+         */
+        fun selection(): Pair<String, Array<String>> {
+            val clauses = mutableListOf("${MediaStore.Audio.Media.IS_MUSIC} != 0")
+            val args = mutableListOf<String>()
+            if (minSongLengthSeconds > 0) {
+                clauses += "${MediaStore.Audio.Media.DURATION} >= ?"
+                args += (minSongLengthSeconds * 1000).toString()
+            }
+            if (blackListSet.isNotEmpty() && isExactInSql) {
+                // substr() instead of LIKE, which is case insensitive and needs escaping.
+                // It counts characters, not UTF-16 units.
+                val data = MediaStore.Audio.Media.DATA
+                clauses += "($data IS NULL OR (" + blackListSet.joinToString(" AND ") {
+                    "substr($data, 1, ${it.codePointCount(0, it.length)}) != ?"
+                } + "))"
+                args += blackListSet
+            }
+            return Pair(clauses.joinToString(" AND "), args.toTypedArray())
+        }
+    }
+
+    /**
+     * [MediaItemFields] tells [LibraryGrouper] how to read the values used for grouping
+     * out of a [MediaItem] built by [buildMediaItem].
+     */
+    object MediaItemFields : LibraryGrouper.Fields<MediaItem> {
+        override fun id(item: MediaItem) = item.mediaId.toLong()
+        override fun path(item: MediaItem) = item.localConfiguration?.uri?.path
+        override fun albumId(item: MediaItem) = item.albumId
+        override fun albumTitle(item: MediaItem) = item.mediaMetadata.albumTitle?.toString()
+        override fun albumArtist(item: MediaItem) = item.mediaMetadata.albumArtist?.toString()
+        override fun artistId(item: MediaItem) = item.artistId
+        override fun artist(item: MediaItem) = item.mediaMetadata.artist?.toString()
+        override fun genreId(item: MediaItem) = item.genreId
+        override fun genre(item: MediaItem) = item.mediaMetadata.genre?.toString()
+        override fun year(item: MediaItem) =
+            item.mediaMetadata.recordingYear ?: item.mediaMetadata.releaseYear
+        override fun cover(item: MediaItem) = item.mediaMetadata.artworkUri
+        override fun addDate(item: MediaItem) = item.addDate
+    }
+
+    /**
+     * [SearchFields] tells [SearchIndex] what to search in a [MediaItem].
+     */
+    object SearchFields : SearchIndex.Fields<MediaItem> {
+        override fun key(item: MediaItem) = item.mediaId
+        override fun title(item: MediaItem) = item.mediaMetadata.title?.toString()
+        override fun album(item: MediaItem) = item.mediaMetadata.albumTitle?.toString()
+        override fun artist(item: MediaItem) = item.mediaMetadata.artist?.toString()
+    }
+
+    /**
+     * [LyricsFields] tells [LyricsIndex] where the lyrics of a [MediaItem] are.
+     */
+    class LyricsFields(context: Context) : LyricsIndex.Fields<MediaItem> {
+        private val context = context.applicationContext
+        private val options = LrcUtils.LrcParserOptions(trim = true, multiLine = false,
+            errorText = "")
+
+        override fun id(item: MediaItem) = item.mediaId.toLong()
+        override fun path(item: MediaItem) = item.getFile()?.path
+        override fun modified(item: MediaItem) = item.modifiedDate
+        override fun lyrics(item: MediaItem): List<String>? {
+            val file = item.getFile() ?: return null
+            val uri = item.getUri() ?: return null
+            return LrcUtils.loadLyricsLines(context, file, uri, options)
+        }
+    }
+
+    /**
+     * [MediaItemCodec] converts [MediaItem]s built by [buildMediaItem] from and to the
+     * rows stored in a [LibrarySnapshot]. Decoded songs are appended to [table], a codec
+     * without table can only encode.
+     */
+    class MediaItemCodec(private val table: SongTable?) : LibrarySnapshot.Codec<MediaItem> {
+        override fun encode(item: MediaItem, row: LibrarySnapshot.SongRow) {
+            val metadata = item.mediaMetadata
+            row.uri = item.localConfiguration?.uri?.toString()
+            row.mediaId = item.mediaId.toLong()
+            row.mimeType = item.localConfiguration?.mimeType
+            row.title = metadata.title?.toString()
+            row.writer = metadata.writer?.toString()
+            row.compilation = metadata.compilation?.toString()
+            row.composer = metadata.composer?.toString()
+            row.artist = metadata.artist?.toString()
+            row.albumTitle = metadata.albumTitle?.toString()
+            row.albumArtist = metadata.albumArtist?.toString()
+            row.artworkUri = metadata.artworkUri?.toString()
+            row.cdTrackNumber = item.cdTrackNumber?.toString()
+            row.trackNumber = metadata.trackNumber
+            row.discNumber = metadata.discNumber
+            row.genre = metadata.genre?.toString()
+            row.recordingDay = metadata.recordingDay
+            row.recordingMonth = metadata.recordingMonth
+            row.recordingYear = metadata.recordingYear
+            row.releaseYear = metadata.releaseYear
+            row.artistId = item.artistId
+            row.albumId = item.albumId
+            row.genreId = item.genreId
+            row.author = item.author
+            row.addDate = item.addDate
+            row.duration = metadata.durationMs
+            row.modifiedDate = item.modifiedDate
+        }
+
+        override fun decode(row: LibrarySnapshot.SongRow) = buildMediaItem(
+            checkNotNull(table) { "codec without table can't decode" },
+            row.uri?.let { Uri.parse(it) } ?: Uri.EMPTY, row.mediaId, row.mimeType, row.title,
+            row.writer, row.compilation, row.composer, row.artist, row.albumTitle,
+            row.albumArtist, row.artworkUri?.let { Uri.parse(it) }, row.cdTrackNumber,
+            row.trackNumber, row.discNumber, row.genre, row.recordingDay, row.recordingMonth,
+            row.recordingYear, row.releaseYear, row.artistId, row.albumId, row.genreId,
+            row.author, row.addDate, row.duration, row.modifiedDate
+        )
+
+        override fun encodeUri(uri: Uri) = uri.toString()
+        override fun decodeUri(uri: String): Uri = Uri.parse(uri)
+    }
+
+    fun readFilter(context: Context): LibraryFilter {
         val prefs = PreferenceManager.getDefaultSharedPreferences(context)
         val limitValue = if (BuildConfig.DISABLE_MEDIA_STORE_FILTER) 0 else prefs.getInt(
             "mediastore_filter",
             context.resources.getInteger(R.integer.filter_default_sec)
         )
         val folderFilter = prefs.getStringSet("folderFilter", setOf()) ?: setOf()
-        return Reader.readFromMediaStore(context,
-            { uri, mediaId, mimeType, title, writer, compilation, composer, artist,
-                              albumTitle, albumArtist, artworkUri, cdTrackNumber, trackNumber,
-                              discNumber, genre, recordingDay, recordingMonth, recordingYear,
-                              releaseYear, artistId, albumId, genreId, author, addDate, duration,
-                              modifiedDate ->
-                return@readFromMediaStore MediaItem
+        return LibraryFilter(limitValue.toLong(), folderFilter)
+    }
+
+    /**
+     * Replace groupings of [content] by lazy ones if memory saving mode is enabled, see
+     * [LibraryBudget].
+     */
+    private fun LibraryRepository.applyBudget(
+        context: Context, content: LibraryContent<MediaItem>
+    ): LibraryContent<MediaItem> =
+        if (PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean("library_memory_budget", false)) budget.apply(content) else content
+
+    /**
+     * Build the [MediaItem] for one song. Values which [MediaMetadata] has no field for are
+     * appended to [table] instead of being stored as extras, see [SongTable]. Strings which
+     * are shared between songs are taken from [StringPool].
+     */
+    @OptIn(UnstableApi::class)
+    fun buildMediaItem(
+        table: SongTable, uri: Uri, mediaId: Long, mimeType: String?, title: String?,
+        writer: String?, compilation: String?, composer: String?, artist: String?,
+        albumTitle: String?,
+        albumArtist: String?, artworkUri: Uri?, cdTrackNumber: String?, trackNumber: Int?,
+        discNumber: Int?, genre: String?, recordingDay: Int?, recordingMonth: Int?,
+        recordingYear: Int?, releaseYear: Int?, artistId: Long?, albumId: Long?,
+        genreId: Long?, author: String?, addDate: Long?, duration: Long?, modifiedDate: Long?
+    ): MediaItem {
+        return MediaItem
+            .Builder()
+            .setUri(uri)
+            .setMediaId(mediaId.toString())
+            .setMimeType(StringPool.intern(mimeType))
+            .setTag(table.append(mediaId, artistId, albumId, genreId, addDate, modifiedDate,
+                cdTrackNumber?.toIntOrNull(), author))
+            .setMediaMetadata(
+                MediaMetadata
                     .Builder()
-                    .setUri(uri)
-                    .setMediaId(mediaId.toString())
-                    .setMimeType(mimeType)
-                    .setMediaMetadata(
-                        MediaMetadata
-                            .Builder()
-                            .setIsBrowsable(false)
-                            .setIsPlayable(true)
-                            .setDurationMs(duration)
-                            .setTitle(title)
-                            .setWriter(writer)
-                            .setCompilation(compilation)
-                            .setComposer(composer)
-                            .setArtist(artist)
-                            .setAlbumTitle(albumTitle)
-                            .setAlbumArtist(albumArtist)
-                            .setArtworkUri(artworkUri)
-                            .setTrackNumber(trackNumber)
-                            .setDiscNumber(discNumber)
-                            .setGenre(genre)
-                            .setRecordingDay(recordingDay)
-                            .setRecordingMonth(recordingMonth)
-                            .setRecordingYear(recordingYear)
-                            .setReleaseYear(releaseYear)
-                            .setExtras(Bundle().apply {
-                                if (artistId != null) {
-                                    putLong("ArtistId", artistId)
-                                }
-                                if (albumId != null) {
-                                    putLong("AlbumId", albumId)
-                                }
-                                if (genreId != null) {
-                                    putLong("GenreId", genreId)
-                                }
-                                putString("Author", author)
-                                if (addDate != null) {
-                                    putLong("AddDate", addDate)
-                                }
-                                if (modifiedDate != null) {
-                                    putLong("ModifiedDate", modifiedDate)
-                                }
-                                cdTrackNumber?.toIntOrNull()
-                                    ?.let { it1 -> putInt("CdTrackNumber", it1) }
-                            })
-                            .build(),
-                    ).build()
-            },
-            minSongLengthSeconds = limitValue.toLong(),
-            blackListSet = folderFilter,
-            shouldUseEnhancedCoverReading = null,
-            shouldLoadPlaylists = true
+                    .setIsBrowsable(false)
+                    .setIsPlayable(true)
+                    .setDurationMs(duration)
+                    .setTitle(title)
+                    .setWriter(StringPool.intern(writer))
+                    .setCompilation(StringPool.intern(compilation))
+                    .setComposer(StringPool.intern(composer))
+                    .setArtist(StringPool.intern(artist))
+                    .setAlbumTitle(StringPool.intern(albumTitle))
+                    .setAlbumArtist(StringPool.intern(albumArtist))
+                    .setArtworkUri(artworkUri)
+                    .setTrackNumber(trackNumber)
+                    .setDiscNumber(discNumber)
+                    .setGenre(StringPool.intern(genre))
+                    .setRecordingDay(recordingDay)
+                    .setRecordingMonth(recordingMonth)
+                    .setRecordingYear(recordingYear)
+                    .setReleaseYear(releaseYear)
+                    .build(),
+            ).build()
+    }
+
+    /**
+     * [getAllSongs] gets all of your songs from your local disk.
+     *
+     * @param context
+     * @return
+     */
+    private fun getAllSongs(
+        context: Context, filter: LibraryFilter, table: SongTable, trace: LibraryLoadTrace,
+        pager: SongPager? = null
+    ): LibraryContent<MediaItem> {
+        // The reader queries, iterates and groups in one go, only the time spent in our
+        // builder can be told apart from the rest. Its groups are not used, see below.
+        // It does not take a selection, so filter.selection() can't be pushed into its
+        // query. It gets the same settings and filters the rows itself instead.
+        var buildNs = 0L
+        val result = trace.phase("readFromMediaStore", { it.songList.size }) {
+            Reader.readFromMediaStore(context,
+                { uri, mediaId, mimeType, title, writer, compilation, composer, artist,
+                                  albumTitle, albumArtist, artworkUri, cdTrackNumber, trackNumber,
+                                  discNumber, genre, recordingDay, recordingMonth, recordingYear,
+                                  releaseYear, artistId, albumId, genreId, author, addDate,
+                                  duration, modifiedDate ->
+                    val itemStart = System.nanoTime()
+                    val item = buildMediaItem(table, uri, mediaId, mimeType, title, writer,
+                        compilation, composer, artist, albumTitle, albumArtist, artworkUri,
+                        cdTrackNumber, trackNumber, discNumber, genre, recordingDay,
+                        recordingMonth, recordingYear, releaseYear, artistId, albumId, genreId,
+                        author, addDate, duration, modifiedDate)
+                    buildNs += System.nanoTime() - itemStart
+                    pager?.add(item)
+                    return@readFromMediaStore item
+                },
+                minSongLengthSeconds = filter.minSongLengthSeconds,
+                blackListSet = filter.blackListSet,
+                shouldUseEnhancedCoverReading = null,
+                shouldLoadPlaylists = true
+            )
+        }
+        trace.record("buildMediaItem (part of readFromMediaStore)", buildNs,
+            result.songList.size)
+        // Groups are rebuilt by LibraryGrouper, so that full loads and patched libraries
+        // come out of the same code. Blocking is fine, loads already run on a background
+        // thread.
+        return trace.phase("group", { it.albumList.size }) {
+            runBlocking {
+                LibraryGrouper(MediaItemFields)
+                    .groupParallel(result.songList, result.playlistList!!)
+            }
+        }
+    }
+
+    /**
+     * Reads the whole library the way a full load does, without publishing or remembering
+     * it. Only meant for load tests against a fake MediaStore.
+     */
+    @VisibleForTesting
+    fun readLibrary(context: Context, trace: LibraryLoadTrace): LibraryContent<MediaItem> =
+        getAllSongs(context, readFilter(context), SongTable(), trace)
+
+    /**
+     * [readSongs] reads the rows matching [selection] into [MediaItem]s, the same way
+     * [getAllSongs] does. It is used to fetch small sets of changed rows, hence it does
+     * not do any grouping. Items come out the way the reader builds them, so that a
+     * patched library is grouped like a full load.
+     *
+     * @param onItem called with each accepted item right after it was built
+     * @return accepted items and ids of rows which matched but were rejected by [filter]
+     */
+    fun readSongs(
+        context: Context, uri: Uri, selection: String?, selectionArgs: Array<String>?,
+        filter: LibraryFilter, table: SongTable, onItem: ((MediaItem) -> Unit)? = null
+    ): Pair<List<MediaItem>, Set<Long>> {
+        val items = mutableListOf<MediaItem>()
+        val rejected = hashSetOf<Long>()
+        val projection = mutableListOf(
+            MediaStore.Audio.Media._ID, MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media.MIME_TYPE, MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ARTIST, MediaStore.Audio.Media.ALBUM, "album_artist",
+            MediaStore.Audio.Media.COMPOSER, MediaStore.Audio.Media.TRACK,
+            MediaStore.Audio.Media.YEAR, MediaStore.Audio.Media.ARTIST_ID,
+            MediaStore.Audio.Media.ALBUM_ID, MediaStore.Audio.Media.DATE_ADDED,
+            MediaStore.Audio.Media.DATE_MODIFIED, MediaStore.Audio.Media.DURATION
         )
+        if (hasScopedStorageV2()) {
+            projection += listOf(
+                MediaStore.Audio.Media.WRITER, MediaStore.Audio.Media.COMPILATION,
+                MediaStore.Audio.Media.CD_TRACK_NUMBER, MediaStore.Audio.Media.DISC_NUMBER,
+                MediaStore.Audio.Media.GENRE, MediaStore.Audio.Media.GENRE_ID,
+                MediaStore.Audio.Media.AUTHOR
+            )
+        }
+        context.contentResolver.query(
+            uri, projection.toTypedArray(), selection, selectionArgs, SONG_SORT_ORDER
+        )?.use {
+            val idColumn = it.getColumnIndexOrThrow(MediaStore.Audio.Media._ID)
+            val pathColumn = it.getColumnIndexOrThrow(MediaStore.Audio.Media.DATA)
+            val durationColumn = it.getColumnIndexOrThrow(MediaStore.Audio.Media.DURATION)
+            val mimeTypeColumn = it.getColumnIndexOrThrow(MediaStore.Audio.Media.MIME_TYPE)
+            val titleColumn = it.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE)
+            val artistColumn = it.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST)
+            val albumColumn = it.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM)
+            val albumArtistColumn = it.getColumnIndexOrThrow("album_artist")
+            val composerColumn = it.getColumnIndexOrThrow(MediaStore.Audio.Media.COMPOSER)
+            val trackColumn = it.getColumnIndexOrThrow(MediaStore.Audio.Media.TRACK)
+            val yearColumn = it.getColumnIndexOrThrow(MediaStore.Audio.Media.YEAR)
+            val artistIdColumn = it.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST_ID)
+            val albumIdColumn = it.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_ID)
+            val addDateColumn = it.getColumnIndexOrThrow(MediaStore.Audio.Media.DATE_ADDED)
+            val modifiedDateColumn =
+                it.getColumnIndexOrThrow(MediaStore.Audio.Media.DATE_MODIFIED)
+            // Only there from R on, -1 before.
+            val writerColumn = it.getColumnIndex(MediaStore.Audio.Media.WRITER)
+            val compilationColumn = it.getColumnIndex(MediaStore.Audio.Media.COMPILATION)
+            val cdTrackNumberColumn = it.getColumnIndex(MediaStore.Audio.Media.CD_TRACK_NUMBER)
+            val discColumn = it.getColumnIndex(MediaStore.Audio.Media.DISC_NUMBER)
+            val genreColumn = it.getColumnIndex(MediaStore.Audio.Media.GENRE)
+            val genreIdColumn = it.getColumnIndex(MediaStore.Audio.Media.GENRE_ID)
+            val authorColumn = it.getColumnIndex(MediaStore.Audio.Media.AUTHOR)
+            fun string(column: Int) = if (column == -1) null else it.getString(column)
+            fun long(column: Int) =
+                if (column == -1 || it.isNull(column)) null else it.getLong(column)
+
+            // The filter only needs three columns, check it first so that genres are only
+            // looked up for rows which are kept.
+            val accepted = mutableListOf<Int>()
+            while (it.moveToNext()) {
+                if (filter.accepts(it.getString(pathColumn), it.getLong(durationColumn)))
+                    accepted.add(it.position)
+                else rejected.add(it.getLong(idColumn))
+            }
+            val genres = if (genreColumn == -1) readGenres(context, accepted.map { p ->
+                it.moveToPosition(p)
+                it.getLong(idColumn)
+            }) else null
+            for (position in accepted) {
+                it.moveToPosition(position)
+                val id = it.getLong(idColumn)
+                // MediaStore encodes disc number into the thousands of TRACK before R
+                val track = it.getInt(trackColumn)
+                val disc = if (discColumn != -1 && !it.isNull(discColumn))
+                    it.getString(discColumn)?.substringBefore('/')?.toIntOrNull()
+                else track / 1000
+                val albumId = long(albumIdColumn)
+                val genre = genres?.get(id)
+                val (recordingYear, recordingMonth, recordingDay) =
+                    parseDate(string(yearColumn))
+                val item = buildMediaItem(
+                    table = table,
+                    uri = File(it.getString(pathColumn)).toUri(),
+                    mediaId = id,
+                    mimeType = string(mimeTypeColumn),
+                    title = string(titleColumn),
+                    writer = string(writerColumn),
+                    compilation = string(compilationColumn),
+                    composer = string(composerColumn),
+                    artist = string(artistColumn),
+                    albumTitle = string(albumColumn),
+                    albumArtist = string(albumArtistColumn),
+                    artworkUri = albumId?.let { a -> ContentUris.withAppendedId(albumArtUri, a) },
+                    cdTrackNumber = string(cdTrackNumberColumn),
+                    trackNumber = (track % 1000).takeIf { t -> t != 0 },
+                    discNumber = disc?.takeIf { d -> d != 0 },
+                    genre = if (genres != null) genre?.second else string(genreColumn),
+                    recordingDay = recordingDay,
+                    recordingMonth = recordingMonth,
+                    recordingYear = recordingYear,
+                    // MediaStore only knows one date, which media3 calls the recording date.
+                    releaseYear = null,
+                    artistId = long(artistIdColumn),
+                    albumId = albumId,
+                    genreId = if (genres != null) genre?.first else long(genreIdColumn),
+                    author = string(authorColumn),
+                    addDate = long(addDateColumn),
+                    duration = it.getLong(durationColumn),
+                    modifiedDate = long(modifiedDateColumn)
+                )
+                items.add(item)
+                onItem?.invoke(item)
+            }
+        }
+        return Pair(items, rejected)
+    }
+
+    /**
+     * Parses MediaStore's YEAR column. It is a plain year on most devices, but some keep
+     * the whole date of the tag, ie. "2004-05-21" or "20040521".
+     *
+     * @return year, month and day, each null if unknown
+     */
+    private fun parseDate(year: String?): Triple<Int?, Int?, Int?> {
+        val digits = year?.trim()?.filter { it.isDigit() }
+        if (digits.isNullOrEmpty() || digits.length < 4) return Triple(null, null, null)
+        val y = digits.substring(0, 4).toInt().takeIf { it != 0 }
+            ?: return Triple(null, null, null)
+        val m = digits.takeIf { it.length >= 6 }?.substring(4, 6)?.toInt()
+            ?.takeIf { it in 1..12 }
+        val d = digits.takeIf { m != null && it.length >= 8 }?.substring(6, 8)?.toInt()
+            ?.takeIf { it in 1..31 }
+        return Triple(y, m, d)
+    }
+
+    /**
+     * Looks up the genre of each song in [ids]. Before R, MediaStore has no genre column
+     * and genres are only reachable through Genres.Members. A song in more than one genre
+     * gets the first one.
+     *
+     * @return genre id and name by song id
+     */
+    private fun readGenres(context: Context, ids: List<Long>): Map<Long, Pair<Long, String?>> {
+        val genres = HashMap<Long, Pair<Long, String?>>()
+        if (ids.isEmpty()) return genres
+        context.contentResolver.query(
+            MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI,
+            arrayOf(MediaStore.Audio.Genres._ID, MediaStore.Audio.Genres.NAME),
+            null, null, MediaStore.Audio.Genres._ID
+        )?.use {
+            while (it.moveToNext()) {
+                val genre = Pair(it.getLong(0), it.getString(1))
+                // Only ids are part of the selection, so there is nothing to bind.
+                ids.chunked(MAX_IDS_PER_QUERY).forEach { chunk ->
+                    context.contentResolver.query(
+                        MediaStore.Audio.Genres.Members.getContentUri("external", genre.first),
+                        arrayOf(MediaStore.Audio.Genres.Members.AUDIO_ID),
+                        "${MediaStore.Audio.Genres.Members.AUDIO_ID} IN " +
+                                "(${chunk.joinToString(",")})", null, null
+                    )?.use { m ->
+                        while (m.moveToNext()) {
+                            val id = m.getLong(0)
+                            if (!genres.containsKey(id)) genres[id] = genre
+                        }
+                    }
+                }
+            }
+        }
+        return genres
+    }
+
+    private val albumArtUri = Uri.parse("content://media/external/audio/albumart")
+
+    /**
+     * [SongPager] publishes the songs read so far while a load is still running, so that
+     * the UI has something to show before all groupings are done.
+     */
+    private class SongPager(
+        private val repository: LibraryRepository, private val total: Int,
+        private var onFirstPage: (() -> Unit)?
+    ) {
+        private val songs = ArrayList<MediaItem>()
+        private var lastPublish = 0L
+
+        fun add(item: MediaItem) {
+            songs.add(item)
+            val now = SystemClock.uptimeMillis()
+            val due = if (lastPublish == 0L) songs.size >= FIRST_PAGE_SIZE
+                else now - lastPublish >= PAGE_INTERVAL_MS
+            if (!due) return
+            lastPublish = now
+            val page = ArrayList(songs)
+            val callback = onFirstPage
+            onFirstPage = null
+            CoroutineScope(Dispatchers.Main).launch {
+                repository.mediaItemList.value = page
+                repository.loadProgress.value = LibraryRepository.LoadProgress(page.size, total)
+                callback?.let { it() }
+            }
+        }
+
+        /**
+         * @return the first page callback if no page was published, ie. because the library
+         *  is smaller than one page, so that it can be called once everything is published
+         */
+        fun finish(): (() -> Unit)? = onFirstPage.also { onFirstPage = null }
+    }
+
+    private const val FIRST_PAGE_SIZE = 200
+    private const val PAGE_INTERVAL_MS = 250L
+    private const val MAX_IDS_PER_QUERY = 900
+    // Rows come out in title order, whichever order the provider keeps them in
+    private const val SONG_SORT_ORDER = MediaStore.Audio.Media.TITLE + " COLLATE UNICODE ASC"
+
+    private fun countSongs(context: Context, filter: LibraryFilter): Int {
+        val (selection, args) = filter.selection()
+        return context.contentResolver.query(
+            MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, arrayOf(MediaStore.Audio.Media._ID),
+            selection, args, null
+        )?.use { it.count } ?: 0
+    }
+
+    /**
+     * [updateLibraryWithInCoroutine] reads the whole library and publishes it.
+     *
+     * @param onFirstPage if set, songs are published in pages while they are read, and
+     *  [onFirstPage] is called once the first page is shown, or right before [then] if the
+     *  library is smaller than a page. Only useful if nothing is shown yet, otherwise the
+     *  list would shrink and grow again.
+     */
+    fun updateLibraryWithInCoroutine(
+        repository: LibraryRepository, context: Context, then: (() -> Unit)?,
+        onFirstPage: (() -> Unit)? = null
+    ) {
+        val trace = LibraryLoadTrace("full")
+        val filter = readFilter(context)
+        val sync = repository.incrementalSync
+        val pager = onFirstPage?.let {
+            val total = trace.phase("count", { c -> c }) { countSongs(context, filter) }
+            SongPager(repository, total, it)
+        }
+        val (content, state) = synchronized(sync) {
+            val table = SongTable()
+            val content = repository.applyBudget(context,
+                getAllSongs(context, filter, table, trace, pager))
+            sync.remember(context, content.songList, filter)
+            repository.latestContent = content
+            SongTable.library = table
+            Pair(content, sync.saveState())
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "string pool saved ${StringPool.bytesSaved / 1024}KiB so far")
+        }
+        val notShown = pager?.finish()
+        publish(repository, content, if (notShown == null) then else {
+            { notShown(); then?.let { it() } }
+        }, trace, progressive = pager != null)
+        writeSnapshot(context, content, state)
     }
 
-    fun updateLibraryWithInCoroutine(libraryViewModel: LibraryViewModel, context: Context, then: (() -> Unit)?) {
-        val pairObject = getAllSongs(context)
+    /**
+     * Like [updateLibraryWithInCoroutine], but only reads the rows which changed since the
+     * last load and patches the current library with them. Falls back to a full load if
+     * there is nothing to patch or the delta is too large to be worth it.
+     *
+     * @param hint ids of songs which are known to have changed
+     */
+    fun updateLibraryIncrementallyWithInCoroutine(
+        repository: LibraryRepository, context: Context, hint: Set<Long>,
+        then: (() -> Unit)?
+    ) {
+        val trace = LibraryLoadTrace("incremental")
+        val sync = repository.incrementalSync
+        val filter = readFilter(context)
+        val (content, state) = synchronized(sync) {
+            val old = repository.latestContent
+            val table = SongTable.library
+            // Dropping the table for a new one is the only way to get rid of stale rows.
+            val delta = if (old != null && table != null &&
+                !table.isWasteful(old.songList.size)) {
+                trace.phase("queryDelta", { it?.let { d -> d.changed.size + d.deleted.size } }) {
+                    sync.queryDelta(context, filter, table, hint)
+                }
+            } else null
+            if (old == null || delta == null) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "incremental update not possible, doing full rescan")
+                }
+                return@synchronized null
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "applying delta: ${delta.changed.size} changed, " +
+                        "${delta.deleted.size} deleted")
+            }
+            val content = trace.phase("patch", { it.songList.size }) {
+                LibraryGrouper(MediaItemFields).patch(old, delta.changed, delta.deleted).let {
+                    // An empty delta keeps the old instance, don't rebuild lazy groups for it.
+                    if (it === old) old else repository.applyBudget(context, it)
+                }
+            }
+            sync.remember(context, content.songList, filter)
+            repository.latestContent = content
+            Pair(content, sync.saveState())
+        } ?: Pair(null, null)
+        if (content == null || state == null) {
+            updateLibraryWithInCoroutine(repository, context, then)
+            return
+        }
+        publish(repository, content, then, trace)
+        writeSnapshot(context, content, state)
+    }
+
+    private val snapshotWriter = LibrarySnapshot(MediaItemCodec(null))
+    private val snapshotLock = Any()
+    @Volatile
+    private var lastSnapshot: LibraryContent<MediaItem>? = null
+
+    private fun snapshotFile(context: Context) = File(context.cacheDir, "library.snapshot")
+
+    /**
+     * [loadSnapshotWithInCoroutine] publishes the library stored by the last load, if it
+     * was made with the current filter settings. The caller is expected to reconcile it
+     * with MediaStore using [updateLibraryIncrementallyWithInCoroutine] afterwards.
+     *
+     * @return whether a snapshot was published
+     */
+    fun loadSnapshotWithInCoroutine(
+        repository: LibraryRepository, context: Context, then: (() -> Unit)?
+    ): Boolean {
+        val trace = LibraryLoadTrace("snapshot")
+        val filter = readFilter(context)
+        val table = SongTable()
+        val loaded = trace.phase("read snapshot", { it?.content?.songList?.size }) {
+            try {
+                LibrarySnapshot(MediaItemCodec(table)).read(snapshotFile(context))
+            } catch (e: IOException) {
+                Log.w(TAG, "failed to read library snapshot", e)
+                snapshotFile(context).delete()
+                null
+            }
+        } ?: return false
+        val content = repository.applyBudget(context, loaded.content)
+        val sync = repository.incrementalSync
+        synchronized(sync) {
+            // If a real load finished in the meantime, it is newer than the snapshot.
+            if (sync.hasBaseline ||
+                !sync.restoreState(loaded.meta, content.songList, filter)) return false
+            repository.latestContent = content
+            SongTable.library = table
+        }
+        lastSnapshot = content
+        publish(repository, content, then, trace)
+        return true
+    }
+
+    private fun writeSnapshot(
+        context: Context, content: LibraryContent<MediaItem>, state: Map<String, String>
+    ) {
+        if (lastSnapshot === content) return
+        lastSnapshot = content
+        val appContext = context.applicationContext
+        CoroutineScope(Dispatchers.IO).launch {
+            synchronized(snapshotLock) {
+                // Don't overwrite a newer snapshot which is already waiting for the lock.
+                if (lastSnapshot !== content) return@launch
+                try {
+                    snapshotWriter.write(snapshotFile(appContext), content, state)
+                } catch (e: IOException) {
+                    Log.w(TAG, "failed to write library snapshot", e)
+                }
+            }
+        }
+    }
+
+    /**
+     * @param progressive if true, give the UI a chance to draw after each collection, so
+     *  that the first tabs show up before all adapters are done sorting
+     */
+    private fun publish(
+        repository: LibraryRepository, content: LibraryContent<MediaItem>,
+        then: (() -> Unit)?, trace: LibraryLoadTrace, progressive: Boolean = false
+    ) {
+        val index = trace.phase("index") { LibraryIndex(content) }
+        // Adapters check that the diff was made for the lists they have, a diff against
+        // content which was replaced in the meantime is just ignored.
+        val diff = repository.publishedContent?.let {
+            trace.phase("diff") { LibraryDiff.compute(it, content) }
+        }
+        trace.phase("search index") { repository.updateSearchIndex(content.songList, diff) }
         CoroutineScope(Dispatchers.Main).launch {
-            libraryViewModel.mediaItemList.value = pairObject.songList
-            libraryViewModel.albumItemList.value = pairObject.albumList!!
-            libraryViewModel.artistItemList.value = pairObject.artistList!!
-            libraryViewModel.albumArtistItemList.value = pairObject.albumArtistList!!
-            libraryViewModel.genreItemList.value = pairObject.genreList!!
-            libraryViewModel.dateItemList.value = pairObject.dateList!!
-            libraryViewModel.playlistList.value = pairObject.playlistList!!
-            libraryViewModel.folderStructure.value = pairObject.folderStructure!!
-            libraryViewModel.shallowFolderStructure.value = pairObject.shallowFolder!!
-            libraryViewModel.allFolderSet.value = pairObject.folders
+            // Positions of the old index don't match lists which were already replaced.
+            repository.index = null
+            repository.setPublished(content, diff)
+            // Untouched collections keep their instance, don't wake up observers for them.
+            // Observers run synchronously, so each phase includes the adapters' work.
+            listOf<Pair<String, () -> Unit>>(
+                "dispatch songs" to {
+                    repository.mediaItemList.setIfChanged(content.songList)
+                },
+                "dispatch albums" to {
+                    repository.albumItemList.setIfChanged(content.albumList)
+                },
+                "dispatch artists" to {
+                    repository.artistItemList.setIfChanged(content.artistList)
+                },
+                "dispatch album artists" to {
+                    repository.albumArtistItemList.setIfChanged(content.albumArtistList)
+                },
+                "dispatch genres" to {
+                    repository.genreItemList.setIfChanged(content.genreList)
+                },
+                "dispatch dates" to {
+                    repository.dateItemList.setIfChanged(content.dateList)
+                },
+                "dispatch playlists" to {
+                    repository.playlistList.setIfChanged(content.playlistList)
+                },
+                "dispatch folders" to {
+                    repository.folderStructure.setIfChanged(content.folderStructure)
+                    repository.shallowFolderStructure.setIfChanged(content.shallowFolder)
+                    repository.allFolderSet.setIfChanged(content.folders)
+                }
+            ).forEach { (name, dispatch) ->
+                trace.phase(name) { dispatch() }
+                if (progressive) yield()
+            }
+            repository.diff = null
+            repository.index = index
+            repository.loadProgress.setIfChanged(null)
             then?.let { it() }
+            trace.finish()
         }
     }
 
+    private fun <T> MutableLiveData<T>.setIfChanged(value: T) {
+        if (this.value !== value) this.value = value
+    }
+
 }
@@ -0,0 +1,52 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+/**
+ * [PathTrie] answers whether a path starts with any of a set of prefixes in time linear to
+ * the length of the path, no matter how many prefixes there are. Prefixes are matched per
+ * character like [String.startsWith], not per path segment.
+ */
+class PathTrie(prefixes: Collection<String>) {
+
+    private class Node {
+        val children = HashMap<Char, Node>()
+        var terminal = false
+    }
+
+    private val root = Node()
+
+    init {
+        for (prefix in prefixes) {
+            var node = root
+            for (c in prefix) {
+                node = node.children.getOrPut(c) { Node() }
+            }
+            node.terminal = true
+        }
+    }
+
+    fun matchesPrefixOf(path: String): Boolean {
+        var node = root
+        for (c in path) {
+            if (node.terminal) return true
+            node = node.children[c] ?: return false
+        }
+        return node.terminal
+    }
+}
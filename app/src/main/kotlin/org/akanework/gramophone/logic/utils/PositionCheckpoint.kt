@@ -0,0 +1,90 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+import android.util.Log
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.zip.CRC32
+
+/**
+ * [PositionCheckpoint] keeps the playback position in a small memory mapped file, so that
+ * it can be updated every few seconds while playing at the cost of a few memory writes.
+ * Pages of the mapping belong to the kernel, they reach the disk even if the process is
+ * killed right after.
+ *
+ * Layout (big endian): magic, queue generation, index, position, time of writing, CRC32 of
+ * the fields before. A record which was only partially written fails the CRC check.
+ */
+class PositionCheckpoint(file: File) {
+
+    companion object {
+        private const val TAG = "PositionCheckpoint"
+        private const val MAGIC = 0x47504350 // "GPCP"
+        private const val SIZE = 4 + 8 + 4 + 8 + 8 + 4
+        private const val CRC_OFFSET = SIZE - 4
+    }
+
+    class Checkpoint(
+        val generation: Long, val index: Int, val positionMs: Long, val timeMs: Long
+    )
+
+    private val buffer: MappedByteBuffer? = try {
+        RandomAccessFile(file, "rw").use {
+            // The mapping stays valid after the channel is closed.
+            it.channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE.toLong())
+        }
+    } catch (e: IOException) {
+        Log.e(TAG, "failed to map position checkpoint", e)
+        null
+    }
+    private val crc = CRC32()
+
+    @Synchronized
+    fun write(generation: Long, index: Int, positionMs: Long) {
+        val buffer = buffer ?: return
+        buffer.putInt(0, MAGIC)
+        buffer.putLong(4, generation)
+        buffer.putInt(12, index)
+        buffer.putLong(16, positionMs)
+        buffer.putLong(24, System.currentTimeMillis())
+        buffer.putInt(CRC_OFFSET, checksum(buffer))
+    }
+
+    /**
+     * @return the last checkpoint written, or null if there is none which is intact
+     */
+    @Synchronized
+    fun read(): Checkpoint? {
+        val buffer = buffer ?: return null
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(CRC_OFFSET) != checksum(buffer)) {
+            return null
+        }
+        return Checkpoint(buffer.getLong(4), buffer.getInt(12), buffer.getLong(16),
+            buffer.getLong(24))
+    }
+
+    private fun checksum(buffer: MappedByteBuffer): Int {
+        crc.reset()
+        for (i in 0 until CRC_OFFSET) crc.update(buffer.get(i).toInt())
+        return crc.value.toInt()
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+import android.net.Uri
+import android.util.Log
+import androidx.annotation.OptIn
+import androidx.media3.common.MediaItem
+import androidx.media3.common.util.UnstableApi
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.launch
+import org.akanework.gramophone.BuildConfig
+import org.akanework.gramophone.logic.utils.exoplayer.EndedWorkaroundPlayer
+import java.io.BufferedOutputStream
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.Executors
+import java.util.zip.CRC32
+
+/**
+ * [QueueJournal] persists the playback queue as an append-only log of the changes made to
+ * it (add, remove, move, clear), so that saving costs as much as the change instead of as
+ * much as the queue. Once the log grew a lot larger than the queue it describes, it is
+ * compacted into a single add of the whole queue.
+ *
+ * Layout (big endian):
+ *  header     magic, version
+ *  records    length, op, payload, CRC32 of op and payload
+ *
+ * A record which was only partially written when the process died fails its length or CRC
+ * check, reading stops there.
+ *
+ * Changes are recorded on the player thread and only written by [flush]. The first write
+ * of a process replaces the file, as the player starts out with an empty queue.
+ *
+ * Items which [library] knows are only stored as a reference (media id and URI) and looked
+ * up again on [read], all at once. Only items it doesn't know are stored with all of their
+ * metadata.
+ */
+@OptIn(UnstableApi::class)
+class QueueJournal(
+    private val file: File, private val library: Library
+) : EndedWorkaroundPlayer.QueueListener {
+
+    companion object {
+        private const val TAG = "QueueJournal"
+        private const val MAGIC = 0x47514a4c // "GQJL"
+        private const val VERSION = 2
+        // Version 1 only had full items, without the form byte.
+        private const val VERSION_FULL_ONLY = 1
+        private const val FORM_REF: Byte = 0
+        private const val FORM_FULL: Byte = 1
+        private const val OP_ADD = 1
+        private const val OP_REMOVE = 2
+        private const val OP_MOVE = 3
+        private const val OP_CLEAR = 4
+        private const val COMPACT_FACTOR = 2
+        private const val COMPACT_MIN_BYTES = 64 * 1024L
+    }
+
+    /**
+     * Where queue items stored by reference are found again.
+     */
+    interface Library {
+        /**
+         * @return whether [resolve] will likely find [mediaId] later
+         */
+        fun contains(mediaId: String): Boolean
+
+        /**
+         * Look up all [refs] in one go.
+         *
+         * @return the item for each of [refs] in the same order, null if it is gone
+         */
+        fun resolve(refs: List<Ref>): List<MediaItem?>
+    }
+
+    class Ref(val mediaId: Long, val uri: Uri?)
+
+    private sealed class Op {
+        class Add(val index: Int, val items: List<MediaItem>) : Op()
+        class Remove(val fromIndex: Int, val toIndex: Int) : Op()
+        class Move(val fromIndex: Int, val toIndex: Int, val newIndex: Int) : Op()
+        data object Clear : Op()
+    }
+
+    private val pendingLock = Any()
+    private var pending = arrayListOf<Op>(Op.Clear)
+    private val fileLock = Any()
+    // One write at a time and in order, so that ops can be taken when flush() is called.
+    private val writer = Executors.newSingleThreadExecutor().asCoroutineDispatcher()
+
+    /**
+     * Counts changes to the queue. Continues from whatever it is set to, so that it can be
+     * carried on from a previous process.
+     */
+    @Volatile
+    var generation = 0L
+    private var compactedBytes = 0L
+    private var needsCompaction = true
+
+    override fun onItemsAdded(index: Int, items: List<MediaItem>) = enqueue(Op.Add(index, items))
+
+    override fun onItemsRemoved(fromIndex: Int, toIndex: Int) =
+        enqueue(Op.Remove(fromIndex, toIndex))
+
+    override fun onItemsMoved(fromIndex: Int, toIndex: Int, newIndex: Int) =
+        enqueue(Op.Move(fromIndex, toIndex, newIndex))
+
+    override fun onCleared() = enqueue(Op.Clear)
+
+    private fun enqueue(op: Op) {
+        synchronized(pendingLock) {
+            // Everything before a clear is moot.
+            if (op is Op.Clear) pending.clear()
+            pending.add(op)
+            generation++
+        }
+    }
+
+    /**
+     * Start writing all changes recorded so far in the background. Once done, the file is
+     * at the [generation] this was called at.
+     *
+     * @return the write, or null if there was nothing to write
+     */
+    fun flush(): Job? {
+        val ops = synchronized(pendingLock) {
+            if (pending.isEmpty()) return null
+            pending.also { pending = ArrayList() }
+        }
+        return CoroutineScope(writer).launch {
+            synchronized(fileLock) {
+                try {
+                    if (needsCompaction || ops.first() is Op.Clear) {
+                        compact(ops)
+                    } else {
+                        append(ops)
+                        if (file.length() > maxOf(COMPACT_MIN_BYTES,
+                                compactedBytes * COMPACT_FACTOR)) {
+                            compact(emptyList())
+                        }
+                    }
+                } catch (e: IOException) {
+                    Log.e(TAG, "failed to write queue journal", e)
+                    // The file may end in the middle of a record now, rewrite it next time.
+                    needsCompaction = true
+                }
+            }
+        }
+    }
+
+    /**
+     * The queue as of the last finished write. Items are only decoded when asked for, so
+     * that the current one can be handed to the player before the others are looked up.
+     */
+    inner class Snapshot internal constructor(private val items: List<ByteArray>) {
+        val size: Int
+            get() = items.size
+
+        /**
+         * Decode the items from [fromIndex] (inclusive) to [toIndex] (exclusive), looking
+         * up all references among them at once.
+         *
+         * @return the items, null for those stored by reference which can't be found anymore
+         */
+        fun decode(fromIndex: Int = 0, toIndex: Int = size): List<MediaItem?> {
+            val range = items.subList(fromIndex, toIndex)
+            val refs = range.mapNotNull {
+                if (it[0] == FORM_REF) ItemCodec.decodeRef(it) else null
+            }
+            val resolved = if (refs.isEmpty()) emptyList() else library.resolve(refs)
+            var next = 0
+            return range.map {
+                if (it[0] != FORM_REF) return@map ItemCodec.decodeFull(it)
+                val ref = refs[next]
+                // MediaStore may have given the id to another file since.
+                resolved[next++]?.takeIf { item ->
+                    ref.uri == null || item.localConfiguration?.uri == ref.uri
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the queue as of the last finished write, or null if there is none
+     */
+    fun open(): Snapshot? = synchronized(fileLock) { replay() }?.let { Snapshot(it) }
+
+    private fun encode(item: MediaItem): ByteArray {
+        val id = item.mediaId.toLongOrNull()
+        return if (id != null && library.contains(item.mediaId))
+            ItemCodec.encodeRef(id, item.localConfiguration?.uri)
+        else ItemCodec.encodeFull(item)
+    }
+
+    private fun append(ops: List<Op>) {
+        DataOutputStream(BufferedOutputStream(FileOutputStream(file, true), 1 shl 16)).use {
+            ops.forEach { op -> writeRecord(it, op) }
+        }
+    }
+
+    private fun compact(ops: List<Op>) {
+        val items = (if (ops.firstOrNull() is Op.Clear) null else replay())
+            ?: ArrayList<ByteArray>()
+        ops.forEach { applyOp(items, it) }
+        val tmp = File(file.parentFile, file.name + ".tmp")
+        DataOutputStream(BufferedOutputStream(FileOutputStream(tmp), 1 shl 16)).use {
+            it.writeInt(MAGIC)
+            it.writeInt(VERSION)
+            if (items.isNotEmpty()) writeRecord(it, OP_ADD) { out ->
+                out.writeInt(0)
+                out.writeInt(items.size)
+                items.forEach { item -> out.writeInt(item.size); out.write(item) }
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete()
+            throw IOException("failed to rename $tmp to $file")
+        }
+        compactedBytes = file.length()
+        needsCompaction = false
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "compacted queue journal to ${items.size} items, $compactedBytes bytes")
+        }
+    }
+
+    /**
+     * Reads the file and applies all intact records to a list of encoded items.
+     */
+    private fun replay(): ArrayList<ByteArray>? {
+        val bytes = try {
+            file.readBytes()
+        } catch (e: IOException) {
+            return null
+        }
+        val input = DataInputStream(ByteArrayInputStream(bytes))
+        if (bytes.size < 8 || input.readInt() != MAGIC) return null
+        val version = input.readInt()
+        if (version != VERSION && version != VERSION_FULL_ONLY) return null
+        val items = ArrayList<ByteArray>()
+        val crc = CRC32()
+        while (true) {
+            val length = try {
+                input.readInt()
+            } catch (e: EOFException) {
+                break
+            }
+            if (length <= 0 || length + 4 > input.available()) {
+                Log.w(TAG, "queue journal ends in a partial record")
+                break
+            }
+            val record = ByteArray(length)
+            input.readFully(record)
+            crc.reset()
+            crc.update(record)
+            if (input.readInt() != crc.value.toInt()) {
+                Log.w(TAG, "queue journal record has bad checksum")
+                break
+            }
+            val data = DataInputStream(ByteArrayInputStream(record))
+            when (data.readByte().toInt()) {
+                OP_ADD -> {
+                    val index = data.readInt()
+                    val added = List(data.readInt()) {
+                        val item = ByteArray(data.readInt()).also { item -> data.readFully(item) }
+                        if (version == VERSION_FULL_ONLY) byteArrayOf(FORM_FULL) + item else item
+                    }
+                    items.addAll(index.coerceAtMost(items.size), added)
+                }
+                OP_REMOVE -> removeRange(items, data.readInt(), data.readInt())
+                OP_MOVE -> moveRange(items, data.readInt(), data.readInt(), data.readInt())
+                OP_CLEAR -> items.clear()
+                else -> {
+                    Log.w(TAG, "queue journal has unknown op")
+                    break
+                }
+            }
+        }
+        return items
+    }
+
+    private fun applyOp(items: MutableList<ByteArray>, op: Op) {
+        when (op) {
+            is Op.Add -> items.addAll(op.index.coerceAtMost(items.size),
+                op.items.map { encode(it) })
+            is Op.Remove -> removeRange(items, op.fromIndex, op.toIndex)
+            is Op.Move -> moveRange(items, op.fromIndex, op.toIndex, op.newIndex)
+            Op.Clear -> items.clear()
+        }
+    }
+
+    private fun removeRange(items: MutableList<ByteArray>, fromIndex: Int, toIndex: Int) {
+        items.subList(fromIndex.coerceAtMost(items.size), toIndex.coerceAtMost(items.size))
+            .clear()
+    }
+
+    private fun moveRange(
+        items: MutableList<ByteArray>, fromIndex: Int, toIndex: Int, newIndex: Int
+    ) {
+        val range = items.subList(fromIndex.coerceAtMost(items.size),
+            toIndex.coerceAtMost(items.size))
+        val moved = ArrayList(range)
+        range.clear()
+        items.addAll(newIndex.coerceAtMost(items.size), moved)
+    }
+
+    private fun writeRecord(out: DataOutputStream, op: Op) {
+        when (op) {
+            is Op.Add -> writeRecord(out, OP_ADD) {
+                it.writeInt(op.index)
+                it.writeInt(op.items.size)
+                op.items.forEach { item ->
+                    val bytes = encode(item)
+                    it.writeInt(bytes.size)
+                    it.write(bytes)
+                }
+            }
+            is Op.Remove -> writeRecord(out, OP_REMOVE) {
+                it.writeInt(op.fromIndex)
+                it.writeInt(op.toIndex)
+            }
+            is Op.Move -> writeRecord(out, OP_MOVE) {
+                it.writeInt(op.fromIndex)
+                it.writeInt(op.toIndex)
+                it.writeInt(op.newIndex)
+            }
+            Op.Clear -> writeRecord(out, OP_CLEAR) {}
+        }
+    }
+
+    private inline fun writeRecord(
+        out: DataOutputStream, op: Int, payload: (DataOutputStream) -> Unit
+    ) {
+        val buffer = ByteArrayOutputStream()
+        DataOutputStream(buffer).use {
+            it.writeByte(op)
+            payload(it)
+        }
+        val record = buffer.toByteArray()
+        val crc = CRC32()
+        crc.update(record)
+        out.writeInt(record.size)
+        out.write(record)
+        out.writeInt(crc.value.toInt())
+    }
+
+    /**
+     * Binary forms of a queue item, starting with which form it is: a reference, or all
+     * fields [LastPlayedManager] persists for an item. Nullable values are prefixed by
+     * whether they are present.
+     */
+    private object ItemCodec {
+
+        fun encodeRef(mediaId: Long, uri: Uri?): ByteArray {
+            val buffer = ByteArrayOutputStream(64)
+            DataOutputStream(buffer).use {
+                it.writeByte(FORM_REF.toInt())
+                it.writeLong(mediaId)
+                it.writeNullableString(uri?.toString())
+            }
+            return buffer.toByteArray()
+        }
+
+        fun decodeRef(bytes: ByteArray): Ref {
+            val input = DataInputStream(ByteArrayInputStream(bytes, 1, bytes.size - 1))
+            return Ref(input.readLong(), input.readNullableString()?.let { Uri.parse(it) })
+        }
+
+        fun encodeFull(item: MediaItem): ByteArray {
+            val buffer = ByteArrayOutputStream(256)
+            DataOutputStream(buffer).use {
+                val metadata = item.mediaMetadata
+                it.writeByte(FORM_FULL.toInt())
+                it.writeUTF(item.mediaId)
+                it.writeNullableString(item.localConfiguration?.uri?.toString())
+                it.writeNullableString(item.localConfiguration?.mimeType)
+                it.writeNullableString(metadata.title?.toString())
+                it.writeNullableString(metadata.artist?.toString())
+                it.writeNullableString(metadata.albumTitle?.toString())
+                it.writeNullableString(metadata.albumArtist?.toString())
+                it.writeNullableString(metadata.artworkUri?.toString())
+                it.writeNullableInt(metadata.trackNumber)
+                it.writeNullableInt(metadata.discNumber)
+                it.writeNullableInt(metadata.recordingYear)
+                it.writeNullableInt(metadata.releaseYear)
+                it.writeNullableBoolean(metadata.isBrowsable)
+                it.writeNullableBoolean(metadata.isPlayable)
+                it.writeNullableLong(item.addDate)
+                it.writeNullableString(metadata.writer?.toString())
+                it.writeNullableString(metadata.compilation?.toString())
+                it.writeNullableString(metadata.composer?.toString())
+                it.writeNullableString(metadata.genre?.toString())
+                it.writeNullableInt(metadata.recordingDay)
+                it.writeNullableInt(metadata.recordingMonth)
+                it.writeNullableLong(item.artistId)
+                it.writeNullableLong(item.albumId)
+                it.writeNullableLong(item.genreId)
+                it.writeNullableString(item.author)
+                it.writeNullableInt(item.cdTrackNumber)
+                it.writeNullableLong(metadata.durationMs)
+                it.writeNullableString(metadata.extras?.getString("Path"))
+                it.writeNullableLong(item.modifiedDate)
+            }
+            return buffer.toByteArray()
+        }
+
+        fun decodeFull(bytes: ByteArray): MediaItem {
+            val input = DataInputStream(ByteArrayInputStream(bytes, 1, bytes.size - 1))
+            return persistedMediaItem(
+                mediaId = input.readUTF(),
+                uri = input.readNullableString()?.let { Uri.parse(it) },
+                mimeType = input.readNullableString(),
+                title = input.readNullableString(),
+                artist = input.readNullableString(),
+                album = input.readNullableString(),
+                albumArtist = input.readNullableString(),
+                imgUri = input.readNullableString()?.let { Uri.parse(it) },
+                trackNumber = input.readNullableInt(),
+                discNumber = input.readNullableInt(),
+                recordingYear = input.readNullableInt(),
+                releaseYear = input.readNullableInt(),
+                isBrowsable = input.readNullableBoolean(),
+                isPlayable = input.readNullableBoolean(),
+                addDate = input.readNullableLong(),
+                writer = input.readNullableString(),
+                compilation = input.readNullableString(),
+                composer = input.readNullableString(),
+                genre = input.readNullableString(),
+                recordingDay = input.readNullableInt(),
+                recordingMonth = input.readNullableInt(),
+                artistId = input.readNullableLong(),
+                albumId = input.readNullableLong(),
+                genreId = input.readNullableLong(),
+                author = input.readNullableString(),
+                cdTrackNumber = input.readNullableInt(),
+                duration = input.readNullableLong(),
+                path = input.readNullableString(),
+                modifiedDate = input.readNullableLong()
+            )
+        }
+
+        private fun DataOutputStream.writeNullableString(value: String?) {
+            writeBoolean(value != null)
+            if (value != null) {
+                val bytes = value.toByteArray(Charsets.UTF_8)
+                writeInt(bytes.size)
+                write(bytes)
+            }
+        }
+
+        private fun DataOutputStream.writeNullableInt(value: Int?) {
+            writeBoolean(value != null)
+            if (value != null) writeInt(value)
+        }
+
+        private fun DataOutputStream.writeNullableLong(value: Long?) {
+            writeBoolean(value != null)
+            if (value != null) writeLong(value)
+        }
+
+        private fun DataOutputStream.writeNullableBoolean(value: Boolean?) {
+            writeByte(if (value == null) -1 else if (value) 1 else 0)
+        }
+
+        private fun DataInputStream.readNullableString(): String? =
+            if (!readBoolean()) null
+            else String(ByteArray(readInt()).also { readFully(it) }, Charsets.UTF_8)
+
+        private fun DataInputStream.readNullableInt(): Int? =
+            if (readBoolean()) readInt() else null
+
+        private fun DataInputStream.readNullableLong(): Long? =
+            if (readBoolean()) readLong() else null
+
+        private fun DataInputStream.readNullableBoolean(): Boolean? =
+            when (readByte().toInt()) {
+                -1 -> null
+                0 -> false
+                else -> true
+            }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+import android.os.Handler
+
+/**
+ * [SaveScheduler] coalesces requests to save into at most one save per [delayMs]. Requests
+ * only mark the state as dirty, the save runs once the window which started with the first
+ * of them ends, however many came in meanwhile. [saveNow] is for when waiting is not an
+ * option, ie. the process may be about to go away.
+ *
+ * Must only be used on the thread of [handler].
+ */
+class SaveScheduler(
+    private val handler: Handler,
+    private val delayMs: Long,
+    private val save: () -> Unit
+) {
+
+    private var dirty = false
+    private val saveRunnable = Runnable { saveNow() }
+
+    /**
+     * Save within [delayMs], together with everything else marked until then.
+     */
+    fun markDirty() {
+        if (dirty) return
+        dirty = true
+        handler.postDelayed(saveRunnable, delayMs)
+    }
+
+    /**
+     * Save right away, even if nothing was marked, and drop the scheduled save.
+     */
+    fun saveNow() {
+        handler.removeCallbacks(saveRunnable)
+        dirty = false
+        save()
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+/**
+ * [SearchIndex] finds songs whose title, album or artist contains a query, without
+ * looking at every song. Each song's fields are normalized once into a key (see
+ * [SearchNormalizer], romanized spellings are appended where there are any), and every
+ * three characters of a key (trigram) map to the songs containing them. A query only has
+ * to check the songs which contain all of its trigrams. Queries shorter than a trigram
+ * scan the precomputed keys.
+ *
+ * Songs which changed or were removed leave a dead entry behind when the index is
+ * [update]d instead of rebuilt, it is rebuilt once too many of them piled up.
+ *
+ * It is generic over the song type so it can be used with [androidx.media3.common.MediaItem]
+ * in the app and with plain objects in unit tests. Methods are synchronized, queries are
+ * fast enough that they don't need to run concurrently.
+ */
+class SearchIndex<T>(private val fields: Fields<T>, songs: List<T>) :
+    SearchPipeline.Searchable<T> {
+
+    companion object {
+        // Can't be typed, keeps trigrams and matches within one field.
+        private const val SEPARATOR = '\u0001'
+        private const val GRAM = 3
+        // Rebuild once dead entries are more than 1/MAX_DEAD_FRACTION of all.
+        private const val MAX_DEAD_FRACTION = 2
+        private const val NO_MATCH = -1
+        private const val MATCH_SUBSTRING = 0
+        private const val MATCH_WORD_PREFIX = 1
+        private const val MATCH_PREFIX = 2
+        private const val MATCH_EXACT = 3
+        // Per field of a key (title, album, artist, then the same romanized), breaks ties
+        // between kinds of match.
+        private val FIELD_WEIGHTS = intArrayOf(2, 0, 1)
+        // An exact title match, see score().
+        private const val MAX_SCORE = MATCH_EXACT * 3 + 2
+
+        private fun gram(key: String, i: Int): Long =
+            (key[i].code.toLong() shl 32) or (key[i + 1].code.toLong() shl 16) or
+                    key[i + 2].code.toLong()
+    }
+
+    interface Fields<T> {
+        /**
+         * Tells songs apart across library updates.
+         */
+        fun key(item: T): String
+        fun title(item: T): String?
+        fun album(item: T): String?
+        fun artist(item: T): String?
+    }
+
+    // Growable list of entries in ascending order.
+    private class Postings {
+        var entries = IntArray(4)
+        var size = 0
+
+        fun add(entry: Int) {
+            // Entries are added in order, a repeated trigram repeats the last one.
+            if (size > 0 && entries[size - 1] == entry) return
+            if (size == entries.size) entries = entries.copyOf(size * 2)
+            entries[size++] = entry
+        }
+    }
+
+    /**
+     * The songs this index was built or last updated for, results are in their order.
+     */
+    override var songs: List<T> = songs
+        private set
+    // One entry per song indexed since the last rebuild, null if it is dead.
+    private val items = ArrayList<T?>()
+    private val keys = ArrayList<String>()
+    private var positions = IntArray(0)
+    private val entryOf = HashMap<String, Int>()
+    private val postings = HashMap<Long, Postings>()
+    private var dead = 0
+
+    init {
+        rebuild(songs)
+    }
+
+    private fun rebuild(songs: List<T>) {
+        items.clear()
+        keys.clear()
+        entryOf.clear()
+        postings.clear()
+        dead = 0
+        items.ensureCapacity(songs.size)
+        keys.ensureCapacity(songs.size)
+        songs.forEach { add(it) }
+        locate(songs)
+    }
+
+    private fun add(item: T) {
+        val entry = items.size
+        val values = listOf(fields.title(item), fields.album(item), fields.artist(item))
+        val normalized = values.map { it?.let { SearchNormalizer.normalize(it) } }
+        val romanized = values.map { it?.let { SearchNormalizer.romanize(it) } }
+        val key = (if (romanized.all { it == null }) normalized else normalized + romanized)
+            .joinToString(SEPARATOR.toString()) { it ?: "" }
+        items.add(item)
+        keys.add(key)
+        entryOf[fields.key(item)] = entry
+        for (i in 0..key.length - GRAM) {
+            if (key[i] == SEPARATOR || key[i + 1] == SEPARATOR || key[i + 2] == SEPARATOR) {
+                continue
+            }
+            postings.getOrPut(gram(key, i)) { Postings() }.add(entry)
+        }
+    }
+
+    // Points entries at their song's position in songs, and at the song instance there.
+    private fun locate(songs: List<T>) {
+        this.songs = songs
+        positions = IntArray(items.size)
+        songs.forEachIndexed { i, song ->
+            val entry = entryOf[fields.key(song)] ?: return@forEachIndexed
+            positions[entry] = i
+            items[entry] = song
+        }
+    }
+
+    /**
+     * Bring the index up to date with [songs]. Only the songs in [changes] are indexed again
+     * if it describes the way from the current songs to [songs], otherwise (or if that is
+     * not worth it anymore) the index is rebuilt.
+     */
+    @Synchronized
+    fun update(songs: List<T>, changes: LibraryDiff.ChangeSet<T>?) {
+        if (songs === this.songs) return
+        if (changes == null || changes.old !== this.songs || changes.new !== songs) {
+            rebuild(songs)
+            return
+        }
+        for (key in changes.removed + changes.changed.keys) {
+            entryOf.remove(key)?.let {
+                items[it] = null
+                dead++
+            }
+        }
+        changes.changed.values.forEach { add(it) }
+        changes.added.forEach { add(it) }
+        if (dead * MAX_DEAD_FRACTION > items.size) rebuild(songs) else locate(songs)
+    }
+
+    /**
+     * @param within results of an earlier search of [songs], if [query] contains the query
+     *  of that search, everything it matches is among them and only they are checked
+     * @return songs whose title, album or artist contains [query], best matches first (see
+     *  [score]) and in the order of [songs] among equally good ones
+     */
+    @Synchronized
+    override fun search(query: String, within: List<T>?): List<T> {
+        val q = SearchNormalizer.normalize(query)
+        if (q.isEmpty()) return emptyList()
+        val matches = when {
+            within != null -> within.mapNotNull { entryOf[fields.key(it)] }
+                .filter { keys[it].contains(q) }
+            q.length < GRAM -> items.indices.filter { items[it] != null && keys[it].contains(q) }
+            // All trigrams are necessary, not sufficient: "abc-bcd" has those of "abcd".
+            else -> candidates(q).filter { items[it] != null && keys[it].contains(q) }
+        }
+        // Higher scores sort first, ties by position.
+        val order = LongArray(matches.size) {
+            val entry = matches[it]
+            ((MAX_SCORE - score(keys[entry], q)).toLong() shl 32) or positions[entry].toLong()
+        }
+        order.sort()
+        return order.map { songs[it.toInt()] }
+    }
+
+    /**
+     * How well [q] matches [key], higher is better. The kind of match counts most: the
+     * whole field beats its start, which beats the start of a word in it, which beats
+     * anywhere else. Among matches of the same kind, title beats artist beats album, and a
+     * romanized field counts like the original.
+     *
+     * @return the score of the best matching field, or -1 if none matches
+     */
+    private fun score(key: String, q: String): Int {
+        var best = -1
+        var start = 0
+        var field = 0
+        while (start <= key.length) {
+            val end = key.indexOf(SEPARATOR, start).let { if (it == -1) key.length else it }
+            val match = match(key, start, end, q)
+            if (match != NO_MATCH) {
+                best = maxOf(best,
+                    match * FIELD_WEIGHTS.size + FIELD_WEIGHTS[field % FIELD_WEIGHTS.size])
+            }
+            field++
+            start = end + 1
+        }
+        return best
+    }
+
+    private fun match(key: String, start: Int, end: Int, q: String): Int {
+        var i = key.indexOf(q, start)
+        if (i == -1 || i + q.length > end) return NO_MATCH
+        if (i == start) return if (end - start == q.length) MATCH_EXACT else MATCH_PREFIX
+        while (i != -1 && i + q.length <= end) {
+            if (!key[i - 1].isLetterOrDigit()) return MATCH_WORD_PREFIX
+            i = key.indexOf(q, i + 1)
+        }
+        return MATCH_SUBSTRING
+    }
+
+    // Entries which contain every trigram of q.
+    private fun candidates(q: String): List<Int> {
+        val lists = (0..q.length - GRAM).map { gram(q, it) }.distinct()
+            .map { postings[it] ?: return emptyList() }
+            .sortedBy { it.size }
+        val result = lists[0].entries.copyOf(lists[0].size)
+        var size = lists[0].size
+        for (list in lists.subList(1, lists.size)) {
+            var i = 0
+            var j = 0
+            var n = 0
+            while (i < size && j < list.size) {
+                val a = result[i]
+                val b = list.entries[j]
+                when {
+                    a < b -> i++
+                    a > b -> j++
+                    else -> {
+                        result[n++] = a
+                        i++
+                        j++
+                    }
+                }
+            }
+            size = n
+            if (size == 0) break
+        }
+        return result.asList().subList(0, size)
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package org.akanework.gramophone.logic.utils
+
+import android.icu.text.Transliterator
+import android.os.Build
+import android.util.Log
+import androidx.annotation.RequiresApi
+import java.text.Normalizer
+
+/**
+ * [SearchNormalizer] turns text into search keys which ignore differences users don't
+ * type: accents ("Beyonce" finds "Beyoncé"), full-width and other compatibility forms,
+ * case, and katakana versus hiragana.
+ *
+ * On Android 10 and later, where ICU transliteration is public API, it can also give a
+ * Latin spelling of Han, kana and Hangul text (pinyin, romaji, romanized Korean) so that
+ * such text can be found from a Latin keyboard.
+ */
+object SearchNormalizer {
+    private const val TAG = "SearchNormalizer"
+
+    // Combining (semi-)voiced sound marks, kept so that が and か stay different.
+    private const val KANA_VOICED = '\u3099'
+    private const val KANA_SEMI_VOICED = '\u309A'
+    private const val KATAKANA_FIRST = '\u30A1'
+    private const val KATAKANA_LAST = '\u30F6'
+    private const val KATAKANA_TO_HIRAGANA = 0x60
+
+    /**
+     * NFKD decomposition, without combining marks, case folded and with katakana mapped to
+     * hiragana.
+     */
+    fun normalize(text: CharSequence): String {
+        if (text.all { it < '\u0080' }) return text.toString().lowercase()
+        val decomposed = Normalizer.normalize(text, Normalizer.Form.NFKD)
+        val out = StringBuilder(decomposed.length)
+        var i = 0
+        while (i < decomposed.length) {
+            val cp = decomposed.codePointAt(i)
+            i += Character.charCount(cp)
+            when {
+                cp == KANA_VOICED.code || cp == KANA_SEMI_VOICED.code -> out.append(cp.toChar())
+                Character.getType(cp) == Character.NON_SPACING_MARK.toInt() -> {}
+                // Folds, where lowercase doesn't.
+                cp == 'ß'.code || cp == '\u1E9E'.code -> out.append("ss")
+                cp == 'ς'.code -> out.append('σ')
+                cp in KATAKANA_FIRST.code..KATAKANA_LAST.code ->
+                    out.append((cp - KATAKANA_TO_HIRAGANA).toChar())
+                else -> out.appendCodePoint(Character.toLowerCase(cp))
+            }
+        }
+        return out.toString()
+    }
+
+    private val transliterator by lazy {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) createTransliterator() else null
+    }
+
+    @RequiresApi(Build.VERSION_CODES.Q)
+    private fun createTransliterator(): Transliterator? = try {
+        Transliterator.getInstance("Any-Latin; Latin-ASCII")
+    } catch (e: IllegalArgumentException) {
+        Log.e(TAG, "no transliterator to Latin", e)
+        null
+    }
+
+    private fun needsRomanization(text: CharSequence): Boolean {
+        for (c in text) {
+            if (c < '\u3040') continue
+            // Kana, CJK ideographs and Hangul syllables (and some symbols in between).
+            if (c <= '\u30FF' || c in '\u3400'..'\u9FFF' || c in '\uAC00'..'\uD7AF' ||
+                c in '\uF900'..'\uFAFF' || c in '\uFF66'..'\uFF9F') return true
+        }
+        return false
+    }
+
+    /**
+     * The [normalize]d Latin spelling of [text] without spaces (pinyin is usually typed
+     * without them), or null if [text] has nothing to romanize or this can't be done here.
+     * Slow compared to [normalize], only meant for building search keys.
+     */
+    fun romanize(text: CharSequence): String? {
+        if (!needsRomanization(text)) return null
+        val transliterator = transliterator ?: return null
+        val latin = synchronized(transliterator) {
+            transliterator.transliterate(text.toString())
+        }
+        return normalize(latin.filterNot { it.isWhitespace() })
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+
+/**
+ * [SearchPipeline] runs the searches for text as it is typed. Only the latest text counts:
+ * a search starts once typing paused for [DEBOUNCE_MS], and one which is still waiting or
+ * running when new text comes in is cancelled. If the new query narrows the one whose
+ * results are shown (for most indices: contains it), only those results are searched again.
+ *
+ * Results are handed to [publish] as new lists, which are never changed afterwards.
+ * Must be used on the main thread, [scope] has to run on it too.
+ */
+class SearchPipeline<T>(
+    private val scope: CoroutineScope,
+    private val index: () -> Searchable<T>?,
+    private val publish: (List<T>) -> Unit
+) {
+
+    companion object {
+        private const val DEBOUNCE_MS = 100L
+    }
+
+    /**
+     * What a [SearchPipeline] searches in, [SearchIndex] for example.
+     */
+    interface Searchable<T> {
+        /**
+         * The songs results come from. If this changes, earlier results are stale.
+         */
+        val songs: List<T>
+
+        /**
+         * @param within results of an earlier search of [songs] for a query which
+         *  [narrows] to [query], only they have to be checked
+         */
+        fun search(query: String, within: List<T>? = null): List<T>
+
+        /**
+         * Whether everything matching [query] matches [previous] too, both [SearchNormalizer]
+         * normalized.
+         */
+        fun narrows(previous: String, query: String): Boolean = query.contains(previous)
+    }
+
+    private class Shown<T>(val query: String, val songs: List<T>, val results: List<T>)
+
+    private var job: Job? = null
+    private var shown: Shown<T>? = null
+
+    fun submit(query: String) {
+        job?.cancel()
+        if (query.isBlank()) {
+            job = null
+            shown = null
+            publish(emptyList())
+            return
+        }
+        val previous = shown
+        job = scope.launch {
+            delay(DEBOUNCE_MS)
+            val result = withContext(Dispatchers.Default) {
+                val index = index() ?: return@withContext null
+                val songs = index.songs
+                val normalized = SearchNormalizer.normalize(query)
+                // Everything matching the new query matches the old one too.
+                val within = previous?.takeIf {
+                    it.songs === songs && index.narrows(it.query, normalized)
+                }?.results
+                Shown(normalized, songs, index.search(query, within))
+            } ?: return@launch
+            shown = result
+            publish(result.results)
+        }
+    }
+}
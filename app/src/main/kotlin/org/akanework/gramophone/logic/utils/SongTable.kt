@@ -0,0 +1,210 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+import android.os.Bundle
+import androidx.media3.common.MediaItem
+
+/**
+ * [SongTable] stores the per-song values which MediaMetadata has no field for (ids, dates,
+ * author, CD track number) in primitive columns, instead of one extras Bundle with boxed
+ * values per song. Library items only carry a [Row] as tag, extras are materialized by
+ * [withExtras] once an item is handed to the player.
+ *
+ * Only the extras moved here. Every song is still a [MediaItem] with its MediaMetadata, so
+ * titles, durations, track numbers and dates are not columns, because adapters, grouping,
+ * search and the player all take MediaItems.
+ *
+ * Rows are only ever appended. Appending is synchronized, reading a row which was handed
+ * out by [append] or [find] is safe from any thread. Rows of songs which were re-read or
+ * deleted stay behind, so a table is replaced as a whole once it [isWasteful].
+ */
+class SongTable(initialCapacity: Int = 1024) {
+
+    companion object {
+        private const val NULL_LONG = Long.MIN_VALUE
+        private const val NULL_INT = Int.MIN_VALUE
+        // Small libraries may churn through a few rows without being worth a full reload.
+        private const val WASTE_SLACK = 1024
+
+        /**
+         * The table the current library was read into. Used to look up songs which lost
+         * their [Row] on the way to the player.
+         */
+        @Volatile
+        var library: SongTable? = null
+    }
+
+    class Row internal constructor(private val table: SongTable, private val index: Int) {
+        val mediaId: Long
+            get() = table.columns.mediaId[index]
+        val artistId: Long?
+            get() = table.columns.artistId[index].orNull()
+        val albumId: Long?
+            get() = table.columns.albumId[index].orNull()
+        val genreId: Long?
+            get() = table.columns.genreId[index].orNull()
+        val addDate: Long?
+            get() = table.columns.addDate[index].orNull()
+        val modifiedDate: Long?
+            get() = table.columns.modifiedDate[index].orNull()
+        val cdTrackNumber: Int?
+            get() = table.columns.cdTrackNumber[index].let { if (it == NULL_INT) null else it }
+        val author: String?
+            get() = table.columns.author[index].let { if (it == -1) null else table.strings[it] }
+
+        fun toBundle() = Bundle().apply {
+            artistId?.let { putLong("ArtistId", it) }
+            albumId?.let { putLong("AlbumId", it) }
+            genreId?.let { putLong("GenreId", it) }
+            putString("Author", author)
+            addDate?.let { putLong("AddDate", it) }
+            modifiedDate?.let { putLong("ModifiedDate", it) }
+            cdTrackNumber?.let { putInt("CdTrackNumber", it) }
+        }
+
+        private fun Long.orNull() = if (this == NULL_LONG) null else this
+    }
+
+    private class Columns(val capacity: Int, old: Columns?) {
+        val mediaId = old?.mediaId?.copyOf(capacity) ?: LongArray(capacity)
+        val artistId = old?.artistId?.copyOf(capacity) ?: LongArray(capacity)
+        val albumId = old?.albumId?.copyOf(capacity) ?: LongArray(capacity)
+        val genreId = old?.genreId?.copyOf(capacity) ?: LongArray(capacity)
+        val addDate = old?.addDate?.copyOf(capacity) ?: LongArray(capacity)
+        val modifiedDate = old?.modifiedDate?.copyOf(capacity) ?: LongArray(capacity)
+        val cdTrackNumber = old?.cdTrackNumber?.copyOf(capacity) ?: IntArray(capacity)
+        val author = old?.author?.copyOf(capacity) ?: IntArray(capacity)
+    }
+
+    @Volatile
+    private var columns = Columns(initialCapacity.coerceAtLeast(16), null)
+    // Authors repeat a lot, store each distinct one once.
+    @Volatile
+    private var strings = arrayOfNulls<String>(16)
+    private var stringCount = 0
+    private val stringIndex = HashMap<String, Int>()
+    // Open addressing, slot holds row + 1 or 0 if empty. Key is the row's mediaId.
+    private var slots = IntArray(columns.capacity * 2)
+    var size = 0
+        private set
+
+    @Synchronized
+    fun append(
+        mediaId: Long, artistId: Long?, albumId: Long?, genreId: Long?, addDate: Long?,
+        modifiedDate: Long?, cdTrackNumber: Int?, author: String?
+    ): Row {
+        var c = columns
+        if (size == c.capacity) {
+            c = Columns(c.capacity * 2, c)
+            columns = c
+            rehash(c)
+        }
+        val row = size
+        c.mediaId[row] = mediaId
+        c.artistId[row] = artistId ?: NULL_LONG
+        c.albumId[row] = albumId ?: NULL_LONG
+        c.genreId[row] = genreId ?: NULL_LONG
+        c.addDate[row] = addDate ?: NULL_LONG
+        c.modifiedDate[row] = modifiedDate ?: NULL_LONG
+        c.cdTrackNumber[row] = cdTrackNumber ?: NULL_INT
+        c.author[row] = if (author == null) -1 else intern(author)
+        size++
+        // A re-read song replaces its old row in the index, the old row stays valid.
+        slots[findSlot(c, mediaId)] = row + 1
+        return Row(this, row)
+    }
+
+    /**
+     * Whether most rows are not used by a library of [liveSize] songs anymore, ie. because
+     * incremental updates kept re-reading songs, and the library should be read into a new
+     * table.
+     */
+    fun isWasteful(liveSize: Int): Boolean = size > liveSize * 2 + WASTE_SLACK
+
+    @Synchronized
+    fun find(mediaId: Long): Row? {
+        val row = slots[findSlot(columns, mediaId)] - 1
+        return if (row == -1) null else Row(this, row)
+    }
+
+    private fun intern(value: String): Int = stringIndex.getOrPut(value) {
+        if (stringCount == strings.size) strings = strings.copyOf(stringCount * 2)
+        strings[stringCount] = value
+        stringCount++
+    }
+
+    private fun findSlot(c: Columns, mediaId: Long): Int {
+        val mask = slots.size - 1
+        var slot = hash(mediaId) and mask
+        while (slots[slot] != 0 && c.mediaId[slots[slot] - 1] != mediaId) {
+            slot = (slot + 1) and mask
+        }
+        return slot
+    }
+
+    private fun rehash(c: Columns) {
+        slots = IntArray(c.capacity * 2)
+        for (row in 0 until size) {
+            slots[findSlot(c, c.mediaId[row])] = row + 1
+        }
+    }
+
+    private fun hash(value: Long): Int {
+        val h = value * -7046029254386353131L // 2^64 / golden ratio, spreads sequential ids
+        return (h xor (h ushr 32)).toInt()
+    }
+}
+
+val MediaItem.songRow: SongTable.Row?
+    get() = localConfiguration?.tag as? SongTable.Row
+
+// Items from the player or LastPlayedManager have no row, but carry the values as extras.
+val MediaItem.artistId: Long?
+    get() = songRow?.artistId ?: mediaMetadata.extras?.getLongOrNull("ArtistId")
+val MediaItem.albumId: Long?
+    get() = songRow?.albumId ?: mediaMetadata.extras?.getLongOrNull("AlbumId")
+val MediaItem.genreId: Long?
+    get() = songRow?.genreId ?: mediaMetadata.extras?.getLongOrNull("GenreId")
+val MediaItem.addDate: Long?
+    get() = songRow?.addDate ?: mediaMetadata.extras?.getLongOrNull("AddDate")
+val MediaItem.modifiedDate: Long?
+    get() = songRow?.modifiedDate ?: mediaMetadata.extras?.getLongOrNull("ModifiedDate")
+val MediaItem.cdTrackNumber: Int?
+    get() = songRow?.cdTrackNumber ?: mediaMetadata.extras?.let {
+        if (it.containsKey("CdTrackNumber")) it.getInt("CdTrackNumber") else null
+    }
+val MediaItem.author: String?
+    get() = songRow?.author ?: mediaMetadata.extras?.getString("Author")
+
+/**
+ * Returns a copy of this item which carries its [SongTable] values as extras, like items
+ * used to before there was a [SongTable]. Needed for anything that leaves the library,
+ * ie. the player, where the row is of no use. Items without a row (or which can't be found
+ * in [SongTable.library] by their id) are returned as-is.
+ */
+fun MediaItem.withExtras(): MediaItem {
+    if (mediaMetadata.extras != null) return this
+    val row = songRow ?: mediaId.toLongOrNull()?.let { SongTable.library?.find(it) }
+        ?: return this
+    return buildUpon()
+        .setMediaMetadata(mediaMetadata.buildUpon().setExtras(row.toBundle()).build())
+        .build()
+}
+
+private fun Bundle.getLongOrNull(key: String) = if (containsKey(key)) getLong(key) else null
@@ -0,0 +1,56 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.akanework.gramophone.logic.utils
+
+import com.google.common.collect.Interners
+import org.akanework.gramophone.BuildConfig
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * [StringPool] makes songs share one instance of metadata strings which repeat a lot
+ * (artist, album, genre...), ie. all tracks of an album point to the same album title.
+ * Entries are weakly referenced, strings which no song uses anymore are collected.
+ */
+object StringPool {
+
+    private val interner = Interners.newWeakInterner<String>()
+    private val saved = AtomicLong()
+
+    /**
+     * Estimated bytes which would be used by duplicates if they weren't interned, only
+     * counted in debug builds.
+     */
+    val bytesSaved: Long
+        get() = saved.get()
+
+    fun intern(value: String?): String? {
+        if (value == null) return null
+        val pooled = interner.intern(value)
+        if (BuildConfig.DEBUG && pooled !== value) {
+            saved.addAndGet(sizeOf(value))
+        }
+        return pooled
+    }
+
+    // ART stores characters inline after a 16 byte header, one byte each if they are all
+    // ASCII and two otherwise, and aligns objects to 8 bytes.
+    private fun sizeOf(value: String): Long {
+        val chars = if (value.all { it.code < 0x80 }) value.length else value.length * 2
+        return (16L + chars + 7) and 7L.inv()
+    }
+}
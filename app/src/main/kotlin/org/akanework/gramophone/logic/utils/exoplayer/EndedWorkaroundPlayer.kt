@@ -2,6 +2,7 @@ package org.akanework.gramophone.logic.utils.exoplayer
 
 import android.util.Log
 import androidx.media3.common.ForwardingPlayer
+import androidx.media3.common.MediaItem
 import androidx.media3.common.Player
 import androidx.media3.common.util.UnstableApi
 import androidx.media3.exoplayer.ExoPlayer
@@ -22,6 +23,19 @@ class EndedWorkaroundPlayer(player: ExoPlayer)
 		private const val TAG = "EndedWorkaroundPlayer"
 	}
 
+	/**
+	 * Told about every change to the queue which went through this player, with indices
+	 * already clamped the way the wrapped player applies them.
+	 */
+	interface QueueListener {
+		fun onItemsAdded(index: Int, items: List<MediaItem>)
+		fun onItemsRemoved(fromIndex: Int, toIndex: Int)
+		fun onItemsMoved(fromIndex: Int, toIndex: Int, newIndex: Int)
+		fun onCleared()
+	}
+
+	var queueListener: QueueListener? = null
+
 	val exoPlayer
 		get() = wrappedPlayer as ExoPlayer
 	var isEnded = false
@@ -63,8 +77,112 @@ class EndedWorkaroundPlayer(player: ExoPlayer)
 		this.shuffleOrder = shuffleOrder
 	}
 
+	override fun setMediaItem(mediaItem: MediaItem) {
+		super.setMediaItem(mediaItem)
+		onReplaced(listOf(mediaItem))
+	}
+
+	override fun setMediaItem(mediaItem: MediaItem, resetPosition: Boolean) {
+		super.setMediaItem(mediaItem, resetPosition)
+		onReplaced(listOf(mediaItem))
+	}
+
+	override fun setMediaItem(mediaItem: MediaItem, startPositionMs: Long) {
+		super.setMediaItem(mediaItem, startPositionMs)
+		onReplaced(listOf(mediaItem))
+	}
+
+	override fun setMediaItems(mediaItems: MutableList<MediaItem>) {
+		super.setMediaItems(mediaItems)
+		onReplaced(mediaItems)
+	}
+
+	override fun setMediaItems(mediaItems: MutableList<MediaItem>, resetPosition: Boolean) {
+		super.setMediaItems(mediaItems, resetPosition)
+		onReplaced(mediaItems)
+	}
+
+	override fun setMediaItems(
+		mediaItems: MutableList<MediaItem>, startIndex: Int, startPositionMs: Long
+	) {
+		super.setMediaItems(mediaItems, startIndex, startPositionMs)
+		onReplaced(mediaItems)
+	}
+
+	private fun onReplaced(mediaItems: List<MediaItem>) {
+		queueListener?.let {
+			it.onCleared()
+			if (mediaItems.isNotEmpty()) it.onItemsAdded(0, mediaItems.toList())
+		}
+	}
+
+	override fun addMediaItem(mediaItem: MediaItem) {
+		val index = mediaItemCount
+		super.addMediaItem(mediaItem)
+		queueListener?.onItemsAdded(index, listOf(mediaItem))
+	}
+
+	override fun addMediaItem(index: Int, mediaItem: MediaItem) {
+		val clamped = minOf(index, mediaItemCount)
+		super.addMediaItem(index, mediaItem)
+		queueListener?.onItemsAdded(clamped, listOf(mediaItem))
+	}
+
+	override fun addMediaItems(mediaItems: MutableList<MediaItem>) {
+		val index = mediaItemCount
+		super.addMediaItems(mediaItems)
+		if (mediaItems.isNotEmpty()) queueListener?.onItemsAdded(index, mediaItems.toList())
+	}
+
+	override fun addMediaItems(index: Int, mediaItems: MutableList<MediaItem>) {
+		val clamped = minOf(index, mediaItemCount)
+		super.addMediaItems(index, mediaItems)
+		if (mediaItems.isNotEmpty()) queueListener?.onItemsAdded(clamped, mediaItems.toList())
+	}
+
+	override fun removeMediaItem(index: Int) {
+		val count = mediaItemCount
+		super.removeMediaItem(index)
+		if (index < count) queueListener?.onItemsRemoved(index, index + 1)
+	}
+
+	override fun removeMediaItems(fromIndex: Int, toIndex: Int) {
+		val clamped = minOf(toIndex, mediaItemCount)
+		super.removeMediaItems(fromIndex, toIndex)
+		if (fromIndex < clamped) queueListener?.onItemsRemoved(fromIndex, clamped)
+	}
+
+	override fun replaceMediaItem(index: Int, mediaItem: MediaItem) {
+		replaceMediaItems(index, index + 1, listOf(mediaItem))
+	}
+
+	override fun replaceMediaItems(fromIndex: Int, toIndex: Int, mediaItems: MutableList<MediaItem>) {
+		val count = mediaItemCount
+		super.replaceMediaItems(fromIndex, toIndex, mediaItems)
+		queueListener?.let {
+			val clamped = minOf(toIndex, count)
+			if (fromIndex < clamped) it.onItemsRemoved(fromIndex, clamped)
+			if (mediaItems.isNotEmpty()) {
+				it.onItemsAdded(minOf(fromIndex, count), mediaItems.toList())
+			}
+		}
+	}
+
+	override fun clearMediaItems() {
+		super.clearMediaItems()
+		queueListener?.onCleared()
+	}
+
 	override fun moveMediaItems(fromIndex: Int, toIndex: Int, newIndex: Int) {
+		val count = mediaItemCount
 		super.moveMediaItems(fromIndex, toIndex, newIndex)
+		queueListener?.let {
+			val clampedTo = minOf(toIndex, count)
+			val clampedNew = minOf(newIndex, count - (clampedTo - fromIndex))
+			if (fromIndex < clampedTo && fromIndex != clampedNew) {
+				it.onItemsMoved(fromIndex, clampedTo, clampedNew)
+			}
+		}
 		try {
 			shuffleOrder?.let {
 				exoPlayer.setShuffleOrder(
@@ -17,32 +17,37 @@
 
 package org.akanework.gramophone.ui
 
-import androidx.lifecycle.MutableLiveData
-import androidx.lifecycle.ViewModel
-import androidx.media3.common.MediaItem
-import uk.akane.libphonograph.items.Album
-import uk.akane.libphonograph.items.Artist
-import uk.akane.libphonograph.items.Date
-import uk.akane.libphonograph.items.FileNode
-import uk.akane.libphonograph.items.Genre
-import uk.akane.libphonograph.items.Playlist
+import android.app.Application
+import androidx.lifecycle.AndroidViewModel
+import org.akanework.gramophone.logic.GramophoneApplication
+import org.akanework.gramophone.logic.utils.LibraryDiff
+import org.akanework.gramophone.logic.utils.LibraryIndex
+import org.akanework.gramophone.logic.utils.LibraryRepository
 
 /**
  * LibraryViewModel:
  *   A ViewModel that contains library information.
- * Used across the application.
+ * Used across the application. The data itself lives in the process-wide
+ * [LibraryRepository], which is shared with the playback service.
  *
  * @author AkaneTan, nift4
  */
-class LibraryViewModel : ViewModel() {
-    val mediaItemList: MutableLiveData<List<MediaItem>> = MutableLiveData()
-    val albumItemList: MutableLiveData<List<Album<MediaItem>>> = MutableLiveData()
-    val albumArtistItemList: MutableLiveData<List<Artist<MediaItem>>> = MutableLiveData()
-    val artistItemList: MutableLiveData<List<Artist<MediaItem>>> = MutableLiveData()
-    val genreItemList: MutableLiveData<List<Genre<MediaItem>>> = MutableLiveData()
-    val dateItemList: MutableLiveData<List<Date<MediaItem>>> = MutableLiveData()
-    val playlistList: MutableLiveData<List<Playlist<MediaItem>>> = MutableLiveData()
-    val folderStructure: MutableLiveData<FileNode<MediaItem>> = MutableLiveData()
-    val shallowFolderStructure: MutableLiveData<FileNode<MediaItem>> = MutableLiveData()
-    val allFolderSet: MutableLiveData<Set<String>> = MutableLiveData()
+class LibraryViewModel(application: Application) : AndroidViewModel(application) {
+    val repository: LibraryRepository =
+        (application as GramophoneApplication).libraryRepository
+    val mediaItemList = repository.mediaItemList
+    val albumItemList = repository.albumItemList
+    val albumArtistItemList = repository.albumArtistItemList
+    val artistItemList = repository.artistItemList
+    val genreItemList = repository.genreItemList
+    val dateItemList = repository.dateItemList
+    val playlistList = repository.playlistList
+    val folderStructure = repository.folderStructure
+    val shallowFolderStructure = repository.shallowFolderStructure
+    val allFolderSet = repository.allFolderSet
+    val loadProgress = repository.loadProgress
+    val index: LibraryIndex?
+        get() = repository.index
+    val diff: LibraryDiff?
+        get() = repository.diff
 }
@@ -45,16 +45,14 @@ import androidx.fragment.app.commit
 import androidx.media3.common.util.UnstableApi
 import androidx.media3.session.DefaultMediaNotificationProvider
 import coil3.imageLoader
-import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.launch
 import org.akanework.gramophone.R
+import org.akanework.gramophone.logic.GramophoneApplication
 import org.akanework.gramophone.logic.enableEdgeToEdgeProperly
 import org.akanework.gramophone.logic.hasScopedStorageV2
 import org.akanework.gramophone.logic.hasScopedStorageWithMediaTypes
 import org.akanework.gramophone.logic.needsMissingOnDestroyCallWorkarounds
 import org.akanework.gramophone.logic.postAtFrontOfQueueAsync
-import org.akanework.gramophone.logic.utils.MediaStoreUtils.updateLibraryWithInCoroutine
+import org.akanework.gramophone.logic.utils.LibraryRepository
 import org.akanework.gramophone.ui.components.PlayerBottomSheet
 import org.akanework.gramophone.ui.fragments.BaseFragment
 
@@ -82,6 +80,8 @@ class MainActivity : AppCompatActivity() {
     private val reportFullyDrawnRunnable = Runnable { if (!ready) reportFullyDrawn() }
     private var ready = false
     private var autoPlay = false
+    private val libraryObserver
+        get() = (application as GramophoneApplication).libraryObserver
     lateinit var playerBottomSheet: PlayerBottomSheet
         private set
     lateinit var intentSender: ActivityResultLauncher<IntentSenderRequest>
@@ -90,17 +90,13 @@ class MainActivity : AppCompatActivity() {
 
     /**
      * updateLibrary:
-     *   Calls [updateLibraryWithInCoroutine] in MediaStoreUtils and updates library.
+     *   Brings the library in [LibraryRepository] up to date, see [LibraryRepository.refresh].
      */
     fun updateLibrary(then: (() -> Unit)? = null) {
         // If library load takes more than 3s, exit splash to avoid ANR
         if (!ready) handler.postDelayed(reportFullyDrawnRunnable, 3000)
-        CoroutineScope(Dispatchers.Default).launch {
-            updateLibraryWithInCoroutine(libraryViewModel, this@MainActivity) {
-                if (!ready) reportFullyDrawn()
-                then?.let { it() }
-            }
-        }
+        libraryViewModel.repository.refresh(onShown = { if (!ready) reportFullyDrawn() },
+            then = then)
     }
 
     /**
@@ -110,6 +106,7 @@ class MainActivity : AppCompatActivity() {
         installSplashScreen().setKeepOnScreenCondition { !ready }
         super.onCreate(savedInstanceState)
         lifecycle.addObserver(controllerViewModel)
+        libraryObserver.acquire()
         enableEdgeToEdgeProperly()
         autoPlay = intent?.extras?.getBoolean(PLAYBACK_AUTO_START_FOR_FGS, false) == true
         intentSender = registerForActivityResult(ActivityResultContracts.StartIntentSenderForResult()) {
@@ -248,6 +245,7 @@ class MainActivity : AppCompatActivity() {
             val nm = getSystemService(NOTIFICATION_SERVICE) as NotificationManager
             nm.cancel(DefaultMediaNotificationProvider.DEFAULT_NOTIFICATION_ID)
         }
+        libraryObserver.release()
         super.onDestroy()
         // we don't ever want covers to be the cause of service being killed by too high mem usage
         // (this is placed after super.onDestroy() to make sure all ImageViews are dead)
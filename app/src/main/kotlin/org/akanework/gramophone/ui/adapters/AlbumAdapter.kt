@@ -71,8 +71,8 @@ class AlbumAdapter(
     override fun onBindViewHolder(holder: ViewHolder, position: Int, payloads: MutableList<Any>) {
         super.onBindViewHolder(holder, position, payloads)
         if (layoutType == LayoutType.GRID) {
-            val item = list[position]
             holder.itemView.setOnLongClickListener {
+                val item = itemAt(holder) ?: return@setOnLongClickListener false
                 val popupMenu = PopupMenu(it.context, it)
                 onMenu(item, popupMenu)
                 popupMenu.show()
@@ -54,6 +54,7 @@ import org.akanework.gramophone.logic.ui.DefaultItemHeightHelper
 import org.akanework.gramophone.logic.ui.ItemHeightHelper
 import org.akanework.gramophone.logic.ui.MyRecyclerView
 import org.akanework.gramophone.logic.ui.placeholderScaleToFit
+import org.akanework.gramophone.logic.utils.LibraryDiff
 import org.akanework.gramophone.ui.MainActivity
 import org.akanework.gramophone.ui.components.CustomGridLayoutManager
 import org.akanework.gramophone.ui.components.GridPaddingDecoration
@@ -98,6 +99,8 @@ abstract class BaseAdapter<T>(
     private var bgHandlerThread: HandlerThread? = null
     private var bgHandler: Handler? = null
     private val rawList = ArrayList<T>(liveData?.value?.size ?: 0)
+    // The list rawList was copied from, to find out which LibraryDiff applies to it.
+    private var rawSource: List<T>? = null
     protected val list = ArrayList<T>(liveData?.value?.size ?: 0)
     private var comparator: Sorter.HintedComparator<T>? = null
     private var layoutManager: RecyclerView.LayoutManager? = null
@@ -244,7 +247,8 @@ abstract class BaseAdapter<T>(
     }
 
     override fun onChanged(value: List<T>) {
-        updateList(value, now = false, canDiff = true)
+        updateList(value, now = false, canDiff = true,
+            change = mainActivity.libraryViewModel.diff?.changeSetFor(rawSource, value))
     }
 
     override fun getItemCount(): Int = list.size
@@ -263,7 +267,9 @@ abstract class BaseAdapter<T>(
     }
 
     @SuppressLint("NotifyDataSetChanged")
-    private fun sort(srcList: List<T>? = null, canDiff: Boolean): () -> () -> Unit {
+    private fun sort(
+        srcList: List<T>? = null, canDiff: Boolean, change: LibraryDiff.ChangeSet<T>?
+    ): () -> () -> Unit {
         // Ensure rawList is only accessed on UI thread
         // and ensure calls to this method go in order
         // to prevent funny IndexOutOfBoundsException crashes
@@ -273,16 +279,17 @@ abstract class BaseAdapter<T>(
         }
         return {
             try {
-                if (sortType == Sorter.Type.NativeOrderDescending) {
+                val patched = if (canDiff && change != null) applyChangeSet(change) else null
+                if (patched != null) {
+                    newList.clear()
+                    newList.addAll(patched.first)
+                } else if (sortType == Sorter.Type.NativeOrderDescending) {
                     newList.reverse()
                 } else if (sortType != Sorter.Type.NativeOrder) {
-                    newList.sortWith { o1, o2 ->
-                        if (isPinned(o1) && !isPinned(o2)) -1
-                        else if (!isPinned(o1) && isPinned(o2)) 1
-                        else comparator?.compare(o1, o2) ?: 0
-                    }
+                    newList.sortWith { o1, o2 -> compareItems(o1, o2) }
                 }
-                val diff = if (((list.isNotEmpty() && newList.isNotEmpty()) || allowDiffUtils) && canDiff)
+                val diff = if (patched == null && canDiff &&
+                    ((list.isNotEmpty() && newList.isNotEmpty()) || allowDiffUtils))
                     DiffUtil.calculateDiff(SongDiffCallback(list, newList)) else null
                 val oldCount = list.size
                 val newCount = newList.size
@@ -291,10 +298,13 @@ abstract class BaseAdapter<T>(
                         if (srcList != null) {
                             rawList.clear()
                             rawList.addAll(srcList)
+                            rawSource = srcList
                         }
                         list.clear()
                         list.addAll(newList)
-                        if (diff != null)
+                        if (patched != null)
+                            patched.second.forEach { it() }
+                        else if (diff != null)
                             diff.dispatchUpdatesTo(this)
                         else
                             notifyDataSetChanged()
@@ -311,8 +321,11 @@ abstract class BaseAdapter<T>(
         }
     }
 
-    fun updateList(newList: List<T>? = null, now: Boolean, canDiff: Boolean) {
-        val doSort = sort(newList, canDiff)
+    fun updateList(
+        newList: List<T>? = null, now: Boolean, canDiff: Boolean,
+        change: LibraryDiff.ChangeSet<T>? = null
+    ) {
+        val doSort = sort(newList, canDiff, change)
         if (now || bgHandler == null) doSort()()
         else {
             bgHandler!!.post {
@@ -324,6 +337,73 @@ abstract class BaseAdapter<T>(
         }
     }
 
+    private fun compareItems(o1: T, o2: T): Int =
+        if (isPinned(o1) && !isPinned(o2)) -1
+        else if (!isPinned(o1) && isPinned(o2)) 1
+        else comparator?.compare(o1, o2) ?: 0
+
+    /**
+     * Apply [change] to the sorted [list] directly instead of sorting and diffing the whole
+     * new list. Runs on the background thread like the sort it replaces.
+     *
+     * @return the new sorted list and the notifications which turn [list] into it, or null
+     *  if [change] can't be applied cheaply and the list has to be sorted from scratch
+     */
+    private fun applyChangeSet(
+        change: LibraryDiff.ChangeSet<T>
+    ): Pair<List<T>, List<() -> Unit>>? {
+        if (change.size > MAX_CHANGE_SET_SIZE || comparator == null ||
+            sortType == Sorter.Type.NativeOrder ||
+            sortType == Sorter.Type.NativeOrderDescending) return null
+        val newList = ArrayList(list)
+        val positions = HashMap<String, Int>(change.removed.size + change.changed.size)
+        newList.forEachIndexed { i, item ->
+            val id = toId(item)
+            if (id in change.removed || change.changed.containsKey(id)) positions[id] = i
+        }
+        if (positions.size != change.removed.size + change.changed.size) return null
+        val ops = ArrayList<() -> Unit>()
+        val toRemove = change.removed.mapTo(ArrayList()) { positions[it]!! }
+        val toInsert = ArrayList(change.added)
+        change.changed.forEach { (id, item) ->
+            val pos = positions[id]!!
+            // Changed in place if neither neighbour is touched and the order still holds.
+            val prev = newList.getOrNull(pos - 1)
+            val next = newList.getOrNull(pos + 1)
+            if ((prev == null || (toId(prev) !in positions && compareItems(prev, item) <= 0)) &&
+                (next == null || (toId(next) !in positions && compareItems(item, next) <= 0))) {
+                newList[pos] = item
+                ops.add { notifyItemChanged(pos) }
+            } else {
+                toRemove.add(pos)
+                toInsert.add(item)
+            }
+        }
+        toRemove.sortDescending()
+        toRemove.forEach { pos ->
+            newList.removeAt(pos)
+            ops.add { notifyItemRemoved(pos) }
+        }
+        toInsert.forEach { item ->
+            // Insert after equal items, like the stable sort would.
+            var low = 0
+            var high = newList.size
+            while (low < high) {
+                val mid = (low + high) ushr 1
+                if (compareItems(newList[mid], item) <= 0) low = mid + 1 else high = mid
+            }
+            newList.add(low, item)
+            ops.add { notifyItemInserted(low) }
+        }
+        // Unchanged items may be new instances too, and positions are looked up by instance.
+        val byKey = HashMap<String, T>(change.new.size * 2)
+        change.new.forEach { byKey[toId(it)] = it }
+        for (i in newList.indices) {
+            newList[i] = byKey[toId(newList[i])] ?: return null
+        }
+        return Pair(newList, ops)
+    }
+
     protected open fun onListUpdated() {}
 
     protected open fun createDecorAdapter(): BaseDecorAdapter<out BaseAdapter<T>> {
@@ -360,8 +440,10 @@ abstract class BaseAdapter<T>(
             crossfade(true)
             error(defaultCover)
         }
-        holder.itemView.setOnClickListener { onClick(item) }
+        // Look the item up on click, a patched list may have swapped in a new instance since.
+        holder.itemView.setOnClickListener { itemAt(holder)?.let { item -> onClick(item) } }
         holder.moreButton.setOnClickListener {
+            val item = itemAt(holder) ?: return@setOnClickListener
             val popupMenu = PopupMenu(it.context, it)
             onMenu(item, popupMenu)
             popupMenu.show()
@@ -466,6 +548,9 @@ abstract class BaseAdapter<T>(
         ) = oldList[oldItemPosition] == newList[newItemPosition]
     }
 
+    protected fun itemAt(holder: ViewHolder): T? =
+        list.getOrNull(holder.bindingAdapterPosition)
+
     protected fun toRawPos(item: T): Int {
         return rawList.indexOf(item)
     }
@@ -480,6 +565,12 @@ abstract class BaseAdapter<T>(
         else null) ?: "-"
     }
 
+    companion object {
+        // Inserting into and removing from the middle of a list is linear, so patching the
+        // list item by item only pays off for small changes.
+        private const val MAX_CHANGE_SET_SIZE = 256
+    }
+
     enum class LayoutType {
         NONE, LIST, COMPACT_LIST, GRID
     }
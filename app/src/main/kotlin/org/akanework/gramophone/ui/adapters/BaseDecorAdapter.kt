@@ -24,6 +24,7 @@ import android.view.ViewGroup
 import android.widget.TextView
 import androidx.appcompat.widget.PopupMenu
 import androidx.core.content.edit
+import androidx.lifecycle.Observer
 import androidx.media3.common.C
 import androidx.media3.common.Player.REPEAT_MODE_OFF
 import androidx.preference.PreferenceManager
@@ -33,6 +34,8 @@ import com.google.android.material.button.MaterialButton
 import org.akanework.gramophone.R
 import org.akanework.gramophone.logic.ui.ItemHeightHelper
 import org.akanework.gramophone.logic.ui.MyRecyclerView
+import org.akanework.gramophone.logic.utils.LibraryRepository
+import org.akanework.gramophone.ui.MainActivity
 import org.akanework.gramophone.ui.getAdapterType
 import kotlin.random.Random
 
@@ -46,6 +49,10 @@ open class BaseDecorAdapter<T : BaseAdapter<*>>(
     private val dpHeight = context.resources.getDimensionPixelSize(R.dimen.decor_height)
     private var recyclerView: MyRecyclerView? = null
     private var prefs = PreferenceManager.getDefaultSharedPreferences(context)
+    private val loadProgress = (context as MainActivity).libraryViewModel.loadProgress
+    private val loadProgressObserver = Observer<LibraryRepository.LoadProgress?> {
+        updateSongCounter()
+    }
     var jumpUpPos: Int? = null
     var jumpDownPos: Int? = null
 
@@ -63,7 +70,11 @@ open class BaseDecorAdapter<T : BaseAdapter<*>>(
             if (adapter is SongAdapter) View.VISIBLE else View.GONE
         holder.shuffleAll.visibility =
             if (adapter is SongAdapter) View.VISIBLE else View.GONE
-        holder.counter.text = context.resources.getQuantityString(pluralStr, count, count)
+        val counter = context.resources.getQuantityString(pluralStr, count, count)
+        val progress = loadProgress.value
+        holder.counter.text = if (progress != null && !isSubFragment)
+            context.getString(R.string.library_loading_progress, counter, progress.percent)
+        else counter
         holder.sortButton.visibility =
             if (adapter.sortType != Sorter.Type.None || adapter.ownsView) View.VISIBLE else View.GONE
         holder.sortButton.setOnClickListener { view ->
@@ -197,11 +208,13 @@ open class BaseDecorAdapter<T : BaseAdapter<*>>(
     override fun onAttachedToRecyclerView(recyclerView: MyRecyclerView) {
         super.onAttachedToRecyclerView(recyclerView)
         this.recyclerView = recyclerView
+        loadProgress.observeForever(loadProgressObserver)
     }
 
     override fun onDetachedFromRecyclerView(recyclerView: MyRecyclerView) {
         super.onDetachedFromRecyclerView(recyclerView)
         this.recyclerView = null
+        loadProgress.removeObserver(loadProgressObserver)
     }
 
     private fun scrollToViewPosition(pos: Int) {
@@ -22,9 +22,9 @@ import androidx.fragment.app.Fragment
 import androidx.lifecycle.MutableLiveData
 import androidx.media3.common.MediaItem
 import org.akanework.gramophone.R
+import org.akanework.gramophone.logic.utils.isRecentlyAdded
 import org.akanework.gramophone.ui.fragments.GeneralSubFragment
 import uk.akane.libphonograph.items.Playlist
-import uk.akane.libphonograph.reader.Reader
 
 /**
  * [PlaylistAdapter] is an adapter for displaying artists.
@@ -48,7 +48,7 @@ class PlaylistAdapter(
 
     override fun virtualTitleOf(item: Playlist<MediaItem>): String {
         return context.getString(
-            if (item is Reader.RecentlyAdded<MediaItem>)
+            if (item.isRecentlyAdded())
                 R.string.recently_added else R.string.unknown_playlist
         )
     }
@@ -0,0 +1,226 @@
+/*
+ *     Copyright (C) 2024 Akane Foundation
+ *
+ *     Gramophone is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Gramophone is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package org.akanework.gramophone.ui.adapters
+
+import android.annotation.SuppressLint
+import android.view.View
+import android.view.ViewGroup
+import android.widget.ImageView
+import android.widget.TextView
+import androidx.fragment.app.Fragment
+import androidx.fragment.app.activityViewModels
+import androidx.media3.common.C
+import androidx.media3.common.MediaItem
+import androidx.recyclerview.widget.RecyclerView
+import coil3.load
+import coil3.request.crossfade
+import coil3.request.error
+import org.akanework.gramophone.R
+import org.akanework.gramophone.logic.ui.ItemHeightHelper
+import org.akanework.gramophone.logic.ui.MyRecyclerView
+import org.akanework.gramophone.logic.ui.placeholderScaleToFit
+import org.akanework.gramophone.logic.utils.LibrarySearch
+import org.akanework.gramophone.logic.utils.LibrarySearch.Section
+import org.akanework.gramophone.ui.LibraryViewModel
+import org.akanework.gramophone.ui.MainActivity
+import org.akanework.gramophone.ui.fragments.ArtistSubFragment
+import org.akanework.gramophone.ui.fragments.GeneralSubFragment
+import uk.akane.libphonograph.items.Album
+import uk.akane.libphonograph.items.Item
+
+/**
+ * [SearchSectionAdapter] shows the albums, artists, genres, ... found by a search, one
+ * titled section per kind of item, and songs found by their lyrics. Sections come from
+ * [LibrarySearch.sections].
+ */
+class SearchSectionAdapter(private val fragment: Fragment) :
+    MyRecyclerView.Adapter<SearchSectionAdapter.ViewHolder>(), ItemHeightHelper {
+
+    companion object {
+        private const val TYPE_HEADER = 0
+        private const val TYPE_ITEM = 1
+    }
+
+    private val context = fragment.requireContext()
+    private val libraryViewModel: LibraryViewModel by fragment.activityViewModels()
+    private val headerHeight = context.resources.getDimensionPixelSize(R.dimen.decor_height)
+    private val itemHeight = context.resources.getDimensionPixelSize(R.dimen.list_height)
+
+    private sealed class Row {
+        class Header(val title: Int) : Row()
+        class Entry(val hit: LibrarySearch.Hit<MediaItem>) : Row()
+        class Lyrics(val song: MediaItem) : Row()
+    }
+
+    private var sectionRows: List<Row> = emptyList()
+    private var lyricsRows: List<Row> = emptyList()
+    private var rows: List<Row> = emptyList()
+    // All songs found by their lyrics, also those which are not shown.
+    private var lyricsSongs: List<MediaItem> = emptyList()
+
+    @SuppressLint("NotifyDataSetChanged")
+    fun updateSections(sections: List<Pair<Section, List<LibrarySearch.Hit<MediaItem>>>>) {
+        sectionRows = sections.flatMap { (section, hits) ->
+            listOf(Row.Header(titleOf(section))) + hits.map { Row.Entry(it) }
+        }
+        rows = sectionRows + lyricsRows
+        notifyDataSetChanged()
+    }
+
+    @SuppressLint("NotifyDataSetChanged")
+    fun updateLyrics(songs: List<MediaItem>) {
+        lyricsSongs = songs
+        lyricsRows = if (songs.isEmpty()) emptyList() else listOf(Row.Header(R.string.lyrics)) +
+                songs.take(LibrarySearch.MAX_PER_SECTION).map { Row.Lyrics(it) }
+        rows = sectionRows + lyricsRows
+        notifyDataSetChanged()
+    }
+
+    override fun getItemCount() = rows.size
+
+    override fun getItemViewType(position: Int) =
+        if (rows[position] is Row.Header) TYPE_HEADER else TYPE_ITEM
+
+    override fun onCreateViewHolder(parent: ViewGroup, viewType: Int) = ViewHolder(
+        fragment.layoutInflater.inflate(
+            if (viewType == TYPE_HEADER) R.layout.adapter_search_section
+            else R.layout.adapter_list_card, parent, false
+        )
+    )
+
+    override fun onBindViewHolder(holder: ViewHolder, position: Int) {
+        when (val row = rows[position]) {
+            is Row.Header -> holder.title.setText(row.title)
+            is Row.Entry -> bindHit(holder, row.hit)
+            is Row.Lyrics -> bindLyrics(holder, row.song)
+        }
+    }
+
+    private fun bindHit(holder: ViewHolder, hit: LibrarySearch.Hit<MediaItem>) {
+        holder.title.text = hit.title
+        holder.subTitle!!.text = subTitleOf(hit)
+        holder.moreButton!!.visibility = View.GONE
+        val defaultCover = defaultCoverOf(hit.section)
+        holder.cover!!.load((hit.item as? Album<MediaItem>)?.cover
+            ?: (hit.item?.songList ?: hit.folder!!.songList)
+                .firstOrNull()?.mediaMetadata?.artworkUri) {
+            placeholderScaleToFit(defaultCover)
+            crossfade(true)
+            error(defaultCover)
+        }
+        holder.itemView.setOnClickListener { open(hit) }
+    }
+
+    private fun bindLyrics(holder: ViewHolder, song: MediaItem) {
+        holder.title.text = song.mediaMetadata.title
+            ?: context.getString(R.string.unknown_title)
+        holder.subTitle!!.text = song.mediaMetadata.artist
+            ?: context.getString(R.string.unknown_artist)
+        holder.moreButton!!.visibility = View.GONE
+        holder.cover!!.load(song.mediaMetadata.artworkUri) {
+            placeholderScaleToFit(R.drawable.ic_default_cover)
+            crossfade(true)
+            error(R.drawable.ic_default_cover)
+        }
+        holder.itemView.setOnClickListener {
+            // Like a song list: play all found songs, starting with this one.
+            (context as MainActivity).getPlayer()?.apply {
+                setMediaItems(lyricsSongs, lyricsSongs.indexOf(song), C.TIME_UNSET)
+                prepare()
+                play()
+            }
+        }
+    }
+
+    override fun getItemHeightFromZeroTo(to: Int): Int {
+        val headers = (0 until to).count { rows[it] is Row.Header }
+        return headers * headerHeight + (to - headers) * itemHeight
+    }
+
+    private fun titleOf(section: Section) = when (section) {
+        Section.ALBUMS -> R.string.category_albums
+        Section.ARTISTS -> R.string.category_artists
+        Section.ALBUM_ARTISTS -> R.string.album_artists
+        Section.GENRES -> R.string.category_genres
+        Section.DATES -> R.string.category_dates
+        Section.PLAYLISTS -> R.string.category_playlists
+        Section.FOLDERS -> R.string.folders
+    }
+
+    private fun subTitleOf(hit: LibrarySearch.Hit<MediaItem>): String {
+        val item = hit.item
+        if (item is Album<MediaItem>) {
+            return item.albumArtist ?: context.getString(R.string.unknown_artist)
+        }
+        if (item == null) return "/" + hit.path!!
+        return context.resources.getQuantityString(
+            R.plurals.songs, item.songList.size, item.songList.size)
+    }
+
+    private fun defaultCoverOf(section: Section) = when (section) {
+        Section.ARTISTS, Section.ALBUM_ARTISTS -> R.drawable.ic_default_cover_artist
+        Section.GENRES -> R.drawable.ic_default_cover_genre
+        Section.DATES -> R.drawable.ic_default_cover_date
+        Section.PLAYLISTS -> R.drawable.ic_default_cover_playlist
+        Section.ALBUMS, Section.FOLDERS -> R.drawable.ic_default_cover
+    }
+
+    private fun open(hit: LibrarySearch.Hit<MediaItem>) {
+        val activity = context as MainActivity
+        if (hit.section == Section.FOLDERS) {
+            activity.startFragment(GeneralSubFragment()) {
+                putString("Path", hit.path)
+                putInt("Item", R.id.folders)
+            }
+            return
+        }
+        val list: List<Item<MediaItem>>? = when (hit.section) {
+            Section.ALBUMS -> libraryViewModel.albumItemList.value
+            Section.ARTISTS -> libraryViewModel.artistItemList.value
+            Section.ALBUM_ARTISTS -> libraryViewModel.albumArtistItemList.value
+            Section.GENRES -> libraryViewModel.genreItemList.value
+            Section.DATES -> libraryViewModel.dateItemList.value
+            Section.PLAYLISTS -> libraryViewModel.playlistList.value
+            Section.FOLDERS -> throw IllegalStateException()
+        }
+        // The library may have been reloaded since, then the item is gone or elsewhere.
+        val position = list?.indexOf(hit.item!!) ?: -1
+        if (position == -1) return
+        val isArtist = hit.section == Section.ARTISTS || hit.section == Section.ALBUM_ARTISTS
+        activity.startFragment(if (isArtist) ArtistSubFragment() else GeneralSubFragment()) {
+            putInt("Position", position)
+            putInt("Item", when (hit.section) {
+                Section.ALBUMS -> R.id.album
+                Section.ARTISTS -> R.id.artist
+                Section.ALBUM_ARTISTS -> R.id.album_artist
+                Section.GENRES -> R.id.genres
+                Section.DATES -> R.id.dates
+                else -> R.id.playlist
+            })
+        }
+    }
+
+    class ViewHolder(view: View) : RecyclerView.ViewHolder(view) {
+        val title: TextView = view.findViewById(R.id.title)
+        // Only set for items, not for headers.
+        val subTitle: TextView? = view.findViewById(R.id.artist)
+        val cover: ImageView? = view.findViewById(R.id.cover)
+        val moreButton: View? = view.findViewById(R.id.more)
+    }
+}
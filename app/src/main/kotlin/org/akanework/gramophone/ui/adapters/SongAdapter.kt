@@ -30,11 +30,11 @@ import androidx.media3.common.C
 import androidx.media3.common.MediaItem
 import androidx.media3.common.Player
 import java.io.File
-import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.launch
-import kotlinx.coroutines.withContext
 import org.akanework.gramophone.R
+import org.akanework.gramophone.logic.utils.addDate
+import org.akanework.gramophone.logic.utils.albumId
+import org.akanework.gramophone.logic.utils.artistId
+import org.akanework.gramophone.logic.utils.modifiedDate
 import org.akanework.gramophone.ui.LibraryViewModel
 import org.akanework.gramophone.ui.MediaControllerViewModel
 import org.akanework.gramophone.ui.components.NowPlayingDrawable
@@ -193,40 +193,22 @@ class SongAdapter(
                 }
 
                 R.id.album -> {
-                    CoroutineScope(Dispatchers.Default).launch {
-                        val positionAlbum =
-                            viewModel.albumItemList.value?.indexOfFirst {
-                                (it.title == item.mediaMetadata.albumTitle) &&
-                                        (it.songList.contains(item))
-                            }
-                        if (positionAlbum != null) {
-                            withContext(Dispatchers.Main) {
-                                mainActivity.startFragment(GeneralSubFragment()) {
-                                    putInt("Position", positionAlbum)
-                                    putInt("Item", R.id.album)
-                                }
-                            }
+                    val positionAlbum = viewModel.index?.albumPosition(item.albumId)
+                    if (positionAlbum != null) {
+                        mainActivity.startFragment(GeneralSubFragment()) {
+                            putInt("Position", positionAlbum)
+                            putInt("Item", R.id.album)
                         }
                     }
                     true
                 }
 
                 R.id.artist -> {
-                    CoroutineScope(Dispatchers.Default).launch {
-                        val positionArtist =
-                            viewModel.artistItemList.value?.indexOfFirst {
-                                val isMatching =
-                                    (it.title == item.mediaMetadata.artist) &&
-                                            (it.songList.contains(item))
-                                isMatching
-                            }
-                        if (positionArtist != null) {
-                            withContext(Dispatchers.Main) {
-                                mainActivity.startFragment(ArtistSubFragment()) {
-                                    putInt("Position", positionArtist)
-                                    putInt("Item", R.id.artist)
-                                }
-                            }
+                    val positionArtist = viewModel.index?.artistPosition(item.artistId)
+                    if (positionArtist != null) {
+                        mainActivity.startFragment(ArtistSubFragment()) {
+                            putInt("Position", positionArtist)
+                            putInt("Item", R.id.artist)
                         }
                     }
                     true
@@ -269,11 +251,11 @@ class SongAdapter(
                         convertDurationToTimeStamp(item.mediaMetadata.extras!!.getLong("Duration"))
 
                      */
-                    val position = viewModel.mediaItemList.value?.indexOfFirst {
-                        it.mediaId == item.mediaId
-                    }
-                    mainActivity.startFragment(DetailDialogFragment()) {
-                        putInt("Position", position!!)
+                    val position = viewModel.index?.songPosition(item.mediaId)
+                    if (position != null) {
+                        mainActivity.startFragment(DetailDialogFragment()) {
+                            putInt("Position", position)
+                        }
                     }
                     true
                 }
@@ -315,9 +297,9 @@ class SongAdapter(
                 }*/
 
                 R.id.share -> {
-                    val mediaItem = viewModel.mediaItemList.value?.find {
-                        it.mediaId == item.mediaId
-                    } ?: return@setOnMenuItemClickListener true
+                    val mediaItem = viewModel.index?.songPosition(item.mediaId)
+                        ?.let { viewModel.mediaItemList.value?.get(it) }
+                        ?: return@setOnMenuItemClickListener true
 
                     val uri = mediaItem.requestMetadata.mediaUri
                         ?: mediaItem.localConfiguration?.uri
@@ -419,7 +401,7 @@ class SongAdapter(
         }
 
         override fun getAddDate(item: MediaItem): Long {
-            return item.mediaMetadata.extras!!.getLong("AddDate")
+            return item.addDate ?: 0L
         }
 
         override fun getReleaseDate(item: MediaItem): Long {
@@ -437,7 +419,7 @@ class SongAdapter(
         }
 
         override fun getModifiedDate(item: MediaItem): Long {
-            return item.mediaMetadata.extras!!.getLong("ModifiedDate")
+            return item.modifiedDate ?: 0L
         }
     }
 }
\ No newline at end of file
@@ -90,6 +90,8 @@ import org.akanework.gramophone.logic.ui.placeholderScaleToFit
 import org.akanework.gramophone.logic.updateMargin
 import org.akanework.gramophone.logic.utils.CalculationUtils
 import org.akanework.gramophone.logic.utils.ColorUtils
+import org.akanework.gramophone.logic.utils.albumId
+import org.akanework.gramophone.logic.utils.artistId
 import org.akanework.gramophone.logic.utils.convertDurationToTimeStamp
 import org.akanework.gramophone.ui.MainActivity
 import org.akanework.gramophone.ui.fragments.ArtistSubFragment
@@ -310,36 +312,29 @@ class FullBottomSheet
 		}
 
 		bottomSheetFullCover.setOnClickListener {
-			val position = activity.libraryViewModel.mediaItemList.value?.indexOfFirst {
-				it.mediaId == instance?.currentMediaItem?.mediaId
-			}
+			val position = activity.libraryViewModel.index
+				?.songPosition(instance?.currentMediaItem?.mediaId) ?: return@setOnClickListener
 			activity.startFragment(DetailDialogFragment()) {
-				putInt("Position", position!!)
+				putInt("Position", position)
 			}
 		}
 
 		bottomSheetFullTitle.setOnClickListener {
+			val position = activity.libraryViewModel.index
+				?.albumPosition(instance?.currentMediaItem?.albumId) ?: return@setOnClickListener
 			minimize?.invoke()
-			val position = instance?.currentMediaItem?.mediaId?.let { currentMediaItemId ->
-				activity.libraryViewModel.albumItemList.value?.indexOfFirst { album ->
-					album.songList.any { it.mediaId == currentMediaItemId }
-				}
-			}
 			activity.startFragment(GeneralSubFragment()) {
-				putInt("Position", position!!)
+				putInt("Position", position)
 				putInt("Item", R.id.album)
 			}
 		}
 
 		bottomSheetFullSubtitle.setOnClickListener {
+			val position = activity.libraryViewModel.index
+				?.artistPosition(instance?.currentMediaItem?.artistId) ?: return@setOnClickListener
 			minimize?.invoke()
-			val position = instance?.currentMediaItem?.mediaId?.let { currentMediaItemId ->
-				activity.libraryViewModel.artistItemList.value?.indexOfFirst { artist ->
-					artist.songList.any { it.mediaId == currentMediaItemId }
-				}
-			}
 			activity.startFragment(ArtistSubFragment()) {
-				putInt("Position", position!!)
+				putInt("Position", position)
 				putInt("Item", R.id.artist)
 			}
 		}
@@ -30,10 +30,10 @@ import com.google.android.material.appbar.MaterialToolbar
 import org.akanework.gramophone.R
 import org.akanework.gramophone.logic.enableEdgeToEdgePaddingListener
 import org.akanework.gramophone.logic.ui.MyRecyclerView
+import org.akanework.gramophone.logic.utils.isRecentlyAdded
 import org.akanework.gramophone.ui.LibraryViewModel
 import org.akanework.gramophone.ui.adapters.SongAdapter
 import org.akanework.gramophone.ui.adapters.Sorter
-import uk.akane.libphonograph.reader.Reader
 
 /**
  * GeneralSubFragment:
@@ -119,7 +119,7 @@ class GeneralSubFragment : BaseFragment(true) {
             R.id.playlist -> {
                 // Playlists
                 val item = libraryViewModel.playlistList.value!![position]
-                title = if (item is Reader.RecentlyAdded) {
+                title = if (item.isRecentlyAdded()) {
                     requireContext().getString(R.string.recently_added)
                 } else {
                     item.title ?: requireContext().getString(R.string.unknown_playlist)
@@ -128,6 +128,21 @@ class GeneralSubFragment : BaseFragment(true) {
                 helper = Sorter.NaturalOrderHelper { itemList.indexOf(it) }
             }
 
+            R.id.folders -> {
+                // Folders, found by search
+                val item = bundle.getString("Path")!!.split('/').fold(
+                    libraryViewModel.folderStructure.value) { node, name ->
+                    node?.folderList?.get(name)
+                }
+                if (item == null) {
+                    // Gone since the search.
+                    requireActivity().supportFragmentManager.popBackStack()
+                    return null
+                }
+                title = item.folderName
+                itemList = item.songList
+            }
+
             else -> throw IllegalArgumentException()
         }
 
@@ -18,8 +18,6 @@
 package org.akanework.gramophone.ui.fragments
 
 import android.os.Bundle
-import android.os.Handler
-import android.os.Looper
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
@@ -28,18 +26,21 @@ import android.widget.EditText
 import androidx.core.widget.addTextChangedListener
 import androidx.fragment.app.activityViewModels
 import androidx.lifecycle.lifecycleScope
-import androidx.media3.common.MediaItem
+import androidx.recyclerview.widget.ConcatAdapter
 import androidx.recyclerview.widget.LinearLayoutManager
 import com.google.android.material.appbar.AppBarLayout
-import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.cancel
-import kotlinx.coroutines.launch
+import me.zhanghai.android.fastscroll.PopupTextProvider
 import org.akanework.gramophone.R
 import org.akanework.gramophone.logic.closeKeyboard
 import org.akanework.gramophone.logic.enableEdgeToEdgePaddingListener
 import org.akanework.gramophone.logic.showKeyboard
+import org.akanework.gramophone.logic.ui.DefaultItemHeightHelper
 import org.akanework.gramophone.logic.ui.MyRecyclerView
+import org.akanework.gramophone.logic.utils.LibrarySearch
+import org.akanework.gramophone.logic.utils.SearchPipeline
 import org.akanework.gramophone.ui.LibraryViewModel
+import org.akanework.gramophone.ui.adapters.SearchSectionAdapter
 import org.akanework.gramophone.ui.adapters.SongAdapter
 
 /**
@@ -49,12 +50,12 @@ import org.akanework.gramophone.ui.adapters.SongAdapter
  *
  * @author AkaneTan
  */
-class SearchFragment : BaseFragment(false) {
+class SearchFragment : BaseFragment(false), PopupTextProvider {
     // TODO this class leaks InsetSourceControl
-    private val handler = Handler(Looper.getMainLooper())
     private val libraryViewModel: LibraryViewModel by activityViewModels()
-    private val filteredList: MutableList<MediaItem> = mutableListOf()
     private lateinit var editText: EditText
+    private lateinit var sectionAdapter: SearchSectionAdapter
+    private lateinit var songAdapter: SongAdapter
 
     override fun onCreateView(
         inflater: LayoutInflater,
@@ -67,7 +68,8 @@ class SearchFragment : BaseFragment(false) {
         appBarLayout.enableEdgeToEdgePaddingListener()
         editText = rootView.findViewById(R.id.edit_text)
         val recyclerView = rootView.findViewById<MyRecyclerView>(R.id.recyclerview)
-        val songAdapter =
+        sectionAdapter = SearchSectionAdapter(this)
+        songAdapter =
             SongAdapter(this, listOf(),
                 true, null, false, isSubFragment = true,
                 allowDiffUtils = true, rawOrderExposed = true)
@@ -76,40 +78,32 @@ class SearchFragment : BaseFragment(false) {
         recyclerView.enableEdgeToEdgePaddingListener(ime = true)
         recyclerView.setAppBar(appBarLayout)
         recyclerView.layoutManager = LinearLayoutManager(activity)
-        recyclerView.adapter = songAdapter.concatAdapter
+        // Albums, artists, ... and lyrics first, there are few of them.
+        recyclerView.adapter = ConcatAdapter(sectionAdapter, songAdapter.concatAdapter)
 
         // Build FastScroller.
-        recyclerView.fastScroll(songAdapter, songAdapter.itemHeightHelper)
+        recyclerView.fastScroll(this, DefaultItemHeightHelper.concatItemHeightHelper(
+            sectionAdapter, { sectionAdapter.itemCount }, songAdapter.itemHeightHelper))
 
+        val pipeline = SearchPipeline(viewLifecycleOwner.lifecycleScope,
+            { libraryViewModel.repository.searchIndex() }) {
+            // Results are ranked by match quality, which the default (native) order keeps.
+            songAdapter.updateList(it, now = true, true)
+        }
+        val sectionPipeline = SearchPipeline(viewLifecycleOwner.lifecycleScope,
+            { libraryViewModel.repository.librarySearch()?.index }) {
+            sectionAdapter.updateSections(LibrarySearch.sections(it))
+        }
+        val lyricsPipeline = SearchPipeline(viewLifecycleOwner.lifecycleScope,
+            { libraryViewModel.repository.lyricsIndex() }) {
+            sectionAdapter.updateLyrics(it)
+        }
         editText.addTextChangedListener { rawText ->
-            // TODO sort results by match quality? (using NaturalOrderHelper)
-            if (rawText.isNullOrBlank()) {
-                songAdapter.updateList(listOf(), now = true, true)
-            } else {
-                // make sure the user doesn't edit away our text while we are filtering
-                val text = rawText.toString()
-                // Launch a coroutine for searching in the library.
-                viewLifecycleOwner.lifecycleScope.launch(Dispatchers.Default) {
-                    // Clear the list from the last search.
-                    filteredList.clear()
-                    // Filter the library.
-                    libraryViewModel.mediaItemList.value?.filter {
-                        val isMatchingTitle = it.mediaMetadata.title?.contains(text, true) == true
-                        val isMatchingAlbum =
-	                        it.mediaMetadata.albumTitle?.contains(text, true) == true
-                        val isMatchingArtist =
-	                        it.mediaMetadata.artist?.contains(text, true) == true
-                        isMatchingTitle || isMatchingAlbum || isMatchingArtist
-                    }?.let {
-                        filteredList.addAll(
-                            it
-                        )
-                    }
-                    handler.post {
-                        songAdapter.updateList(filteredList, now = true, true)
-                    }
-                }
-            }
+            // Copy the text, the Editable keeps changing while we are searching.
+            val query = rawText?.toString() ?: ""
+            pipeline.submit(query)
+            sectionPipeline.submit(query)
+            lyricsPipeline.submit(query)
         }
 
         returnButton.setOnClickListener {
@@ -119,6 +113,14 @@ class SearchFragment : BaseFragment(false) {
         return rootView
     }
 
+    override fun getPopupText(view: View, position: Int): CharSequence {
+        return if (position < sectionAdapter.itemCount) {
+            ""
+        } else {
+            songAdapter.getPopupText(view, position - sectionAdapter.itemCount)
+        }
+    }
+
     override fun onPause() {
         if (!isHidden) {
             requireActivity().closeKeyboard(editText)
@@ -19,8 +19,10 @@ package org.akanework.gramophone.ui.fragments.settings
 
 import android.os.Bundle
 import androidx.preference.Preference
+import com.google.android.material.dialog.MaterialAlertDialogBuilder
 import org.akanework.gramophone.BuildConfig
 import org.akanework.gramophone.R
+import org.akanework.gramophone.logic.utils.LibraryLoadTrace
 import org.akanework.gramophone.ui.fragments.BasePreferenceFragment
 import org.akanework.gramophone.ui.fragments.BaseSettingFragment
 
@@ -34,6 +36,7 @@ class ExperimentalSettingsTopFragment : BasePreferenceFragment() {
     override fun onCreatePreferences(savedInstanceState: Bundle?, rootKey: String?) {
         setPreferencesFromResource(R.xml.settings_experimental, rootKey)
         findPreference<Preference>("crash")!!.isVisible = BuildConfig.DEBUG
+        findPreference<Preference>("library_load_trace")!!.isVisible = BuildConfig.DEBUG
         if (BuildConfig.DEBUG)
             e = RuntimeException("skill issue")
     }
@@ -41,6 +44,15 @@ class ExperimentalSettingsTopFragment : BasePreferenceFragment() {
     override fun onPreferenceTreeClick(preference: Preference): Boolean {
         if (preference.key == "crash" && BuildConfig.DEBUG) {
             throw IllegalArgumentException("I crashed your app >:)", e)
+        } else if (preference.key == "library_load_trace" && BuildConfig.DEBUG) {
+            val history = LibraryLoadTrace.history()
+            MaterialAlertDialogBuilder(requireContext())
+                .setTitle(R.string.settings_library_load_trace)
+                .setMessage(if (history.isEmpty()) getString(R.string.library_load_trace_empty)
+                    else history.asReversed().joinToString("\n\n"))
+                .setPositiveButton(R.string.dismiss, null)
+                .show()
+            return true
         }
         return super.onPreferenceTreeClick(preference)
     }
@@ -0,0 +1,85 @@
+package org.akanework.gramophone
+
+import org.akanework.gramophone.SyntheticLibrary.Song
+import org.akanework.gramophone.logic.utils.LibraryBudget
+import org.akanework.gramophone.logic.utils.LibraryContent
+import org.akanework.gramophone.logic.utils.LibraryGrouper
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import uk.akane.libphonograph.items.FileNode
+
+class LibraryBudgetTest {
+
+	private val grouper = LibraryGrouper(SyntheticLibrary.SongFields)
+
+	private fun FileNode<Song>.flatten(): List<Any?> =
+		listOf(folderName, albumId, songList) + folderList.flatMap { listOf(it.key) + it.value.flatten() }
+
+	private fun LibraryContent<Song>.flatten(): List<Any?> = listOf(
+		genreList.map { listOf(it.id, it.title, it.songList) },
+		dateList.map { listOf(it.id, it.title, it.songList) },
+		folderStructure.flatten(),
+		shallowFolder.flatten(),
+		folders.toList()
+	)
+
+	private fun FileNode<Song>.listBytes(): Long = LibraryBudget.listBytes(songList.size) +
+			folderList.values.sumOf { it.listBytes() }
+
+	@Test
+	fun testSameAsGrouper() {
+		val songs = SyntheticLibrary.songs(20_000).shuffled(java.util.Random(42))
+		val eager = grouper.group(songs, emptyList())
+		// Small enough that lists get evicted while flattening.
+		val lazy = LibraryBudget(SyntheticLibrary.SongFields, 16 * 1024).apply(eager)
+		assertEquals(eager.flatten(), lazy.flatten())
+		assertEquals(eager.flatten(), lazy.flatten())
+	}
+
+	// Heap in use as far as the JVM can tell. One gc() is only a hint, so take the lowest
+	// of a few.
+	private fun usedHeap(): Long {
+		val runtime = Runtime.getRuntime()
+		var used = Long.MAX_VALUE
+		repeat(5) {
+			System.gc()
+			Thread.sleep(20)
+			used = minOf(used, runtime.totalMemory() - runtime.freeMemory())
+		}
+		return used
+	}
+
+	@Test
+	fun testPeakRetainedHeap() {
+		val songs = SyntheticLibrary.songs(150_000)
+		val base = usedHeap()
+		var eager: LibraryContent<Song>? = grouper.group(songs, emptyList())
+		val eagerHeap = usedHeap() - base
+		val eagerBytes = eager!!.genreList.sumOf { LibraryBudget.listBytes(it.songList.size) } +
+				eager.dateList.sumOf { LibraryBudget.listBytes(it.songList.size) } +
+				eager.folderStructure.listBytes() + eager.shallowFolder.listBytes()
+		val budget = LibraryBudget(SyntheticLibrary.SongFields, 256 * 1024)
+		val lazy = budget.apply(eager)
+		// Only albums and artists of the eager content are still referenced, by lazy.
+		eager = null
+		// Open every group twice, like browsing through all tabs.
+		repeat(2) {
+			lazy.genreList.forEach { it.songList }
+			lazy.dateList.forEach { it.songList }
+			lazy.shallowFolder.folderList.values.forEach { it.songList }
+		}
+		val lazyHeap = usedHeap() - base
+		println("estimated: eager ${eagerBytes / 1024}KiB, index ${budget.indexBytes / 1024}KiB, " +
+				"peak ${budget.peakRetainedBytes / 1024}KiB; measured: eager " +
+				"${eagerHeap / 1024}KiB, lazy ${lazyHeap / 1024}KiB")
+		// LibraryBudget's own accounting, which is an estimate of the song lists only.
+		assertTrue(budget.peakRetainedBytes > 0)
+		assertTrue(budget.peakRetainedBytes <= budget.budgetBytes)
+		assertTrue(budget.indexBytes + budget.peakRetainedBytes < eagerBytes / 4)
+		// The real heap must go down by at least half of what the estimate says is saved.
+		val estimatedSaving = eagerBytes - budget.indexBytes - budget.budgetBytes
+		assertTrue("measured saving ${(eagerHeap - lazyHeap) / 1024}KiB",
+			eagerHeap - lazyHeap >= estimatedSaving / 2)
+	}
+}
@@ -0,0 +1,133 @@
+package org.akanework.gramophone
+
+import kotlinx.coroutines.runBlocking
+import org.akanework.gramophone.SyntheticLibrary.Song
+import org.akanework.gramophone.logic.utils.LibraryContent
+import org.akanework.gramophone.logic.utils.LibraryGrouper
+import org.akanework.gramophone.logic.utils.isRecentlyAdded
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import uk.akane.libphonograph.items.FileNode
+
+class LibraryGrouperTest {
+
+	companion object {
+		private const val MAX_MICROS_PER_SONG = 20L
+	}
+
+	private val grouper = LibraryGrouper(SyntheticLibrary.SongFields)
+
+	private fun FileNode<Song>.flatten(): List<Any?> =
+		listOf(folderName, albumId, songList) + folderList.flatMap { listOf(it.key) + it.value.flatten() }
+
+	// Group classes don't implement equals(), compare what they hold instead.
+	private fun LibraryContent<Song>.flatten(): List<Any?> = listOf(
+		songList,
+		albumList.map { listOf(it.id, it.title, it.albumArtist, it.albumYear, it.songList) },
+		albumArtistList.map { listOf(it.id, it.title, it.songList, it.albumList.map { a -> a.id }) },
+		artistList.map { listOf(it.id, it.title, it.songList, it.albumList.map { a -> a.id }) },
+		genreList.map { listOf(it.id, it.title, it.songList) },
+		dateList.map { listOf(it.id, it.title, it.songList) },
+		folderStructure.flatten(),
+		shallowFolder.flatten(),
+		folders.toList()
+	)
+
+	// patch() appends new groups instead of placing them by first occurrence, so compare
+	// groups regardless of their order.
+	private fun FileNode<Song>.flattenUnordered(): List<Any?> =
+		listOf(folderName, albumId, songList) + folderList.entries.sortedBy { it.key }
+			.flatMap { listOf(it.key) + it.value.flattenUnordered() }
+
+	private fun LibraryContent<Song>.flattenUnordered(): List<Any?> = listOf(
+		songList,
+		albumList.map { listOf(it.id, it.title, it.albumArtist, it.albumYear, it.songList) }
+			.sortedBy { it.toString() },
+		albumArtistList.map { listOf(it.id, it.title, it.songList, it.albumList.map { a -> a.id }) }
+			.sortedBy { it.toString() },
+		artistList.map { listOf(it.id, it.title, it.songList, it.albumList.map { a -> a.id }) }
+			.sortedBy { it.toString() },
+		genreList.map { listOf(it.id, it.title, it.songList) }.sortedBy { it.toString() },
+		dateList.map { listOf(it.id, it.title, it.songList) }.sortedBy { it.toString() },
+		playlistList.map { listOf(it.id, it.title, it.isRecentlyAdded(), it.songList) },
+		folderStructure.flattenUnordered(),
+		shallowFolder.flattenUnordered(),
+		folders.sorted()
+	)
+
+	@Test
+	fun testPatchMatchesGroup() {
+		val now = System.currentTimeMillis() / 1000
+		// Every 10th song was added recently, the rest long ago.
+		val initial = SyntheticLibrary.songs(2_000).map {
+			it.copy(addDate = if (it.id % 10 == 0L) now - it.id else now - 100 * 24 * 3600L)
+		}
+		// All of album 9, and two songs of other albums.
+		val deleted = (108L..119L).toSet() + setOf(3L, 40L)
+		val updated = listOf(
+			initial[20].copy(title = "Renamed"),
+			initial[500].copy(albumId = 2L, album = "Album 2", genreId = 29L, genre = "Genre 29",
+				year = 1999, path = initial[30].path.substringBeforeLast('/') + "/moved.flac"),
+			initial[701].copy(addDate = now)
+		)
+		val inserted = List(30) { i ->
+			Song(5_000L + i, "/storage/emulated/0/Download/New/$i.flac", "New $i", "New Artist",
+				9_000L, "New Album", 9_000L, "New Genre", 9_000L, 2024, i + 1, 200_000L, now - i)
+		}
+		val changed = updated.associateBy { it.id }
+		val final = initial.filter { it.id !in deleted }.map { changed[it.id] ?: it } + inserted
+
+		val old = grouper.group(initial, listOf(grouper.recentlyAdded(initial)))
+		val patched = grouper.patch(old, updated + inserted, deleted)
+		val expected = grouper.group(final, listOf(grouper.recentlyAdded(final)))
+		assertEquals(expected.flattenUnordered(), patched.flattenUnordered())
+		assertTrue(patched.playlistList[0].songList.containsAll(inserted))
+		// Untouched groups keep their instance.
+		assertSame(old.albumList[50], patched.albumList.first { it.id == 50L })
+	}
+
+	@Test
+	fun testParallelMatchesSerial() {
+		// Shuffled, so that keys are spread over all chunks.
+		val songs = SyntheticLibrary.songs(20_000).shuffled(java.util.Random(42))
+		val serial = grouper.group(songs, emptyList())
+		val parallel = runBlocking { grouper.groupParallel(songs, emptyList()) }
+		assertEquals(serial.flatten(), parallel.flatten())
+	}
+
+	@Test
+	fun testEmptyLibrary() {
+		val parallel = runBlocking { grouper.groupParallel(emptyList(), emptyList()) }
+		assertEquals(grouper.group(emptyList(), emptyList()).flatten(), parallel.flatten())
+	}
+
+	private inline fun measure(block: () -> Unit): Long {
+		var best = Long.MAX_VALUE
+		repeat(5) {
+			val start = System.nanoTime()
+			block()
+			best = minOf(best, System.nanoTime() - start)
+		}
+		return best / 1000
+	}
+
+	@Test
+	fun benchmarkSerialVsParallel() {
+		println("grouping on ${Runtime.getRuntime().availableProcessors()} cores")
+		for (size in listOf(10_000, 50_000, 100_000)) {
+			val songs = SyntheticLibrary.songs(size)
+			// Warm up both paths, we want to compare steady state.
+			grouper.group(songs, emptyList())
+			runBlocking { grouper.groupParallel(songs, emptyList()) }
+			val serial = measure { grouper.group(songs, emptyList()) }
+			val parallel = measure { runBlocking { grouper.groupParallel(songs, emptyList()) } }
+			println("$size songs: serial ${serial}us, parallel ${parallel}us, " +
+					"speedup ${"%.2f".format(serial.toDouble() / parallel)}x")
+			assertTrue("$size songs took ${serial}us serial", serial <= MAX_MICROS_PER_SONG * size)
+			assertTrue("$size songs took ${parallel}us parallel",
+				parallel <= MAX_MICROS_PER_SONG * size)
+		}
+	}
+}
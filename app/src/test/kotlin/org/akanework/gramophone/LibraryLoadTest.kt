@@ -0,0 +1,135 @@
+package org.akanework.gramophone
+
+import android.app.Application
+import android.provider.MediaStore
+import androidx.media3.common.MediaItem
+import org.akanework.gramophone.logic.utils.LibraryIndex
+import org.akanework.gramophone.logic.utils.LibraryLoadTrace
+import org.akanework.gramophone.logic.utils.MediaStoreUtils
+import org.akanework.gramophone.logic.utils.SongTable
+import org.akanework.gramophone.logic.utils.addDate
+import org.akanework.gramophone.logic.utils.albumId
+import org.akanework.gramophone.logic.utils.artistId
+import org.akanework.gramophone.logic.utils.author
+import org.akanework.gramophone.logic.utils.cdTrackNumber
+import org.akanework.gramophone.logic.utils.genreId
+import org.akanework.gramophone.logic.utils.modifiedDate
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+import java.lang.management.ManagementFactory
+
+/**
+ * Loads synthetic libraries through MediaStoreUtils and the reader, against
+ * [SyntheticMediaStore] instead of a device full of music. The budgets are several times
+ * what a load takes on a desktop CPU, they are meant to catch regressions by an order of
+ * magnitude, not to be benchmarks.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [34], application = Application::class)
+class LibraryLoadTest {
+
+	companion object {
+		private const val MAX_MICROS_PER_ROW = 500L
+		private const val MAX_BYTES_PER_ROW = 32L * 1024
+	}
+
+	private lateinit var provider: SyntheticMediaStore.Provider
+
+	@Before
+	fun setUp() {
+		provider = Robolectric.buildContentProvider(SyntheticMediaStore.Provider::class.java)
+			.create(MediaStore.AUTHORITY).get()
+	}
+
+	// Only counts the calling thread, which is where the reader does its work. Grouping
+	// runs on other threads.
+	private fun allocatedBytes(): Long {
+		val bean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+		return bean?.getThreadAllocatedBytes(Thread.currentThread().id) ?: 0L
+	}
+
+	private fun load(size: Int): Triple<Int, Long, Long> {
+		provider.store = SyntheticMediaStore(size)
+		val trace = LibraryLoadTrace("synthetic $size")
+		val bytes = allocatedBytes()
+		val start = System.nanoTime()
+		val content = MediaStoreUtils.readLibrary(RuntimeEnvironment.getApplication(), trace)
+		val micros = (System.nanoTime() - start) / 1000
+		trace.finish()
+		println(trace)
+		return Triple(content.songList.size, micros, allocatedBytes() - bytes)
+	}
+
+	@Test
+	fun testReadsAllRows() {
+		val store = SyntheticMediaStore(2_000)
+		provider.store = store
+		val content = MediaStoreUtils.readLibrary(RuntimeEnvironment.getApplication(),
+			LibraryLoadTrace("test"))
+		assertEquals(store.size, content.songList.size)
+		assertTrue(content.albumList.size <= store.albumCount)
+		assertTrue(content.folders.isNotEmpty())
+	}
+
+	@Test
+	fun testIndexMatchesGrouping() {
+		provider.store = SyntheticMediaStore(2_000)
+		val content = MediaStoreUtils.readLibrary(RuntimeEnvironment.getApplication(),
+			LibraryLoadTrace("test"))
+		val index = LibraryIndex(content)
+		// Navigating from a song must land on the album and artist which hold it.
+		content.songList.forEachIndexed { i, song ->
+			assertEquals(i, index.songPosition(song.mediaId))
+			val album = content.albumList[index.albumPosition(song.albumId)!!]
+			assertTrue(album.songList.contains(song))
+			val artist = content.artistList[index.artistPosition(song.artistId)!!]
+			assertTrue(artist.songList.contains(song))
+		}
+	}
+
+	// Everything a song is grouped, sorted or shown by.
+	private fun describe(item: MediaItem) = item.mediaMetadata.let {
+		listOf(item.mediaId, item.localConfiguration?.uri, item.localConfiguration?.mimeType,
+			it.title, it.artist, it.albumTitle, it.albumArtist, it.artworkUri, it.composer,
+			it.writer, it.compilation, it.trackNumber, it.discNumber, it.genre,
+			it.recordingDay, it.recordingMonth, it.recordingYear, it.releaseYear,
+			it.durationMs, item.artistId, item.albumId, item.genreId, item.addDate,
+			item.modifiedDate, item.cdTrackNumber, item.author)
+	}
+
+	@Test
+	fun testReadSongsMatchesFullLoad() {
+		provider.store = SyntheticMediaStore(2_000)
+		val context = RuntimeEnvironment.getApplication()
+		val full = MediaStoreUtils.readLibrary(context, LibraryLoadTrace("test")).songList
+		// The fake provider ignores the selection, so this reads every row, the way an
+		// incremental load reads the changed ones.
+		val (delta, rejected) = MediaStoreUtils.readSongs(context,
+			MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, null, null,
+			MediaStoreUtils.readFilter(context), SongTable())
+		assertTrue(rejected.isEmpty())
+		assertEquals(full.map { describe(it) }.sortedBy { it[0] as String },
+			delta.map { describe(it) }.sortedBy { it[0] as String })
+	}
+
+	@Test
+	fun benchmarkLoad() {
+		// Warm up class loading and the JIT, we want to see steady state.
+		load(1_000)
+		for (size in listOf(1_000, 10_000, 100_000)) {
+			val (songs, micros, bytes) = load(size)
+			println("$size rows: ${micros / 1000}ms, ${bytes / 1024 / 1024}MiB allocated, " +
+					"${micros / size}us and ${bytes / size}B per row")
+			assertEquals(size, songs)
+			assertTrue("$size rows took ${micros}us", micros <= MAX_MICROS_PER_ROW * size)
+			assertTrue("$size rows allocated ${bytes}B", bytes <= MAX_BYTES_PER_ROW * size)
+		}
+	}
+}
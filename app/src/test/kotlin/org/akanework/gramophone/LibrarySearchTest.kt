@@ -0,0 +1,46 @@
+package org.akanework.gramophone
+
+import org.akanework.gramophone.logic.utils.LibraryGrouper
+import org.akanework.gramophone.logic.utils.LibrarySearch
+import org.akanework.gramophone.logic.utils.LibrarySearch.Section
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class LibrarySearchTest {
+
+	private val search = LibrarySearch(LibraryGrouper(SyntheticLibrary.SongFields)
+		.group(SyntheticLibrary.songs(2_000), emptyList()))
+
+	private fun sections(query: String) =
+		LibrarySearch.sections(search.index.search(query)).map { (section, hits) ->
+			section to hits.map { it.path ?: it.title }
+		}
+
+	@Test
+	fun testSections() {
+		assertEquals(listOf(
+			Section.ALBUMS to listOf("Album 12", "Album 120", "Album 121", "Album 122",
+				"Album 123"),
+			Section.FOLDERS to listOf("storage/emulated/0/Music/Artist 3/Album 12",
+				"storage/emulated/0/Music/Artist 30/Album 120",
+				"storage/emulated/0/Music/Artist 30/Album 121",
+				"storage/emulated/0/Music/Artist 30/Album 122",
+				"storage/emulated/0/Music/Artist 30/Album 123")
+		), sections("album 12"))
+		// Albums are found by their album artist too.
+		assertEquals(listOf(Section.ALBUMS, Section.ARTISTS, Section.ALBUM_ARTISTS,
+			Section.FOLDERS), sections("artist 41").map { it.first })
+		assertEquals(listOf(Section.GENRES to listOf("Genre 7")), sections("genre 7"))
+		assertEquals(emptyList<Any>(), sections("xyz"))
+	}
+
+	@Test
+	fun testCap() {
+		val hits = search.index.search("a")
+		val sections = LibrarySearch.sections(hits, 3)
+		assertEquals(sections.map { it.first }.distinct(), sections.map { it.first })
+		sections.forEach { (section, sectionHits) ->
+			assertEquals(hits.filter { it.section == section }.take(3), sectionHits)
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package org.akanework.gramophone
+
+import android.net.Uri
+import org.akanework.gramophone.SyntheticLibrary.Song
+import org.akanework.gramophone.logic.utils.LibraryContent
+import org.akanework.gramophone.logic.utils.LibraryGrouper
+import org.akanework.gramophone.logic.utils.LibrarySnapshot
+import org.akanework.gramophone.logic.utils.isRecentlyAdded
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import uk.akane.libphonograph.items.FileNode
+import java.io.File
+import java.io.RandomAccessFile
+
+class LibrarySnapshotTest {
+
+	companion object {
+		// 1s for 100k songs, which is the largest library we test with.
+		private const val MAX_MICROS_PER_SONG = 10L
+	}
+
+	@get:Rule
+	val tmp = TemporaryFolder()
+
+	object SongCodec : LibrarySnapshot.Codec<Song> {
+		override fun encode(item: Song, row: LibrarySnapshot.SongRow) {
+			row.mediaId = item.id
+			row.uri = item.path
+			row.title = item.title
+			row.artist = item.artist
+			row.artistId = item.artistId
+			row.albumTitle = item.album
+			row.albumId = item.albumId
+			row.genre = item.genre
+			row.genreId = item.genreId
+			row.recordingYear = item.year
+			row.trackNumber = item.track
+			row.duration = item.duration
+		}
+
+		override fun decode(row: LibrarySnapshot.SongRow) = Song(row.mediaId, row.uri!!,
+			row.title!!, row.artist, row.artistId, row.albumTitle, row.albumId, row.genre,
+			row.genreId, row.recordingYear, row.trackNumber, row.duration!!)
+
+		// Test songs have no covers.
+		override fun encodeUri(uri: Uri) = throw UnsupportedOperationException()
+		override fun decodeUri(uri: String) = throw UnsupportedOperationException()
+	}
+
+	private fun library(size: Int): LibraryContent<Song> {
+		val songs = SyntheticLibrary.songs(size)
+		// A playlist entry which isn't part of the library, ie. because it was filtered.
+		val orphan = Song(-1L, "/storage/emulated/0/Ringtones/a.ogg", "Orphan", null, null,
+			null, null, null, null, null, null, 1000L)
+		val playlists = listOf(
+			LibraryGrouper.GroupedPlaylist(1L, "Favourites",
+				songs.filter { it.id % 7 == 0L } + orphan, false),
+			LibraryGrouper.GroupedPlaylist(null, null, songs.takeLast(100).reversed(), true)
+		)
+		return LibraryGrouper(SyntheticLibrary.SongFields).group(songs, playlists)
+	}
+
+	private fun write(content: LibraryContent<Song>, meta: Map<String, String> = emptyMap()): File {
+		val file = tmp.newFile()
+		LibrarySnapshot(SongCodec).write(file, content, meta)
+		return file
+	}
+
+	private fun assertNodeEquals(expected: FileNode<Song>, actual: FileNode<Song>) {
+		assertEquals(expected.folderName, actual.folderName)
+		assertEquals(expected.albumId, actual.albumId)
+		assertEquals(expected.songList, actual.songList)
+		assertEquals(expected.folderList.keys.toList(), actual.folderList.keys.toList())
+		expected.folderList.forEach { (key, node) -> assertNodeEquals(node, actual.folderList[key]!!) }
+	}
+
+	@Test
+	fun testRoundTrip() {
+		val expected = library(100_000)
+		val meta = mapOf("sync.minLength" to "10", "sync.generation.external_primary" to "1234")
+		val snapshot = LibrarySnapshot(SongCodec).read(write(expected, meta))
+		assertNotNull(snapshot)
+		val actual = snapshot!!.content
+		assertEquals(meta, snapshot.meta)
+		assertEquals(expected.songList, actual.songList)
+		assertEquals(expected.albumList.size, actual.albumList.size)
+		expected.albumList.zip(actual.albumList).forEach { (e, a) ->
+			assertEquals(e.id, a.id)
+			assertEquals(e.title, a.title)
+			assertEquals(e.albumArtist, a.albumArtist)
+			assertEquals(e.albumYear, a.albumYear)
+			assertEquals(e.songList, a.songList)
+		}
+		listOf(expected.artistList to actual.artistList,
+			expected.albumArtistList to actual.albumArtistList).forEach { (el, al) ->
+			assertEquals(el.size, al.size)
+			el.zip(al).forEach { (e, a) ->
+				assertEquals(e.id, a.id)
+				assertEquals(e.title, a.title)
+				assertEquals(e.songList, a.songList)
+				assertEquals(e.albumList.map { it.id }, a.albumList.map { it.id })
+			}
+		}
+		assertEquals(expected.genreList.map { Triple(it.id, it.title, it.songList) },
+			actual.genreList.map { Triple(it.id, it.title, it.songList) })
+		assertEquals(expected.dateList.map { Triple(it.id, it.title, it.songList) },
+			actual.dateList.map { Triple(it.id, it.title, it.songList) })
+		assertEquals(expected.playlistList.map { Triple(it.id, it.title, it.songList) },
+			actual.playlistList.map { Triple(it.id, it.title, it.songList) })
+		assertEquals(expected.playlistList.map { it.isRecentlyAdded() },
+			actual.playlistList.map { it.isRecentlyAdded() })
+		assertNodeEquals(expected.folderStructure, actual.folderStructure)
+		assertNodeEquals(expected.shallowFolder, actual.shallowFolder)
+		assertEquals(expected.folders, actual.folders)
+	}
+
+	@Test
+	fun testSongsAreShared() {
+		val actual = LibrarySnapshot(SongCodec).read(write(library(1000)))!!.content
+		// Groups must point to the same instances as the song list, not to copies.
+		assertSame(actual.songList[13], actual.albumList[1].songList[1])
+		assertSame(actual.songList[999], actual.playlistList[1].songList[0])
+		assertSame(actual.albumList[4], actual.artistList[1].albumList[0])
+	}
+
+	@Test
+	fun testIncompatibleVersion() {
+		val file = write(library(10))
+		RandomAccessFile(file, "rw").use {
+			it.seek(4)
+			it.writeInt(Int.MAX_VALUE)
+		}
+		assertNull(LibrarySnapshot(SongCodec).read(file))
+		assertNull(LibrarySnapshot(SongCodec).read(File(tmp.root, "missing")))
+	}
+
+	@Test(expected = LibrarySnapshot.CorruptSnapshotException::class)
+	fun testTruncated() {
+		val file = write(library(1000))
+		RandomAccessFile(file, "rw").use { it.setLength(it.length() / 2) }
+		LibrarySnapshot(SongCodec).read(file)
+	}
+
+	@Test
+	fun benchmarkDecode() {
+		val snapshot = LibrarySnapshot(SongCodec)
+		for (size in listOf(1_000, 10_000, 100_000)) {
+			val file = write(library(size))
+			// Warm up the JIT and page cache first, cold start of the JVM is not what we measure.
+			assertEquals(size, snapshot.read(file)!!.content.songList.size)
+			var best = Long.MAX_VALUE
+			repeat(3) {
+				val start = System.nanoTime()
+				snapshot.read(file)
+				best = minOf(best, System.nanoTime() - start)
+			}
+			println("decoded $size songs in ${best / 1000000}ms, ${best / size}ns per song " +
+					"(${file.length() / 1024}KiB)")
+			assertTrue("decoding $size songs took ${best / 1000}us",
+				best / 1000 <= MAX_MICROS_PER_SONG * size)
+		}
+	}
+}
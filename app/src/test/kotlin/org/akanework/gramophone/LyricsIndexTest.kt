@@ -0,0 +1,70 @@
+package org.akanework.gramophone
+
+import org.akanework.gramophone.logic.utils.LyricsIndex
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+class LyricsIndexTest {
+
+	@get:Rule
+	val folder = TemporaryFolder()
+
+	private class Song(val id: Long, val path: String)
+
+	private class FakeFields(val lyrics: MutableMap<Long, List<String>>) :
+		LyricsIndex.Fields<Song> {
+		val read = ArrayList<Long>()
+
+		override fun id(item: Song) = item.id
+		override fun path(item: Song) = item.path
+		override fun modified(item: Song) = File(item.path).lastModified()
+		override fun lyrics(item: Song): List<String>? {
+			read.add(item.id)
+			return lyrics[item.id]
+		}
+	}
+
+	private fun song(id: Long) =
+		Song(id, folder.root.resolve("$id.flac").apply { writeText("") }.path)
+
+	private fun LyricsIndex<Song>.find(query: String) = search(query, null).map { it.id }
+
+	@Test
+	fun testSearchAndUpdate() {
+		val lyrics = mutableMapOf(
+			1L to listOf("Never gonna give you up", "Never gonna let you down"),
+			2L to listOf("Is this the real life?", "Is this just fantasy?"),
+			3L to listOf("夜に駆ける"),
+			4L to listOf("Give it away, give it away now"))
+		val songs = (1L..5L).map { song(it) }
+		val file = File(folder.root, "lyrics.index")
+		val fields = FakeFields(lyrics)
+		val index = LyricsIndex(file, fields)
+		index.update(songs)
+		assertEquals(listOf(1L, 2L, 3L, 4L, 5L), fields.read)
+		assertEquals(listOf(1L, 4L), index.find("give"))
+		assertEquals(listOf(1L), index.find("give you"))
+		assertEquals(listOf(1L), index.find("gonna giv"))
+		assertEquals(emptyList<Long>(), index.find("giv "))
+		assertEquals(listOf(2L), index.find("REAL life"))
+		assertEquals(listOf(3L), index.find("駆け"))
+		assertEquals(emptyList<Long>(), index.find("xyz"))
+
+		// Only what changed is read again, also by a new instance reading the file.
+		lyrics[4L] = listOf("Under the bridge")
+		val lrc = File(folder.root, "4.lrc")
+		lrc.writeText("")
+		lrc.setLastModified(1_000_000L)
+		val reloadedFields = FakeFields(lyrics)
+		val reloaded = LyricsIndex(file, reloadedFields)
+		reloaded.update(songs.filter { it.id != 2L })
+		assertEquals(listOf(4L), reloadedFields.read)
+		assertEquals(listOf(1L), reloaded.find("give"))
+		assertEquals(listOf(4L), reloaded.find("bridge"))
+		assertEquals(emptyList<Long>(), reloaded.find("real"))
+		assertEquals(listOf(3L), reloaded.find("夜"))
+	}
+}
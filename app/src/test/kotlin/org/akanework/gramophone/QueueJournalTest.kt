@@ -0,0 +1,120 @@
+package org.akanework.gramophone
+
+import android.app.Application
+import android.net.Uri
+import androidx.media3.common.MediaItem
+import kotlinx.coroutines.runBlocking
+import org.akanework.gramophone.logic.utils.QueueJournal
+import org.akanework.gramophone.logic.utils.persistedMediaItem
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [34], application = Application::class)
+class QueueJournalTest {
+
+	companion object {
+		private const val MAX_MICROS_PER_ITEM = 200L
+	}
+
+	@get:Rule
+	val folder = TemporaryFolder()
+
+	private fun song(id: Long) = persistedMediaItem(
+		mediaId = id.toString(), uri = Uri.parse("file:///storage/emulated/0/Music/$id.flac"),
+		mimeType = "audio/flac", title = "Song $id", artist = "Artist ${id % 50}",
+		album = "Album ${id % 500}", albumArtist = "Artist ${id % 50}",
+		imgUri = Uri.parse("content://media/external/audio/albumart/${id % 500}"),
+		trackNumber = (id % 12).toInt() + 1, discNumber = null, recordingYear = 2000,
+		releaseYear = null, isBrowsable = false, isPlayable = true, addDate = id,
+		writer = null, compilation = null, composer = null, genre = "Genre ${id % 20}",
+		recordingDay = null, recordingMonth = null, artistId = id % 50, albumId = id % 500,
+		genreId = id % 20, author = null, cdTrackNumber = null, duration = 200_000L,
+		path = "/storage/emulated/0/Music/$id.flac", modifiedDate = id
+	)
+
+	// Knows even ids, which are stored by reference, and has lost every 100th of them.
+	private class FakeLibrary : QueueJournal.Library {
+		val songs = HashMap<Long, MediaItem>()
+		var resolveCalls = 0
+
+		override fun contains(mediaId: String) = mediaId.toLong() % 2 == 0L
+
+		override fun resolve(refs: List<QueueJournal.Ref>): List<MediaItem?> {
+			resolveCalls++
+			return refs.map { songs[it.mediaId] }
+		}
+	}
+
+	private fun FakeLibrary.isGone(id: Long) = contains(id.toString()) && id % 100 == 0L
+
+	private fun write(library: FakeLibrary, ids: List<Long>): QueueJournal {
+		val journal = QueueJournal(folder.root.resolve("queue.journal"), library)
+		val items = ids.map { song(it) }
+		items.forEach {
+			val id = it.mediaId.toLong()
+			if (!library.isGone(id)) library.songs[id] = it
+		}
+		journal.onItemsAdded(0, items)
+		runBlocking { journal.flush()?.join() }
+		return journal
+	}
+
+	@Test
+	fun testReplaysEdits() {
+		val library = FakeLibrary()
+		val expected = (1L..2_000L).toMutableList()
+		val journal = write(library, expected)
+		// Appended to the compacted file, in separate writes.
+		journal.onItemsRemoved(10, 20)
+		expected.subList(10, 20).clear()
+		runBlocking { journal.flush()?.join() }
+		journal.onItemsMoved(0, 5, 100)
+		val moved = expected.subList(0, 5).toList()
+		expected.subList(0, 5).clear()
+		expected.addAll(100, moved)
+		journal.onItemsAdded(50, listOf(song(5_001), song(5_002)))
+		library.songs[5_002] = song(5_002)
+		expected.addAll(50, listOf(5_001, 5_002))
+		runBlocking { journal.flush()?.join() }
+
+		val snapshot = QueueJournal(folder.root.resolve("queue.journal"), library).open()
+		assertNotNull(snapshot)
+		val items = snapshot!!.decode()
+		assertEquals(1, library.resolveCalls)
+		assertEquals(expected.map { if (library.isGone(it)) null else it.toString() },
+			items.map { it?.mediaId })
+		assertEquals("Song 5001", items[50]!!.mediaMetadata.title)
+	}
+
+	@Test
+	fun benchmarkRestore() {
+		val size = 20_000
+		val library = FakeLibrary()
+		write(library, (1L..size).toList())
+		val current = size / 2
+		repeat(3) {
+			val start = System.nanoTime()
+			val snapshot = QueueJournal(folder.root.resolve("queue.journal"), library).open()!!
+			val first = snapshot.decode(current, current + 1)[0]
+			val firstMicros = (System.nanoTime() - start) / 1000
+			val before = snapshot.decode(0, current)
+			val after = snapshot.decode(current + 1)
+			val micros = (System.nanoTime() - start) / 1000
+			println("$size items: current item after ${firstMicros / 1000}ms, " +
+					"all after ${micros / 1000}ms, ${micros / size}us per item")
+			assertEquals((current + 1).toString(), first?.mediaId)
+			assertEquals(size, before.size + 1 + after.size)
+			assertTrue("current item took ${firstMicros}us of ${micros}us",
+				firstMicros < micros / 2)
+			assertTrue("$size items took ${micros}us", micros <= MAX_MICROS_PER_ITEM * size)
+		}
+	}
+}
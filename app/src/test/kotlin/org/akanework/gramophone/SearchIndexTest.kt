@@ -0,0 +1,112 @@
+package org.akanework.gramophone
+
+import org.akanework.gramophone.SyntheticLibrary.Song
+import org.akanework.gramophone.logic.utils.LibraryDiff
+import org.akanework.gramophone.logic.utils.SearchIndex
+import org.akanework.gramophone.logic.utils.SearchNormalizer
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class SearchIndexTest {
+
+	companion object {
+		private const val MAX_QUERY_MICROS = 10_000L
+		private val queries = listOf("s", "so", "song 1", "Song 4999", "ALBUM 12", "artist 3",
+			"ng 1", "1", "12 ", "xyz", "album 1000")
+	}
+
+	private fun naive(songs: List<Song>, query: String) = songs.filter {
+		it.title.contains(query, true) || it.album?.contains(query, true) == true ||
+				it.artist?.contains(query, true) == true
+	}
+
+	// Ranking is tested separately, this only compares which songs are found.
+	private fun SearchIndex<Song>.found(query: String) = search(query).sortedBy { it.id }
+
+	@Test
+	fun testSameAsContains() {
+		val songs = SyntheticLibrary.songs(20_000)
+		val index = SearchIndex(SyntheticLibrary.SongSearchFields, songs)
+		for (query in queries) {
+			assertEquals(query, naive(songs, query), index.found(query))
+		}
+	}
+
+	@Test
+	fun testUpdate() {
+		val old = SyntheticLibrary.songs(5_000)
+		val index = SearchIndex(SyntheticLibrary.SongSearchFields, old)
+		// Drop every 7th song, rename every 11th and add a few new ones in the middle.
+		val changed = HashMap<String, Song>()
+		val new = old.filterIndexed { i, _ -> i % 7 != 0 }.map {
+			if (it.id % 11 == 0L) it.copy(title = "Renamed ${it.id}")
+				.also { song -> changed[song.id.toString()] = song } else it
+		}.toMutableList()
+		val added = SyntheticLibrary.songs(10_100).subList(10_000, 10_100)
+		new.addAll(2_000, added)
+		val removed = old.filter { it.id % 7 == 0L }.mapTo(HashSet()) { it.id.toString() }
+		index.update(new, LibraryDiff.ChangeSet(old, new, removed, changed, added))
+		val fresh = SearchIndex(SyntheticLibrary.SongSearchFields, new)
+		for (query in queries + listOf("renamed", "renamed 22", "song 10050")) {
+			assertEquals(query, fresh.search(query), index.search(query))
+			assertEquals(query, naive(new, query).sortedBy { it.id }, index.found(query))
+		}
+	}
+
+	@Test
+	fun testRanking() {
+		fun song(id: Long, title: String, artist: String, album: String) = Song(id,
+			"/storage/emulated/0/Music/$id.flac", title, artist, null, album, null, null, null,
+			null, null, 180000L)
+		val songs = listOf(
+			song(0, "Eyes", "Someone", "Something"),
+			song(1, "Say Yes", "Someone", "Something"),
+			song(2, "Other", "Someone", "Yes Album"),
+			song(3, "Yesterday", "Someone", "Something"),
+			song(4, "Other", "Yes", "Something"),
+			song(5, "Yes", "Someone", "Something"),
+			song(6, "Unrelated", "Someone", "Something"))
+		val index = SearchIndex(SyntheticLibrary.SongSearchFields, songs)
+		assertEquals(listOf(5L, 4L, 3L, 2L, 1L, 0L), index.search("yes").map { it.id })
+		assertEquals(listOf(5L, 4L, 3L, 2L, 1L, 0L),
+			index.search("yes", index.search("ye")).map { it.id })
+	}
+
+	@Test
+	fun testNormalization() {
+		val songs = listOf(
+			Song(0, "/storage/emulated/0/Music/0.flac", "Halo", "Beyoncé", null, "Ｉ Ａｍ", null,
+				null, null, null, null, 180000L),
+			Song(1, "/storage/emulated/0/Music/1.flac", "Hauptstraße", "Ärzte", null, null, null,
+				null, null, null, null, 180000L))
+		val index = SearchIndex(SyntheticLibrary.SongSearchFields, songs)
+		for ((query, id) in listOf("beyonce" to 0L, "BEYONCÉ" to 0L, "i am" to 0L,
+				"ｈａｌｏ" to 0L, "strasse" to 1L, "aerzte" to null, "arzte" to 1L)) {
+			assertEquals(query, listOfNotNull(id), index.search(query).map { it.id })
+		}
+		assertEquals(SearchNormalizer.normalize("ひらがな"), SearchNormalizer.normalize("ヒラガナ"))
+		assertEquals(SearchNormalizer.normalize("ﾋﾗｶﾞﾅ"), SearchNormalizer.normalize("ひらがな"))
+		assertTrue(SearchNormalizer.normalize("が") != SearchNormalizer.normalize("か"))
+	}
+
+	@Test
+	fun benchmarkSearch() {
+		val songs = SyntheticLibrary.songs(50_000)
+		val start = System.nanoTime()
+		val index = SearchIndex(SyntheticLibrary.SongSearchFields, songs)
+		println("built index of ${songs.size} songs in ${(System.nanoTime() - start) / 1_000_000}ms")
+		for (query in queries) {
+			// Best of a few, the first runs include JIT compilation.
+			var best = Long.MAX_VALUE
+			var results = 0
+			repeat(5) {
+				val queryStart = System.nanoTime()
+				results = index.search(query).size
+				best = minOf(best, (System.nanoTime() - queryStart) / 1000)
+			}
+			println("\"$query\": $results results in ${best}us")
+			assertTrue("\"$query\" took ${best}us", best <= MAX_QUERY_MICROS)
+		}
+	}
+}
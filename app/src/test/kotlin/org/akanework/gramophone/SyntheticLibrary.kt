@@ -0,0 +1,48 @@
+package org.akanework.gramophone
+
+import android.net.Uri
+import org.akanework.gramophone.logic.utils.LibraryGrouper
+import org.akanework.gramophone.logic.utils.SearchIndex
+
+/**
+ * A fake library without any Android types in it, with roughly the shape of a real one:
+ * 12 songs per album, 4 albums per artist, 30 genres, 50 years.
+ */
+object SyntheticLibrary {
+
+	data class Song(val id: Long, val path: String, val title: String, val artist: String?,
+	                val artistId: Long?, val album: String?, val albumId: Long?, val genre: String?,
+	                val genreId: Long?, val year: Int?, val track: Int?, val duration: Long,
+	                val addDate: Long? = null)
+
+	object SongFields : LibraryGrouper.Fields<Song> {
+		override fun id(item: Song) = item.id
+		override fun path(item: Song) = item.path
+		override fun albumId(item: Song) = item.albumId
+		override fun albumTitle(item: Song) = item.album
+		override fun albumArtist(item: Song) = item.artist
+		override fun artistId(item: Song) = item.artistId
+		override fun artist(item: Song) = item.artist
+		override fun genreId(item: Song) = item.genreId
+		override fun genre(item: Song) = item.genre
+		override fun year(item: Song) = item.year
+		override fun cover(item: Song): Uri? = null
+		override fun addDate(item: Song) = item.addDate
+	}
+
+	object SongSearchFields : SearchIndex.Fields<Song> {
+		override fun key(item: Song) = item.id.toString()
+		override fun title(item: Song) = item.title
+		override fun album(item: Song) = item.album
+		override fun artist(item: Song) = item.artist
+	}
+
+	fun songs(size: Int) = List(size) { i ->
+		val album = i / 12
+		val artist = album / 4
+		Song(i.toLong(), "/storage/emulated/0/Music/Artist $artist/Album $album/$i.flac",
+			"Song $i", if (i % 100 == 0) null else "Artist $artist", artist.toLong(),
+			"Album $album", album.toLong(), "Genre ${artist % 30}", (artist % 30).toLong(),
+			if (artist % 10 == 0) null else 1970 + artist % 50, i % 12 + 1, 180000L + i)
+	}
+}
@@ -0,0 +1,194 @@
+package org.akanework.gramophone
+
+import android.content.ContentProvider
+import android.content.ContentValues
+import android.database.AbstractCursor
+import android.database.Cursor
+import android.database.MatrixCursor
+import android.net.Uri
+import android.provider.MediaStore
+import java.util.Random
+
+/**
+ * A fake MediaStore audio table with [size] rows, shaped like a real collection: mostly
+ * full albums next to singles, EPs and a few long compilations, a handful of artists with
+ * many albums and a long tail with one or two, folders between one and five levels below
+ * Music and some songs without artist, album artist, genre or year. Rows are computed
+ * when they are read, so even large libraries cost next to no memory up front.
+ */
+class SyntheticMediaStore(val size: Int, seed: Long = 42) {
+
+	enum class Column(val key: String) {
+		ID(MediaStore.Audio.Media._ID),
+		DATA(MediaStore.Audio.Media.DATA),
+		DISPLAY_NAME(MediaStore.Audio.Media.DISPLAY_NAME),
+		RELATIVE_PATH(MediaStore.Audio.Media.RELATIVE_PATH),
+		VOLUME_NAME(MediaStore.Audio.Media.VOLUME_NAME),
+		TITLE(MediaStore.Audio.Media.TITLE),
+		ARTIST(MediaStore.Audio.Media.ARTIST),
+		ARTIST_ID(MediaStore.Audio.Media.ARTIST_ID),
+		ALBUM(MediaStore.Audio.Media.ALBUM),
+		ALBUM_ID(MediaStore.Audio.Media.ALBUM_ID),
+		ALBUM_ARTIST(MediaStore.Audio.Media.ALBUM_ARTIST),
+		TRACK(MediaStore.Audio.Media.TRACK),
+		CD_TRACK_NUMBER(MediaStore.Audio.Media.CD_TRACK_NUMBER),
+		DISC_NUMBER(MediaStore.Audio.Media.DISC_NUMBER),
+		YEAR(MediaStore.Audio.Media.YEAR),
+		GENRE(MediaStore.Audio.Media.GENRE),
+		GENRE_ID(MediaStore.Audio.Media.GENRE_ID),
+		COMPOSER(MediaStore.Audio.Media.COMPOSER),
+		WRITER(MediaStore.Audio.Media.WRITER),
+		AUTHOR(MediaStore.Audio.Media.AUTHOR),
+		COMPILATION(MediaStore.Audio.Media.COMPILATION),
+		DURATION(MediaStore.Audio.Media.DURATION),
+		SIZE(MediaStore.Audio.Media.SIZE),
+		MIME_TYPE(MediaStore.Audio.Media.MIME_TYPE),
+		IS_MUSIC(MediaStore.Audio.Media.IS_MUSIC),
+		DATE_ADDED(MediaStore.Audio.Media.DATE_ADDED),
+		DATE_MODIFIED(MediaStore.Audio.Media.DATE_MODIFIED),
+		GENERATION_ADDED(MediaStore.Audio.Media.GENERATION_ADDED),
+		GENERATION_MODIFIED(MediaStore.Audio.Media.GENERATION_MODIFIED);
+
+		companion object {
+			val byKey = entries.associateBy { it.key }
+		}
+	}
+
+	private class Album(val artist: Int, val year: Int?, val genre: Int?, val dir: String,
+	                    val title: String?, val albumArtist: Boolean, val size: Int)
+
+	private val albums = ArrayList<Album>()
+	private val albumOfRow = IntArray(size)
+	private val trackOfRow = IntArray(size)
+	val artistCount = maxOf(1, size / 40)
+
+	val albumCount: Int
+		get() = albums.size
+
+	init {
+		val random = Random(seed)
+		var row = 0
+		while (row < size) {
+			val album = albums.size
+			val albumSize = when (random.nextInt(20)) {
+				0, 1, 2 -> 1
+				3, 4 -> 4 + random.nextInt(3)
+				19 -> 20 + random.nextInt(30)
+				else -> 8 + random.nextInt(9)
+			}
+			// Cubed, so that low artist numbers get most of the albums.
+			val u = random.nextDouble()
+			val artist = (artistCount * u * u * u).toInt()
+			val year = if (random.nextInt(100) < 15) null else 1960 + random.nextInt(65)
+			val genre = if (random.nextInt(100) < 10) null else random.nextInt(40)
+			val dir = "/storage/emulated/0/" + when (random.nextInt(10)) {
+				0 -> "Download"
+				7, 8 -> "Music/Artist $artist/${year ?: "Unknown"}/Album $album/CD${random.nextInt(2) + 1}"
+				9 -> "Music/Album $album"
+				else -> "Music/Artist $artist/Album $album"
+			}
+			val title = if (random.nextInt(100) < 3) null else "Album $album"
+			albums.add(Album(artist, year, genre, dir, title, random.nextInt(10) < 7, albumSize))
+			repeat(minOf(albumSize, size - row)) { track ->
+				albumOfRow[row] = album
+				trackOfRow[row] = track + 1
+				row++
+			}
+		}
+	}
+
+	fun value(row: Int, column: Column): Any? {
+		val album = albums[albumOfRow[row]]
+		val track = trackOfRow[row]
+		// MediaStore reports missing artists as <unknown>, not as null.
+		val artistMissing = row % 33 == 0
+		val fileName = "$track Song $row." + if (row % 3 == 0) "mp3" else "flac"
+		return when (column) {
+			Column.ID -> row + 1L
+			Column.DATA -> "${album.dir}/$fileName"
+			Column.DISPLAY_NAME -> fileName
+			Column.RELATIVE_PATH -> album.dir.removePrefix("/storage/emulated/0/") + "/"
+			Column.VOLUME_NAME -> MediaStore.VOLUME_EXTERNAL_PRIMARY
+			Column.TITLE -> if (row % 100 == 0) fileName.substringBeforeLast('.') else "Song $row"
+			Column.ARTIST -> if (artistMissing) "<unknown>" else "Artist ${album.artist}"
+			Column.ARTIST_ID -> if (artistMissing) artistCount + 1L else album.artist + 1L
+			// MediaStore falls back to the folder name for songs without album.
+			Column.ALBUM -> album.title ?: album.dir.substringAfterLast('/')
+			Column.ALBUM_ID -> albumOfRow[row] + 1L
+			Column.ALBUM_ARTIST -> if (album.albumArtist) "Artist ${album.artist}" else null
+			Column.TRACK -> track
+			Column.CD_TRACK_NUMBER -> "$track/${album.size}"
+			Column.DISC_NUMBER -> if (album.dir.contains("/CD")) album.dir.last().toString() else null
+			Column.YEAR -> album.year
+			Column.GENRE -> album.genre?.let { "Genre $it" }
+			Column.GENRE_ID -> album.genre?.let { it + 1L }
+			Column.COMPOSER -> if (row % 5 == 0) "Composer ${row % 500}" else null
+			Column.WRITER -> null
+			Column.AUTHOR -> null
+			Column.COMPILATION -> if (album.size >= 20) "1" else null
+			Column.DURATION -> 90_000L + (row * 7919L) % 360_000L
+			Column.SIZE -> 30_000_000L + row
+			Column.MIME_TYPE -> if (row % 3 == 0) "audio/mpeg" else "audio/flac"
+			Column.IS_MUSIC -> 1
+			Column.DATE_ADDED, Column.DATE_MODIFIED -> 1_600_000_000L + row
+			Column.GENERATION_ADDED, Column.GENERATION_MODIFIED -> row + 1L
+		}
+	}
+
+	/**
+	 * Cursor over all rows, unknown columns in [projection] are null.
+	 */
+	inner class SongCursor(private val projection: Array<String>) : AbstractCursor() {
+		private val columns = projection.map { Column.byKey[it] }
+
+		private fun value(column: Int) = columns[column]?.let { value(position, it) }
+
+		override fun getCount() = size
+		override fun getColumnNames() = projection
+		override fun getString(column: Int) = value(column)?.toString()
+		override fun getShort(column: Int) = getLong(column).toShort()
+		override fun getInt(column: Int) = getLong(column).toInt()
+		override fun getLong(column: Int) = when (val v = value(column)) {
+			is Number -> v.toLong()
+			is String -> v.substringBefore('/').toLongOrNull() ?: 0L
+			else -> 0L
+		}
+		override fun getFloat(column: Int) = getLong(column).toFloat()
+		override fun getDouble(column: Int) = getLong(column).toDouble()
+		override fun isNull(column: Int) = value(column) == null
+		override fun getType(column: Int) = when (value(column)) {
+			null -> Cursor.FIELD_TYPE_NULL
+			is Number -> Cursor.FIELD_TYPE_INTEGER
+			else -> Cursor.FIELD_TYPE_STRING
+		}
+	}
+
+	/**
+	 * Serves [store] for the media authority, register it with
+	 * `Robolectric.buildContentProvider(Provider::class.java).create(MediaStore.AUTHORITY)`.
+	 * Selections are ignored, all rows are music and longer than the default filter.
+	 */
+	class Provider : ContentProvider() {
+		var store = SyntheticMediaStore(0)
+
+		override fun onCreate() = true
+
+		override fun query(
+			uri: Uri, projection: Array<String>?, selection: String?,
+			selectionArgs: Array<String>?, sortOrder: String?
+		): Cursor {
+			val columns = projection ?: Column.entries.map { it.key }.toTypedArray()
+			val segments = uri.pathSegments
+			// Playlists, genres and albums tables are all empty.
+			return if (segments.getOrNull(1) == "audio" && segments.getOrNull(2) == "media")
+				store.SongCursor(columns) else MatrixCursor(columns)
+		}
+
+		override fun getType(uri: Uri): String? = null
+		override fun insert(uri: Uri, values: ContentValues?): Uri? = null
+		override fun delete(uri: Uri, selection: String?, selectionArgs: Array<String>?) = 0
+		override fun update(
+			uri: Uri, values: ContentValues?, selection: String?, selectionArgs: Array<String>?
+		) = 0
+	}
+}